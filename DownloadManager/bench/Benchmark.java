@@ -0,0 +1,72 @@
+/**
+ * One benchmark of the Benchmarks suite.
+ *
+ * The harness calls run() again and again, from the given number of threads
+ * at once, for the length of every iteration, and divides the operations it
+ * returned by the iteration's time. An operation which takes nanoseconds should
+ * loop over a batch of them in run(), so that reading the clock between the
+ * calls doesn't dominate it, and keep its results in a field so the JIT can't
+ * drop them.
+ */
+abstract class Benchmark {
+	private final String name;
+	private final String unit;
+	private final int threads;
+
+	/**
+	 * @param name
+	 * @param unit
+	 *            what an operation is, e.g. "chunks/s"
+	 * @param threads
+	 */
+	Benchmark(String name, String unit, int threads) {
+		this.name = name;
+		this.unit = unit;
+		this.threads = threads;
+	}
+
+	/**
+	 * Called once in the benchmark's JVM, before the warmup.
+	 *
+	 * @throws Exception
+	 */
+	void setUp() throws Exception {
+	}
+
+	/**
+	 * @param thread
+	 *            the index of the calling thread
+	 * @return the number of operations done
+	 * @throws Exception
+	 */
+	abstract long run(int thread) throws Exception;
+
+	/**
+	 * Called once in the benchmark's JVM, after the last iteration.
+	 *
+	 * @throws Exception
+	 */
+	void tearDown() throws Exception {
+	}
+
+	/**
+	 * @return
+	 */
+	String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return
+	 */
+	String getUnit() {
+		return this.unit;
+	}
+
+	/**
+	 * @return
+	 */
+	int getThreads() {
+		return this.threads;
+	}
+}
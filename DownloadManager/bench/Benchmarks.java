@@ -0,0 +1,368 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks of the download's hot paths, to see the effect of a change on them
+ * and to catch regressions in review:
+ *
+ * java -cp CLASSES Benchmarks [-list] [-save FILE] [-compare FILE] [FILTER...]
+ *
+ * where CLASSES holds both src and bench compiled, e.g. javac -encoding
+ * ISO-8859-1 -d /tmp/bench src/*.java bench/*.java. Only the benchmarks whose
+ * name contains one of the filters are run. -save writes the results to a file,
+ * and -compare compares them with the results of an earlier -save, e.g. of the
+ * commit before the change, and exits with 1 if any benchmark got slower.
+ *
+ * Like JMH, every benchmark runs in JVMs of its own (bench.forks, default 2), in
+ * a new temporary directory, so the JIT's profile of one benchmark doesn't slow
+ * down another, and the files it leaves behind don't either. Each JVM runs
+ * bench.warmups iterations (default 3) whose scores are thrown away, then
+ * bench.iterations (default 5) iterations of bench.time milliseconds (default
+ * 1000) each. The score is the mean of all the measured iterations of all the
+ * forks, with its 99% confidence interval. Two results whose intervals overlap
+ * are not told apart by the comparison.
+ */
+class Benchmarks {
+	private static final String SCORE = "score ";
+	// The 99.5th percentile of the standard normal distribution, for a two sided 99% interval.
+	private static final double Z_99 = 2.576;
+
+	/**
+	 * @return all the benchmarks
+	 */
+	static List<Benchmark> all() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.addAll(ChunkBenchmarks.benchmarks());
+		benchmarks.addAll(TokenBucketBenchmarks.benchmarks());
+		benchmarks.addAll(FileWriterBenchmarks.benchmarks());
+		benchmarks.addAll(MetadataBenchmarks.benchmarks());
+		return benchmarks;
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		String saveFile = null;
+		String compareFile = null;
+		boolean list = false;
+		List<String> filters = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-fork":
+				System.exit(runFork(find(args[++i])) ? 0 : 1);
+				break;
+			case "-list":
+				list = true;
+				break;
+			case "-save":
+				saveFile = args[++i];
+				break;
+			case "-compare":
+				compareFile = args[++i];
+				break;
+			default:
+				filters.add(args[i]);
+			}
+		}
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (Benchmark benchmark : all()) {
+			if (filters.isEmpty() || filters.stream().anyMatch(benchmark.getName()::contains))
+				benchmarks.add(benchmark);
+		}
+		if (list) {
+			for (Benchmark benchmark : benchmarks) {
+				System.out.println(benchmark.getName());
+			}
+			return;
+		}
+
+		int forks = Integer.getInteger("bench.forks", 2);
+		System.out.printf("# %s %s, %s %s, %d cores%n", System.getProperty("java.vm.name"),
+				System.getProperty("java.version"), System.getProperty("os.name"), System.getProperty("os.arch"),
+				Runtime.getRuntime().availableProcessors());
+		System.out.printf("# %d forks, %d warmups, %d iterations of %d ms%n", forks,
+				Integer.getInteger("bench.warmups", 3), Integer.getInteger("bench.iterations", 5),
+				Long.getLong("bench.time", 1000));
+		System.out.printf("%-36s %16s %14s  %s%n", "Benchmark", "Score", "Error (99%)", "Units");
+
+		Map<String, Result> baseline = compareFile == null ? null : load(compareFile);
+		List<Result> results = new ArrayList<Result>();
+		boolean regressed = false;
+		for (Benchmark benchmark : benchmarks) {
+			List<Double> scores = new ArrayList<Double>();
+			for (int fork = 0; fork < forks; fork++) {
+				if (!fork(benchmark.getName(), scores)) {
+					System.err.println(benchmark.getName() + " failed");
+					break;
+				}
+			}
+			if (scores.isEmpty())
+				continue;
+			Result result = new Result(benchmark.getName(), benchmark.getUnit(), scores);
+			results.add(result);
+			String comparison = "";
+			if (baseline != null && baseline.containsKey(result.name)) {
+				Result before = baseline.get(result.name);
+				double change = (result.score - before.score) / before.score * 100;
+				if (result.score + result.error < before.score - before.error) {
+					comparison = String.format("  REGRESSION %+.1f%%", change);
+					regressed = true;
+				} else if (result.score - result.error > before.score + before.error) {
+					comparison = String.format("  improvement %+.1f%%", change);
+				} else {
+					comparison = String.format("  same (%+.1f%%)", change);
+				}
+			}
+			System.out.printf("%-36s %16.1f %14.1f  %s%s%n", result.name, result.score, result.error, result.unit,
+					comparison);
+		}
+
+		if (saveFile != null)
+			save(saveFile, results);
+		if (regressed)
+			System.exit(1);
+	}
+
+	/**
+	 * @param name
+	 * @return
+	 */
+	private static Benchmark find(String name) {
+		for (Benchmark benchmark : all()) {
+			if (benchmark.getName().equals(name))
+				return benchmark;
+		}
+		throw new IllegalArgumentException("No benchmark " + name);
+	}
+
+	/**
+	 * Runs a benchmark in a new JVM, in a new temporary directory.
+	 *
+	 * @param name
+	 * @param scores
+	 *            gets the scores of the fork's measured iterations
+	 * @return true if the fork succeeded
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static boolean fork(String name, List<Double> scores) throws IOException, InterruptedException {
+		Path directory = Files.createTempDirectory("idcdm-bench");
+		try {
+			List<String> command = new ArrayList<String>();
+			command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+			command.add("-cp");
+			// The fork runs in another directory, so relative class path entries are resolved here.
+			StringJoiner classPath = new StringJoiner(File.pathSeparator);
+			for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+				classPath.add(new File(entry).getAbsolutePath());
+			}
+			command.add(classPath.toString());
+			for (String property : System.getProperties().stringPropertyNames()) {
+				if (property.startsWith("bench.") || property.startsWith("idcdm."))
+					command.add("-D" + property + "=" + System.getProperty(property));
+			}
+			command.add("Benchmarks");
+			command.add("-fork");
+			command.add(name);
+			Process process = new ProcessBuilder(command).directory(directory.toFile())
+					.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith(SCORE))
+						scores.add(Double.parseDouble(line.substring(SCORE.length())));
+					else
+						System.out.println(line);
+				}
+			}
+			return process.waitFor() == 0;
+		} finally {
+			try (Stream<Path> files = Files.walk(directory)) {
+				files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			}
+		}
+	}
+
+	/**
+	 * Runs the benchmark's iterations in this JVM, and prints the score of every
+	 * measured one.
+	 *
+	 * @param benchmark
+	 * @return true if the benchmark succeeded
+	 */
+	private static boolean runFork(Benchmark benchmark) {
+		int warmups = Integer.getInteger("bench.warmups", 3);
+		int iterations = Integer.getInteger("bench.iterations", 5);
+		long time = Long.getLong("bench.time", 1000);
+		try {
+			benchmark.setUp();
+			try {
+				for (int i = 0; i < warmups; i++) {
+					iterate(benchmark, time);
+				}
+				for (int i = 0; i < iterations; i++) {
+					System.out.println(SCORE + iterate(benchmark, time));
+				}
+			} finally {
+				benchmark.tearDown();
+			}
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Runs the benchmark from all its threads for about the given time.
+	 *
+	 * @param benchmark
+	 * @param time
+	 *            in milliseconds
+	 * @return operations per second
+	 * @throws Exception
+	 */
+	private static double iterate(Benchmark benchmark, long time) throws Exception {
+		int threads = benchmark.getThreads();
+		long[] operations = new long[threads];
+		Exception[] failures = new Exception[threads];
+		CountDownLatch start = new CountDownLatch(1);
+		Iteration iteration = new Iteration();
+		Thread[] runners = new Thread[threads];
+		for (int thread = 0; thread < threads; thread++) {
+			int index = thread;
+			runners[thread] = new Thread(() -> {
+				try {
+					start.await();
+					while (!iteration.stopped) {
+						operations[index] += benchmark.run(index);
+					}
+				} catch (Exception e) {
+					failures[index] = e;
+				}
+			}, "bench-" + thread);
+			runners[thread].start();
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		Thread.sleep(time);
+		iteration.stopped = true;
+		long totalOperations = 0;
+		for (int thread = 0; thread < threads; thread++) {
+			runners[thread].join();
+			if (failures[thread] != null)
+				throw failures[thread];
+			totalOperations += operations[thread];
+		}
+		// The threads finish the run they are in, so the iteration ends when the last of them does.
+		return totalOperations * 1e9 / (System.nanoTime() - startTime);
+	}
+
+	/**
+	 * @param fileName
+	 * @param results
+	 * @throws IOException
+	 */
+	private static void save(String fileName, List<Result> results) throws IOException {
+		try (PrintStream out = new PrintStream(fileName)) {
+			for (Result result : results) {
+				out.printf("%s\t%s\t%s\t%s%n", result.name, result.unit, result.score, result.error);
+			}
+		}
+	}
+
+	/**
+	 * @param fileName
+	 * @return the results of an earlier -save, by name
+	 * @throws IOException
+	 */
+	private static Map<String, Result> load(String fileName) throws IOException {
+		Map<String, Result> results = new HashMap<String, Result>();
+		for (String line : Files.readAllLines(new File(fileName).toPath())) {
+			String[] fields = line.split("\t");
+			if (fields.length == 4)
+				results.put(fields[0],
+						new Result(fields[0], fields[1], Double.parseDouble(fields[2]), Double.parseDouble(fields[3])));
+		}
+		return results;
+	}
+
+	/**
+	 * Tells the threads of an iteration to stop.
+	 */
+	private static class Iteration {
+		volatile boolean stopped;
+	}
+
+	/**
+	 * The score of a benchmark and its error, half the width of its 99%
+	 * confidence interval.
+	 */
+	private static class Result {
+		final String name;
+		final String unit;
+		final double score;
+		final double error;
+
+		/**
+		 * @param name
+		 * @param unit
+		 * @param score
+		 * @param error
+		 */
+		Result(String name, String unit, double score, double error) {
+			this.name = name;
+			this.unit = unit;
+			this.score = score;
+			this.error = error;
+		}
+
+		/**
+		 * @param name
+		 * @param unit
+		 * @param scores
+		 */
+		Result(String name, String unit, List<Double> scores) {
+			this(name, unit, mean(scores), Z_99 * deviation(scores) / Math.sqrt(scores.size()));
+		}
+
+		/**
+		 * @param scores
+		 * @return
+		 */
+		private static double mean(List<Double> scores) {
+			return scores.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+		}
+
+		/**
+		 * @param scores
+		 * @return the sample standard deviation of the scores
+		 */
+		private static double deviation(List<Double> scores) {
+			if (scores.size() < 2)
+				return 0;
+			double mean = mean(scores);
+			double squares = 0;
+			for (double score : scores) {
+				squares += (score - mean) * (score - mean);
+			}
+			return Math.sqrt(squares / (scores.size() - 1));
+		}
+	}
+}
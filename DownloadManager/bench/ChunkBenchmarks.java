@@ -0,0 +1,84 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Creating the chunk of every read: a buffer borrowed from the ChunkBufferPool
+ * and handed over as it is, against the original copy of the read into a new
+ * array (new byte[] and clone()).
+ */
+class ChunkBenchmarks {
+	private static final int BATCH = 1000;
+
+	/**
+	 * @return
+	 */
+	static List<Benchmark> benchmarks() {
+		return Arrays.asList(new Pooled(1), new Pooled(4), new Copied(1), new Copied(4));
+	}
+
+	/**
+	 * Borrow, fill, wrap in a Chunk and give back, like a getter and the
+	 * FileWriter do.
+	 */
+	static class Pooled extends Benchmark {
+		private final byte[] source = new byte[HTTPRangeGetter.CHUNK_SIZE];
+		private ChunkBufferPool chunkBufferPool;
+		private volatile long sink;
+
+		/**
+		 * @param threads
+		 */
+		Pooled(int threads) {
+			super("chunk.pooled.threads" + threads, "chunks/s", threads);
+		}
+
+		@Override
+		void setUp() {
+			this.chunkBufferPool = new ChunkBufferPool();
+		}
+
+		@Override
+		long run(int thread) {
+			long offsets = 0;
+			for (int i = 0; i < BATCH; i++) {
+				ByteBuffer buffer = this.chunkBufferPool.borrow();
+				buffer.put(this.source);
+				buffer.flip();
+				Chunk chunk = new Chunk(buffer, i * (long) HTTPRangeGetter.CHUNK_SIZE, buffer.remaining());
+				offsets += chunk.getOffset();
+				this.chunkBufferPool.giveBack(chunk.getData());
+			}
+			this.sink = offsets;
+			return BATCH;
+		}
+	}
+
+	/**
+	 * Read into a new array, and copy it into the Chunk.
+	 */
+	static class Copied extends Benchmark {
+		private final byte[] source = new byte[HTTPRangeGetter.CHUNK_SIZE];
+		private volatile long sink;
+
+		/**
+		 * @param threads
+		 */
+		Copied(int threads) {
+			super("chunk.copied.threads" + threads, "chunks/s", threads);
+		}
+
+		@Override
+		long run(int thread) {
+			long bytes = 0;
+			for (int i = 0; i < BATCH; i++) {
+				byte[] read = new byte[HTTPRangeGetter.CHUNK_SIZE];
+				System.arraycopy(this.source, 0, read, 0, read.length);
+				byte[] data = read.clone();
+				bytes += data[i % data.length] + data.length;
+			}
+			this.sink = bytes;
+			return BATCH;
+		}
+	}
+}
@@ -0,0 +1,419 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Downloads with IdcDm from a RangeServer on localhost, over every combination
+ * of the numbers of connections, file sizes and download limits, and reports
+ * for each one the throughput, the CPU time and the bytes allocated by IdcDm,
+ * whether the file arrived intact, and whether it still does when IdcDm is
+ * killed halfway and resumed:
+ *
+ * java -cp CLASSES EndToEnd
+ *
+ * where CLASSES holds both src and bench compiled. Configured by system
+ * properties:
+ *
+ * e2e.connections, e2e.sizes, e2e.rates - comma separated lists of the
+ * matrix's numbers of connections (default 1,4,8), file sizes (default 16M,64M)
+ * and download limits in bytes per second (default 0,8M, 0 for no limit). Sizes
+ * take a K, M or G suffix.
+ *
+ * e2e.transports - a comma separated list of the transports each download of
+ * the matrix runs over (default threads): "threads" for a getter thread and an
+ * HTTP/1.1 connection each, "async" for the streams of the async engine on
+ * HTTP/1.1 connections, "http2" for its streams on HTTP/2 connections. The
+ * RangeServer only speaks HTTP/1.1, so "http2" measures the fallback to it.
+ *
+ * e2e.bandwidth, e2e.latency, e2e.disconnectEvery, e2e.slowEvery,
+ * e2e.slowBandwidth - the server's limit per connection (default 0, none), its
+ * delay before every response (milliseconds, default 0), which responses it
+ * cuts (every Nth, default 0, none), and which connections are slow (every Nth,
+ * default 0, none) and how slow (default 256K per second). See RangeServer.
+ *
+ * e2e.resume, e2e.killAt - whether every download is also killed and resumed
+ * (default true), and when, as a fraction of the time it took uninterrupted
+ * (default 0.5).
+ *
+ * Every download runs in a JVM of its own, in a new temporary directory, with
+ * the idcdm.* properties of this one, so its CPU time and allocations are
+ * IdcDm's alone. The server runs in this JVM. Exits with 1 if a file didn't
+ * arrive intact.
+ */
+class EndToEnd {
+	private static final String RESULT = "result ";
+	private static final String FILE_NAME = "e2e.bin";
+	// IdcDm has no "unlimited", 1TB per second is as good.
+	private static final long UNLIMITED = 1000L * 1000 * 1000 * 1000;
+	// How often the allocations of the download's threads are sampled, in milliseconds.
+	private static final long SAMPLE_INTERVAL = 10;
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("-run")) {
+			String[] idcdmArgs = new String[args.length - 1];
+			System.arraycopy(args, 1, idcdmArgs, 0, idcdmArgs.length);
+			runDownload(idcdmArgs);
+			return;
+		}
+
+		List<Long> connections = parseList(System.getProperty("e2e.connections", "1,4,8"));
+		List<Long> sizes = parseList(System.getProperty("e2e.sizes", "16M,64M"));
+		List<Long> rates = parseList(System.getProperty("e2e.rates", "0,8M"));
+		boolean resume = Boolean.parseBoolean(System.getProperty("e2e.resume", "true"));
+		double killAt = Double.parseDouble(System.getProperty("e2e.killAt", "0.5"));
+		String[] transports = System.getProperty("e2e.transports", "threads").split(",");
+
+		System.out.printf("# %s %s, %s %s, %d cores%n", System.getProperty("java.vm.name"),
+				System.getProperty("java.version"), System.getProperty("os.name"), System.getProperty("os.arch"),
+				Runtime.getRuntime().availableProcessors());
+		System.out.printf("# server: %s per connection, latency %d ms, every %d response cut, every %d connection at %s%n",
+				formatRate(parseSize(System.getProperty("e2e.bandwidth", "0"))), Long.getLong("e2e.latency", 0),
+				Integer.getInteger("e2e.disconnectEvery", 0), Integer.getInteger("e2e.slowEvery", 0),
+				formatRate(parseSize(System.getProperty("e2e.slowBandwidth", "256K"))));
+		System.out.printf("%8s %9s %6s %10s %10s %10s %10s %10s %10s %6s %8s %8s%n", "Size", "Transport", "Conns",
+				"Limit", "MB/s", "CPU ms", "CPU ms/MB", "Alloc MB", "Responses", "Cut", "Intact", "Resume");
+
+		boolean intact = true;
+		for (long size : sizes) {
+			RangeServer server = new RangeServer(size).withBandwidth(parseSize(System.getProperty("e2e.bandwidth", "0")))
+					.withLatency(Long.getLong("e2e.latency", 0))
+					.withDisconnects(Integer.getInteger("e2e.disconnectEvery", 0))
+					.withSlowConnections(Integer.getInteger("e2e.slowEvery", 0),
+							parseSize(System.getProperty("e2e.slowBandwidth", "256K")));
+			String url = "http://127.0.0.1:" + server.start() + "/" + FILE_NAME;
+			try {
+				for (long rate : rates) {
+					for (String transport : transports) {
+						String[] transportProperties = getTransportProperties(transport.trim());
+						for (long numberOfConnections : connections) {
+							String[] idcdmArgs = { url, Long.toString(numberOfConnections),
+									Long.toString(rate == 0 ? UNLIMITED : rate) };
+							int responses = server.getResponses();
+							int disconnects = server.getDisconnects();
+							Download download = download(server, transportProperties, idcdmArgs, 0);
+							responses = server.getResponses() - responses;
+							disconnects = server.getDisconnects() - disconnects;
+							String resumed = "-";
+							if (resume && download.result != null) {
+								long killAfter = (long) (TimeUnit.NANOSECONDS.toMillis(download.result[0]) * killAt);
+								Download resumedDownload = download(server, transportProperties, idcdmArgs,
+										Math.max(1, killAfter));
+								resumed = resumedDownload.intact ? "ok" : "FAILED";
+								intact &= resumedDownload.intact;
+							}
+							intact &= download.intact;
+							printRow(size, transport.trim(), numberOfConnections, rate, download, responses, disconnects,
+									resumed);
+						}
+					}
+				}
+			} finally {
+				server.stop();
+			}
+		}
+		if (!intact)
+			System.exit(1);
+	}
+
+	/**
+	 * @param transport
+	 *            threads, async or http2
+	 * @return the idcdm.* properties which select it
+	 */
+	private static String[] getTransportProperties(String transport) {
+		switch (transport) {
+		case "threads":
+			return new String[] { "idcdm.engine=threads", "idcdm.http.version=1.1" };
+		case "async":
+			return new String[] { "idcdm.engine=async", "idcdm.http.version=1.1" };
+		case "http2":
+			return new String[] { "idcdm.engine=async", "idcdm.http.version=2" };
+		default:
+			throw new IllegalArgumentException("Unknown transport " + transport);
+		}
+	}
+
+	/**
+	 * @param size
+	 * @param transport
+	 * @param numberOfConnections
+	 * @param rate
+	 * @param download
+	 * @param responses
+	 * @param disconnects
+	 * @param resumed
+	 */
+	private static void printRow(long size, String transport, long numberOfConnections, long rate, Download download, int responses,
+			int disconnects, String resumed) {
+		String throughput = "-";
+		String cpu = "-";
+		String cpuPerMegabyte = "-";
+		String allocated = "-";
+		if (download.result != null) {
+			double megabytes = size / (1024.0 * 1024);
+			throughput = String.format("%.1f", megabytes / (download.result[0] / 1e9));
+			cpu = Long.toString(TimeUnit.NANOSECONDS.toMillis(download.result[1]));
+			cpuPerMegabyte = String.format("%.1f", download.result[1] / 1e6 / megabytes);
+			allocated = String.format("%.1f", download.result[2] / (1024.0 * 1024));
+		}
+		System.out.printf("%8s %9s %6d %10s %10s %10s %10s %10s %10d %6d %8s %8s%n", formatSize(size), transport,
+				numberOfConnections, rate == 0 ? "none" : formatRate(rate), throughput, cpu, cpuPerMegabyte, allocated, responses,
+				disconnects, download.intact ? "yes" : "NO", resumed);
+	}
+
+	/**
+	 * Downloads the server's file with IdcDm in a new JVM, in a new temporary
+	 * directory, and checks it.
+	 *
+	 * @param server
+	 * @param transportProperties
+	 *            idcdm.* properties of the download, on top of this JVM's
+	 * @param idcdmArgs
+	 * @param killAfter
+	 *            milliseconds after which the first IdcDm is killed and a second
+	 *            one resumes the download, or 0 to download it in one go
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static Download download(RangeServer server, String[] transportProperties, String[] idcdmArgs,
+			long killAfter)
+			throws IOException, InterruptedException {
+		Path directory = Files.createTempDirectory("idcdm-e2e");
+		try {
+			if (killAfter > 0) {
+				Process killed = start(directory, transportProperties, idcdmArgs);
+				if (!killed.waitFor(killAfter, TimeUnit.MILLISECONDS))
+					killed.destroyForcibly().waitFor();
+			}
+			Process process = start(directory, transportProperties, idcdmArgs);
+			long[] result = null;
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith(RESULT)) {
+						String[] fields = line.substring(RESULT.length()).split(" ");
+						result = new long[] { Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+								Long.parseLong(fields[2]) };
+					}
+				}
+			}
+			boolean intact = process.waitFor() == 0 && result != null
+					&& server.isServedContent(directory.resolve(FILE_NAME).toFile())
+					&& !new File(directory.toFile(), DownloadableMetadata.getMetadataName(FILE_NAME)).exists();
+			if (!intact) {
+				System.err.println("The download of " + String.join(" ", idcdmArgs) + " failed, IdcDm's output:");
+				for (String line : Files.readAllLines(directory.resolve("idcdm.log"))) {
+					System.err.println(line);
+				}
+			}
+			return new Download(killAfter > 0 ? null : result, intact);
+		} finally {
+			try (Stream<Path> files = Files.walk(directory)) {
+				files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			}
+		}
+	}
+
+	/**
+	 * @param directory
+	 * @param transportProperties
+	 * @param idcdmArgs
+	 * @return IdcDm running in a new JVM, its output appended to idcdm.log
+	 * @throws IOException
+	 */
+	private static Process start(Path directory, String[] transportProperties, String[] idcdmArgs)
+			throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		// The JVM runs in another directory, so relative class path entries are resolved here.
+		StringJoiner classPath = new StringJoiner(File.pathSeparator);
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			classPath.add(new File(entry).getAbsolutePath());
+		}
+		command.add(classPath.toString());
+		for (String property : System.getProperties().stringPropertyNames()) {
+			if (property.startsWith("idcdm."))
+				command.add("-D" + property + "=" + System.getProperty(property));
+		}
+		// The last of a property's values wins.
+		for (String property : transportProperties) {
+			command.add("-D" + property);
+		}
+		command.add("EndToEnd");
+		command.add("-run");
+		for (String arg : idcdmArgs) {
+			command.add(arg);
+		}
+		return new ProcessBuilder(command).directory(directory.toFile())
+				.redirectError(ProcessBuilder.Redirect.appendTo(directory.resolve("idcdm.log").toFile())).start();
+	}
+
+	/**
+	 * Runs IdcDm in this JVM, and prints the time it took, the CPU time and the
+	 * bytes allocated meanwhile.
+	 *
+	 * @param idcdmArgs
+	 * @throws InterruptedException
+	 */
+	private static void runDownload(String[] idcdmArgs) throws InterruptedException {
+		com.sun.management.OperatingSystemMXBean operatingSystem = (com.sun.management.OperatingSystemMXBean) ManagementFactory
+				.getOperatingSystemMXBean();
+		AllocationSampler allocationSampler = new AllocationSampler();
+		Thread sampler = new Thread(() -> {
+			try {
+				while (true) {
+					allocationSampler.sample();
+					Thread.sleep(SAMPLE_INTERVAL);
+				}
+			} catch (InterruptedException e) {
+			}
+		}, "allocation-sampler");
+		sampler.setDaemon(true);
+		sampler.start();
+
+		long startCpu = operatingSystem.getProcessCpuTime();
+		long startTime = System.nanoTime();
+		IdcDm.main(idcdmArgs);
+		long elapsed = System.nanoTime() - startTime;
+		long cpu = operatingSystem.getProcessCpuTime() - startCpu;
+		sampler.interrupt();
+		sampler.join();
+		allocationSampler.sample();
+		System.out.println(RESULT + elapsed + " " + cpu + " " + allocationSampler.getAllocatedBytes());
+		// The metrics reporter and the pools' idle threads don't keep the result waiting.
+		System.exit(0);
+	}
+
+	/**
+	 * The bytes allocated by all the threads since the sampler was created. The
+	 * JVM only counts the allocations of live threads, so a thread which ends
+	 * between two samples loses what it allocated since the last one.
+	 */
+	private static class AllocationSampler {
+		private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		private final Map<Long, Long> startBytes = new HashMap<Long, Long>();
+		private final Map<Long, Long> lastBytes = new HashMap<Long, Long>();
+
+		AllocationSampler() {
+			this.threads.setThreadAllocatedMemoryEnabled(true);
+			sample(this.startBytes);
+		}
+
+		synchronized void sample() {
+			sample(this.lastBytes);
+		}
+
+		/**
+		 * @param bytes
+		 *            gets the bytes allocated by every live thread
+		 */
+		private void sample(Map<Long, Long> bytes) {
+			long[] ids = this.threads.getAllThreadIds();
+			long[] allocated = this.threads.getThreadAllocatedBytes(ids);
+			for (int i = 0; i < ids.length; i++) {
+				if (allocated[i] >= 0)
+					bytes.put(ids[i], allocated[i]);
+			}
+		}
+
+		/**
+		 * @return
+		 */
+		synchronized long getAllocatedBytes() {
+			long allocated = 0;
+			for (Map.Entry<Long, Long> thread : this.lastBytes.entrySet()) {
+				allocated += thread.getValue() - this.startBytes.getOrDefault(thread.getKey(), 0L);
+			}
+			return allocated;
+		}
+	}
+
+	/**
+	 * The outcome of a download.
+	 */
+	private static class Download {
+		// Nanoseconds, CPU nanoseconds and bytes allocated, or null if it was resumed or failed.
+		final long[] result;
+		final boolean intact;
+
+		/**
+		 * @param result
+		 * @param intact
+		 */
+		Download(long[] result, boolean intact) {
+			this.result = result;
+			this.intact = intact;
+		}
+	}
+
+	/**
+	 * @param list
+	 *            comma separated sizes
+	 * @return
+	 */
+	private static List<Long> parseList(String list) {
+		List<Long> values = new ArrayList<Long>();
+		for (String value : list.split(",")) {
+			values.add(parseSize(value.trim()));
+		}
+		return values;
+	}
+
+	/**
+	 * @param size
+	 *            a number, with an optional K, M or G suffix
+	 * @return
+	 */
+	static long parseSize(String size) {
+		String digits = size.substring(0, size.length() - 1);
+		switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+		case 'K':
+			return Long.parseLong(digits) * 1024;
+		case 'M':
+			return Long.parseLong(digits) * 1024 * 1024;
+		case 'G':
+			return Long.parseLong(digits) * 1024 * 1024 * 1024;
+		default:
+			return Long.parseLong(size);
+		}
+	}
+
+	/**
+	 * @param size
+	 * @return
+	 */
+	private static String formatSize(long size) {
+		if (size >= 1024 * 1024 && size % (1024 * 1024) == 0)
+			return size / (1024 * 1024) + "M";
+		if (size >= 1024 && size % 1024 == 0)
+			return size / 1024 + "K";
+		return Long.toString(size);
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 * @return
+	 */
+	private static String formatRate(long bytesPerSecond) {
+		return bytesPerSecond == 0 ? "unlimited" : formatSize(bytesPerSecond) + "/s";
+	}
+}
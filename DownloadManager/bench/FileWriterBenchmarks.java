@@ -0,0 +1,208 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The ways of writing the chunks to the file: the original RandomAccessFile
+ * opened for every chunk, a positional write of every chunk to one FileChannel,
+ * the FileWriter's gathering write of a batch of adjacent chunks, and the
+ * MappedFileWriter's copy into a mapping of the file.
+ *
+ * The chunks are written in order, wrapping around a file of FILE_SIZE bytes.
+ * Nothing is forced to disk, so this measures the write path up to the page
+ * cache, which is what the writers do between two progress commits.
+ */
+class FileWriterBenchmarks {
+	private static final String FILE_NAME = "filewriter.bench";
+	private static final long FILE_SIZE = 64L * 1024 * 1024;
+	private static final int BATCH_CHUNKS = FileWriter.MAX_WRITE_SIZE / HTTPRangeGetter.CHUNK_SIZE;
+
+	/**
+	 * @return
+	 */
+	static List<Benchmark> benchmarks() {
+		return Arrays.asList(new RandomAccessFileWrite(), new ChannelWrite(), new GatheringWrite(), new MappedWrite());
+	}
+
+	/**
+	 * The file and the chunks written to it.
+	 */
+	private static abstract class WriteBenchmark extends Benchmark {
+		final ByteBuffer[] chunks = new ByteBuffer[BATCH_CHUNKS];
+		long offset;
+
+		/**
+		 * @param name
+		 */
+		WriteBenchmark(String name) {
+			super(name, "chunks/s", 1);
+		}
+
+		@Override
+		void setUp() throws Exception {
+			for (int i = 0; i < BATCH_CHUNKS; i++) {
+				this.chunks[i] = ByteBuffer.allocateDirect(HTTPRangeGetter.CHUNK_SIZE);
+				while (this.chunks[i].hasRemaining()) {
+					this.chunks[i].put((byte) i);
+				}
+				this.chunks[i].flip();
+			}
+			try (RandomAccessFile file = new RandomAccessFile(FILE_NAME, "rw")) {
+				file.setLength(FILE_SIZE);
+			}
+		}
+
+		/**
+		 * @return the offset of the next chunk
+		 */
+		long nextOffset() {
+			long chunkOffset = this.offset;
+			this.offset = (this.offset + HTTPRangeGetter.CHUNK_SIZE) % FILE_SIZE;
+			return chunkOffset;
+		}
+
+		@Override
+		void tearDown() throws Exception {
+			new File(FILE_NAME).delete();
+		}
+	}
+
+	/**
+	 * Opens, seeks, writes and closes the file for every chunk, as the
+	 * FileWriter first did.
+	 */
+	static class RandomAccessFileWrite extends WriteBenchmark {
+		private final byte[] data = new byte[HTTPRangeGetter.CHUNK_SIZE];
+
+		RandomAccessFileWrite() {
+			super("write.randomAccessFile");
+		}
+
+		@Override
+		long run(int thread) throws Exception {
+			for (int i = 0; i < BATCH_CHUNKS; i++) {
+				try (RandomAccessFile file = new RandomAccessFile(FILE_NAME, "rw")) {
+					file.seek(nextOffset());
+					file.write(this.data);
+				}
+			}
+			return BATCH_CHUNKS;
+		}
+	}
+
+	/**
+	 * One positional write per chunk to a channel kept open.
+	 */
+	static class ChannelWrite extends WriteBenchmark {
+		private FileChannel fileChannel;
+
+		ChannelWrite() {
+			super("write.channel");
+		}
+
+		@Override
+		void setUp() throws Exception {
+			super.setUp();
+			this.fileChannel = new RandomAccessFile(FILE_NAME, "rw").getChannel();
+		}
+
+		@Override
+		long run(int thread) throws Exception {
+			for (ByteBuffer chunk : this.chunks) {
+				ByteBuffer data = chunk.duplicate();
+				long position = nextOffset();
+				while (data.hasRemaining()) {
+					position += this.fileChannel.write(data, position);
+				}
+			}
+			return BATCH_CHUNKS;
+		}
+
+		@Override
+		void tearDown() throws Exception {
+			this.fileChannel.close();
+			super.tearDown();
+		}
+	}
+
+	/**
+	 * A single gathering write of a batch of adjacent chunks, as the FileWriter
+	 * does now.
+	 */
+	static class GatheringWrite extends WriteBenchmark {
+		private final ByteBuffer[] run = new ByteBuffer[BATCH_CHUNKS];
+		private FileChannel fileChannel;
+
+		GatheringWrite() {
+			super("write.gathering");
+		}
+
+		@Override
+		void setUp() throws Exception {
+			super.setUp();
+			this.fileChannel = new RandomAccessFile(FILE_NAME, "rw").getChannel();
+		}
+
+		@Override
+		long run(int thread) throws Exception {
+			long runOffset = nextOffset();
+			for (int i = 0; i < BATCH_CHUNKS; i++) {
+				this.run[i] = this.chunks[i].duplicate();
+			}
+			// The batch doesn't wrap around the file, MAX_WRITE_SIZE divides FILE_SIZE.
+			this.offset = (runOffset + FileWriter.MAX_WRITE_SIZE) % FILE_SIZE;
+			this.fileChannel.position(runOffset);
+			long left = FileWriter.MAX_WRITE_SIZE;
+			while (left > 0) {
+				left -= this.fileChannel.write(this.run);
+			}
+			return BATCH_CHUNKS;
+		}
+
+		@Override
+		void tearDown() throws Exception {
+			this.fileChannel.close();
+			super.tearDown();
+		}
+	}
+
+	/**
+	 * A copy of every chunk into a mapping of the whole file, as the
+	 * MappedFileWriter does.
+	 */
+	static class MappedWrite extends WriteBenchmark {
+		private FileChannel fileChannel;
+		private MappedByteBuffer mapping;
+
+		MappedWrite() {
+			super("write.mapped");
+		}
+
+		@Override
+		void setUp() throws Exception {
+			super.setUp();
+			this.fileChannel = new RandomAccessFile(FILE_NAME, "rw").getChannel();
+			this.mapping = this.fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+		}
+
+		@Override
+		long run(int thread) {
+			for (ByteBuffer chunk : this.chunks) {
+				ByteBuffer window = this.mapping.duplicate();
+				window.position((int) nextOffset());
+				window.put(chunk.duplicate());
+			}
+			return BATCH_CHUNKS;
+		}
+
+		@Override
+		void tearDown() throws Exception {
+			this.fileChannel.close();
+			super.tearDown();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The metadata's work as the number of ranges grows: encoding the metadata
+ * object, writing a snapshot of it (encode, sync and rename), and extending a
+ * range after every write, whose lookup scans the ranges.
+ *
+ * DownloadableMetadata asks the server for the file's size, so every benchmark
+ * starts a local server which answers with the size of a FILE_SIZE bytes file.
+ */
+class MetadataBenchmarks {
+	private static final long FILE_SIZE = 1024L * 1024 * 1024;
+	private static final int BATCH = 1000;
+
+	/**
+	 * @return
+	 */
+	static List<Benchmark> benchmarks() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (int numberOfRanges : new int[] { 16, 4096 }) {
+			benchmarks.add(new Encode(numberOfRanges));
+			benchmarks.add(new Write(numberOfRanges));
+		}
+		for (int numberOfRanges : new int[] { 1, 16, 256, 4096 }) {
+			benchmarks.add(new ExtendRange(numberOfRanges));
+		}
+		return benchmarks;
+	}
+
+	/**
+	 * The metadata of a new download of numberOfRanges ranges.
+	 */
+	private static abstract class MetadataBenchmark extends Benchmark {
+		final int numberOfRanges;
+		private final String fileName;
+		private HttpServer server;
+		DownloadableMetadata downloadableMetadata;
+
+		/**
+		 * @param name
+		 * @param unit
+		 * @param numberOfRanges
+		 */
+		MetadataBenchmark(String name, String unit, int numberOfRanges) {
+			super(name + "." + numberOfRanges, unit, 1);
+			this.numberOfRanges = numberOfRanges;
+			this.fileName = "metadata" + numberOfRanges + ".bench";
+		}
+
+		@Override
+		void setUp() throws Exception {
+			this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			this.server.createContext("/", exchange -> {
+				exchange.sendResponseHeaders(200, FILE_SIZE);
+				exchange.close();
+			});
+			this.server.start();
+			this.downloadableMetadata = new DownloadableMetadata(
+					"http://127.0.0.1:" + this.server.getAddress().getPort() + "/" + this.fileName,
+					this.numberOfRanges);
+		}
+
+		@Override
+		void tearDown() throws Exception {
+			this.server.stop(0);
+			this.downloadableMetadata.delete();
+			new File(this.downloadableMetadata.getMetadataFileName() + "_temp").delete();
+		}
+	}
+
+	/**
+	 * MetadataFileFormat.encode() of the metadata object.
+	 */
+	static class Encode extends MetadataBenchmark {
+		private volatile int sink;
+
+		/**
+		 * @param numberOfRanges
+		 */
+		Encode(int numberOfRanges) {
+			super("metadata.encode", "encodes/s", numberOfRanges);
+		}
+
+		@Override
+		long run(int thread) throws Exception {
+			this.sink = MetadataFileFormat.encode(this.downloadableMetadata.getDownloadableMetadataObject()).length;
+			return 1;
+		}
+	}
+
+	/**
+	 * writeDownloadableMetadataObjToDisk(): encode, write and sync a temporary
+	 * file, and rename it over the metadata file.
+	 */
+	static class Write extends MetadataBenchmark {
+		/**
+		 * @param numberOfRanges
+		 */
+		Write(int numberOfRanges) {
+			super("metadata.write", "snapshots/s", numberOfRanges);
+		}
+
+		@Override
+		long run(int thread) throws Exception {
+			this.downloadableMetadata.writeDownloadableMetadataObjToDisk();
+			return 1;
+		}
+	}
+
+	/**
+	 * extendRange() of chunks of the last range, which the lookup finds last.
+	 */
+	static class ExtendRange extends MetadataBenchmark {
+		private long rangeStart;
+		private long chunksInRange;
+		private long chunk;
+
+		/**
+		 * @param numberOfRanges
+		 */
+		ExtendRange(int numberOfRanges) {
+			super("metadata.extendRange", "extends/s", numberOfRanges);
+		}
+
+		@Override
+		void setUp() throws Exception {
+			super.setUp();
+			Range lastRange = this.downloadableMetadata.LeftToReadPartialRangeArray[this.numberOfRanges - 1];
+			this.rangeStart = lastRange.getStart();
+			this.chunksInRange = (lastRange.getEnd() - this.rangeStart + 1) / HTTPRangeGetter.CHUNK_SIZE;
+		}
+
+		@Override
+		long run(int thread) {
+			for (int i = 0; i < BATCH; i++) {
+				long chunkStart = this.rangeStart + this.chunk * HTTPRangeGetter.CHUNK_SIZE;
+				this.downloadableMetadata.extendRange(new Range(chunkStart, chunkStart + HTTPRangeGetter.CHUNK_SIZE - 1));
+				this.chunk = (this.chunk + 1) % this.chunksInRange;
+			}
+			return BATCH;
+		}
+	}
+}
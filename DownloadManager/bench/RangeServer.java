@@ -0,0 +1,294 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An HTTP server on localhost which serves a single generated file, with the
+ * Range requests the getters send, and misbehaves like a real server on the
+ * internet would:
+ *
+ * - every connection is limited to bytesPerSecond (0 for no limit), and every
+ * slowEvery-th connection to slowBytesPerSecond instead, to see how the
+ * download copes with slow connections;
+ *
+ * - every response waits latency milliseconds before its headers are sent;
+ *
+ * - every disconnectEvery-th response is cut in the middle of its body, by
+ * closing the connection.
+ *
+ * The file's bytes are a function of their offset, so any file name serves the
+ * same content, and a downloaded file is checked without keeping a copy of it.
+ */
+class RangeServer {
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+	private static final int BLOCK_SIZE = 1024 * 1024;
+	// Paced connections send this much at a time.
+	private static final int SEND_SIZE = 16 * 1024;
+
+	private final long fileSize;
+	private final byte[] block;
+	private long bytesPerSecond;
+	private long latency;
+	private int disconnectEvery;
+	private int slowEvery;
+	private long slowBytesPerSecond;
+	private HttpServer server;
+	private ExecutorService executor;
+	// The index of every connection, by its client port.
+	private final Map<Integer, Integer> connections = new ConcurrentHashMap<Integer, Integer>();
+	private final AtomicInteger responses = new AtomicInteger();
+	private final AtomicInteger disconnects = new AtomicInteger();
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	/**
+	 * @param fileSize
+	 */
+	RangeServer(long fileSize) {
+		this.fileSize = fileSize;
+		this.block = new byte[BLOCK_SIZE];
+		new Random(fileSize).nextBytes(this.block);
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *            the limit of every connection, 0 for none
+	 * @return
+	 */
+	RangeServer withBandwidth(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		return this;
+	}
+
+	/**
+	 * @param latency
+	 *            milliseconds before every response
+	 * @return
+	 */
+	RangeServer withLatency(long latency) {
+		this.latency = latency;
+		return this;
+	}
+
+	/**
+	 * @param disconnectEvery
+	 *            cut every disconnectEvery-th response, 0 for none
+	 * @return
+	 */
+	RangeServer withDisconnects(int disconnectEvery) {
+		this.disconnectEvery = disconnectEvery;
+		return this;
+	}
+
+	/**
+	 * @param slowEvery
+	 *            every slowEvery-th connection is slow, 0 for none
+	 * @param slowBytesPerSecond
+	 *            the limit of the slow connections
+	 * @return
+	 */
+	RangeServer withSlowConnections(int slowEvery, long slowBytesPerSecond) {
+		this.slowEvery = slowEvery;
+		this.slowBytesPerSecond = slowBytesPerSecond;
+		return this;
+	}
+
+	/**
+	 * @return the server's port
+	 * @throws IOException
+	 */
+	int start() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.server.createContext("/", this::respond);
+		this.executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "range-server");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.server.setExecutor(this.executor);
+		this.server.start();
+		return this.server.getAddress().getPort();
+	}
+
+	void stop() {
+		this.server.stop(0);
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * @param exchange
+	 * @throws IOException
+	 */
+	private void respond(HttpExchange exchange) throws IOException {
+		try {
+			if (this.latency > 0)
+				Thread.sleep(this.latency);
+			long start = 0;
+			long end = this.fileSize - 1;
+			int status = 200;
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			if (range != null) {
+				Matcher matcher = RANGE.matcher(range);
+				if (!matcher.matches() || Long.parseLong(matcher.group(1)) >= this.fileSize) {
+					exchange.getResponseHeaders().set("Content-Range", "bytes */" + this.fileSize);
+					exchange.sendResponseHeaders(416, -1);
+					return;
+				}
+				start = Long.parseLong(matcher.group(1));
+				if (!matcher.group(2).isEmpty())
+					end = Math.min(end, Long.parseLong(matcher.group(2)));
+				status = 206;
+				exchange.getResponseHeaders().set("Content-Range",
+						"bytes " + start + "-" + end + "/" + this.fileSize);
+			}
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+			exchange.getResponseHeaders().set("ETag", "\"" + Long.toHexString(this.fileSize) + "\"");
+			long length = end - start + 1;
+			if (exchange.getRequestMethod().equals("HEAD")) {
+				exchange.sendResponseHeaders(status, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+
+			int response = this.responses.incrementAndGet();
+			if (this.disconnectEvery > 0 && response % this.disconnectEvery == 0 && length > 1) {
+				send(exchange, start, length / 2);
+				this.disconnects.incrementAndGet();
+				// The body is shorter than its Content-Length, closing the exchange closes the connection.
+				exchange.getResponseBody().close();
+				return;
+			}
+			send(exchange, start, length);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			// The client closed the connection, e.g. a getter whose range was stolen.
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Sends the file's bytes from offset, paced to the connection's limit.
+	 *
+	 * @param exchange
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void send(HttpExchange exchange, long offset, long length) throws IOException, InterruptedException {
+		long limit = getBandwidth(exchange.getRemoteAddress().getPort());
+		OutputStream body = exchange.getResponseBody();
+		long startTime = System.nanoTime();
+		long sent = 0;
+		while (sent < length) {
+			int blockOffset = (int) ((offset + sent) % BLOCK_SIZE);
+			int size = (int) Math.min(length - sent, Math.min(BLOCK_SIZE - blockOffset, limit > 0 ? SEND_SIZE : BLOCK_SIZE));
+			body.write(content(offset + sent, blockOffset, size), 0, size);
+			sent += size;
+			this.bytesSent.addAndGet(size);
+			if (limit > 0) {
+				long aheadNanos = sent * TimeUnit.SECONDS.toNanos(1) / limit - (System.nanoTime() - startTime);
+				if (aheadNanos > 0)
+					TimeUnit.NANOSECONDS.sleep(aheadNanos);
+			}
+		}
+		body.flush();
+	}
+
+	/**
+	 * @param clientPort
+	 * @return the limit of the connection from the port
+	 */
+	private long getBandwidth(int clientPort) {
+		int connection = this.connections.computeIfAbsent(clientPort, port -> this.connections.size() + 1);
+		if (this.slowEvery > 0 && connection % this.slowEvery == 0)
+			return this.slowBytesPerSecond;
+		return this.bytesPerSecond;
+	}
+
+	/**
+	 * @param offset
+	 * @param blockOffset
+	 *            offset % BLOCK_SIZE
+	 * @param size
+	 *            bytes, up to the end of the block
+	 * @return the bytes of the file from offset
+	 */
+	private byte[] content(long offset, int blockOffset, int size) {
+		byte[] content = new byte[size];
+		// Every block is the random block xor its index, so misplaced blocks are told apart too.
+		byte blockIndex = (byte) (offset / BLOCK_SIZE);
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) (this.block[blockOffset + i] ^ blockIndex);
+		}
+		return content;
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file holds exactly the served content
+	 * @throws IOException
+	 */
+	boolean isServedContent(File file) throws IOException {
+		if (file.length() != this.fileSize)
+			return false;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), BLOCK_SIZE)) {
+			byte[] read = new byte[BLOCK_SIZE];
+			for (long offset = 0; offset < this.fileSize; offset += BLOCK_SIZE) {
+				int size = (int) Math.min(BLOCK_SIZE, this.fileSize - offset);
+				int done = 0;
+				while (done < size) {
+					int n = in.read(read, done, size - done);
+					if (n < 0)
+						return false;
+					done += n;
+				}
+				byte[] expected = content(offset, 0, size);
+				for (int i = 0; i < size; i++) {
+					if (read[i] != expected[i])
+						return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of responses started
+	 */
+	int getResponses() {
+		return this.responses.get();
+	}
+
+	/**
+	 * @return the number of responses cut
+	 */
+	int getDisconnects() {
+		return this.disconnects.get();
+	}
+
+	/**
+	 * @return
+	 */
+	long getBytesSent() {
+		return this.bytesSent.get();
+	}
+}
@@ -0,0 +1,81 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The token buckets under contention: every thread takes a chunk's worth of
+ * tokens at a time from the same buckets, whose rate is high enough that the
+ * takers never wait, so only the cost of taking is measured.
+ */
+class TokenBucketBenchmarks {
+	private static final int BATCH = 1000;
+	// A chunk takes well under a nanosecond to earn, so no take waits.
+	private static final long RATE = 1000000000000000L;
+
+	/**
+	 * @return
+	 */
+	static List<Benchmark> benchmarks() {
+		return Arrays.asList(new Take(1), new Take(4), new HierarchyTake(1), new HierarchyTake(4));
+	}
+
+	/**
+	 * A single TokenBucket shared by all the threads.
+	 */
+	static class Take extends Benchmark {
+		private TokenBucket tokenBucket;
+
+		/**
+		 * @param threads
+		 */
+		Take(int threads) {
+			super("tokenBucket.take.threads" + threads, "takes/s", threads);
+		}
+
+		@Override
+		void setUp() {
+			this.tokenBucket = new TokenBucket(RATE, RATE);
+		}
+
+		@Override
+		long run(int thread) throws InterruptedException {
+			for (int i = 0; i < BATCH; i++) {
+				this.tokenBucket.take(HTTPRangeGetter.CHUNK_SIZE);
+			}
+			return BATCH;
+		}
+	}
+
+	/**
+	 * The global, host and download levels shared by all the threads, and a
+	 * connection level of each thread's own, like the getters of one download.
+	 */
+	static class HierarchyTake extends Benchmark {
+		private TokenBucketHierarchy[] connectionTokenBuckets;
+
+		/**
+		 * @param threads
+		 */
+		HierarchyTake(int threads) {
+			super("tokenBucketHierarchy.take.threads" + threads, "takes/s", threads);
+		}
+
+		@Override
+		void setUp() {
+			TokenBucketHierarchy downloadTokenBucket = new TokenBucketHierarchy(new TokenBucket(RATE, RATE),
+					new TokenBucket(RATE, RATE), new TokenBucket(RATE, RATE));
+			this.connectionTokenBuckets = new TokenBucketHierarchy[getThreads()];
+			for (int thread = 0; thread < getThreads(); thread++) {
+				this.connectionTokenBuckets[thread] = downloadTokenBucket.withLevel(new TokenBucket(RATE, RATE));
+			}
+		}
+
+		@Override
+		long run(int thread) throws InterruptedException {
+			TokenBucketHierarchy tokenBucket = this.connectionTokenBuckets[thread];
+			for (int i = 0; i < BATCH; i++) {
+				tokenBucket.take(HTTPRangeGetter.CHUNK_SIZE);
+			}
+			return BATCH;
+		}
+	}
+}
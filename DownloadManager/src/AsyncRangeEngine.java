@@ -0,0 +1,547 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A non-blocking alternative to the pool of HTTPRangeGetter threads, selected
+ * with -Didcdm.engine=async.
+ *
+ * Every connection is a RangeStream: an asynchronous request of
+ * java.net.http.HttpClient whose body is pushed to it as it arrives. No thread
+ * is blocked on a read, so hundreds or thousands of streams run on a small
+ * fixed number of threads (-Didcdm.engine.threads, default 2).
+ *
+ * Every request goes to the mirror the MirrorSet picks at the time. The streams
+ * share the work with the RangeScheduler, copy the body into
+ * pooled buffers and hand them to the ChunkSink as Chunks, exactly like the
+ * getters do, and race the slow ranges of the end game like them too. The rate limit is enforced by backpressure: a stream asks for
+ * more of the body only once the token buckets earned the bytes it already got.
+ * A sink without room for a chunk (a full queue, a reorder buffer over its
+ * budget) holds a stream back the same way: the chunk is offered instead of put,
+ * and the stream asks for nothing more until the sink calls back, so none of the
+ * engine's threads ever waits for the writer.
+ *
+ * With -Didcdm.http.version=2 the engine is selected too, and its streams are
+ * the concurrent streams of a few HTTP/2 connections (-Didcdm.http2.connections,
+ * default 1) instead of a connection each: a client of its own per connection,
+ * and the streams dealt to them in turn. The first stream of every client goes
+ * alone, so that the rest find its connection open and multiplex on it instead
+ * of racing it with connections of their own. A server which doesn't speak
+ * HTTP/2 (ALPN over https, the h2c upgrade over http) answers over HTTP/1.1,
+ * and the client falls back to a connection per stream by itself.
+ */
+class AsyncRangeEngine {
+	static final String ENGINE_PROPERTY = "idcdm.engine";
+	static final String VERSION_PROPERTY = "idcdm.http.version";
+	private static final int DEFAULT_THREADS = 2;
+	private static final int DEFAULT_HTTP2_CONNECTIONS = 1;
+	// The least SETTINGS_MAX_CONCURRENT_STREAMS a server should allow (RFC 7540).
+	private static final int MAX_STREAMS_PER_CONNECTION = 100;
+	// What became of the bytes a stream handed to the ChunkSink.
+	private static final int CONTINUED = 0;
+	private static final int REFUSED = 1;
+	private static final int ENDED = 2;
+
+	private final MirrorSet mirrorSet;
+	private final RangeScheduler rangeScheduler;
+	private final RetryPolicy retryPolicy;
+	private final ChunkSink chunkSink;
+	private final TokenBucketHierarchy tokenBucket;
+	private final ChunkBufferPool chunkBufferPool;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService timer;
+	private final HttpClient.Version version;
+	private final AtomicBoolean fellBack = new AtomicBoolean();
+
+	/**
+	 * @param mirrorSet
+	 * @param rangeScheduler
+	 * @param chunkSink
+	 * @param tokenBucket
+	 * @param chunkBufferPool
+	 */
+	AsyncRangeEngine(MirrorSet mirrorSet, RangeScheduler rangeScheduler, ChunkSink chunkSink,
+			TokenBucketHierarchy tokenBucket, ChunkBufferPool chunkBufferPool) {
+		this.mirrorSet = mirrorSet;
+		this.rangeScheduler = rangeScheduler;
+		this.retryPolicy = rangeScheduler.getRetryPolicy();
+		this.chunkSink = chunkSink;
+		this.tokenBucket = tokenBucket;
+		this.chunkBufferPool = chunkBufferPool;
+		this.executor = Executors.newFixedThreadPool(Integer.getInteger("idcdm.engine.threads", DEFAULT_THREADS));
+		this.timer = Executors.newSingleThreadScheduledExecutor();
+		this.version = isHttp2Selected() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1;
+	}
+
+	/**
+	 * @return true if the async engine was selected instead of the getter threads
+	 */
+	static boolean isSelected() {
+		return System.getProperty(ENGINE_PROPERTY, "threads").equals("async") || isHttp2Selected();
+	}
+
+	/**
+	 * @return true if the ranges are asked for as HTTP/2 streams
+	 */
+	static boolean isHttp2Selected() {
+		return System.getProperty(VERSION_PROPERTY, "1.1").equals("2");
+	}
+
+	/**
+	 * Opens the streams, they go on by themselves until nothing is left to
+	 * download.
+	 *
+	 * @param numberOfStreams
+	 */
+	void start(int numberOfStreams) {
+		int numberOfClients = 1;
+		if (this.version == HttpClient.Version.HTTP_2) {
+			// A server may refuse more streams on a connection, more of them are opened then.
+			numberOfClients = Math.max(
+					Integer.getInteger("idcdm.http2.connections", DEFAULT_HTTP2_CONNECTIONS),
+					(numberOfStreams + MAX_STREAMS_PER_CONNECTION - 1) / MAX_STREAMS_PER_CONNECTION);
+			numberOfClients = Math.max(1, Math.min(numberOfClients, numberOfStreams));
+		}
+		HttpClient[] httpClients = new HttpClient[numberOfClients];
+		CompletableFuture<?>[] connected = new CompletableFuture<?>[numberOfClients];
+		for (int client = 0; client < numberOfClients; client++) {
+			httpClients[client] = HttpClient.newBuilder().executor(this.executor).version(this.version)
+					.followRedirects(HttpClient.Redirect.NORMAL)
+					.connectTimeout(Duration.ofMillis(HTTPRangeGetter.CONNECT_TIMEOUT)).build();
+			connected[client] = new CompletableFuture<Void>();
+		}
+		for (int stream = 0; stream < numberOfStreams; stream++) {
+			int client = stream % numberOfClients;
+			RangeStream rangeStream = new RangeStream(httpClients[client], connected[client], this.tokenBucket
+					.withLevel(TokenBucketHierarchy.level(TokenBucketHierarchy.CONNECTION, null)));
+			if (stream < numberOfClients || this.version == HttpClient.Version.HTTP_1_1)
+				rangeStream.nextRange();
+			else
+				// Once the first stream of the client knows what its connection speaks.
+				connected[client].thenRun(rangeStream::nextRange);
+		}
+	}
+
+	/**
+	 *
+	 */
+	void shutdown() {
+		this.timer.shutdownNow();
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * One connection downloading ranges one after the other.
+	 */
+	private class RangeStream implements HttpResponse.BodySubscriber<Void> {
+		private final HttpClient httpClient;
+		// Completed by the first response, or failure, of the client.
+		private final CompletableFuture<?> connected;
+		private final TokenBucketHierarchy connectionTokenBucket;
+		// The connection's buckets with the host level's bucket of the request's mirror.
+		private TokenBucketHierarchy requestTokenBucket;
+		private final ConnectionMetrics connectionMetrics;
+		private int rangeIndexer = -1;
+		// The offset of the next byte of the body.
+		private long offset;
+		private ByteBuffer chunk_buffer;
+		private Flow.Subscription subscription;
+		private CompletableFuture<Void> body;
+		// The bytes of the body not copied yet, kept while the sink has no room for a chunk of them.
+		private List<ByteBuffer> buffers;
+		private int bufferIndex;
+		private long bytesReceived;
+		// A chunk claimed from the range which the sink refused, offered again once it has room.
+		private Chunk pendingChunk;
+		private boolean pendingChunkEndsRead;
+		// Set when the body ended while a chunk was pending.
+		private boolean completed;
+		private volatile long lastActivity;
+		private volatile boolean waitingForTokens;
+		private volatile boolean waitingForSink;
+		// Failures in a row without progress, and the offset the range was at.
+		private int attempt;
+		private long failedAt = -1;
+
+		/**
+		 * @param httpClient
+		 * @param connected
+		 * @param connectionTokenBucket
+		 */
+		RangeStream(HttpClient httpClient, CompletableFuture<?> connected, TokenBucketHierarchy connectionTokenBucket) {
+			this.httpClient = httpClient;
+			this.connected = connected;
+			this.connectionTokenBucket = connectionTokenBucket;
+			this.connectionMetrics = DownloadMetrics.get().newConnection();
+		}
+
+		/**
+		 * Leaves the current range, if any, and asks for the next one.
+		 */
+		void nextRange() {
+			if (this.rangeIndexer != -1)
+				rangeScheduler.giveBack(this.rangeIndexer);
+			this.rangeIndexer = rangeScheduler.getMissingRange();
+			if (this.rangeIndexer != -1) {
+				sendRequest();
+				return;
+			}
+			// Nothing to ask for, the client's other streams needn't wait for this one.
+			this.connected.complete(null);
+			if (rangeScheduler.hasRacesLeft())
+				// Ask again once the last ranges were measured, one of them may need a race.
+				timer.schedule(this::nextRange, RangeScheduler.RATE_WINDOW, TimeUnit.NANOSECONDS);
+			else
+				DownloadMetrics.get().closeConnection(this.connectionMetrics);
+		}
+
+		/**
+		 * Requests the part of the range which wasn't read yet, from the mirror
+		 * the MirrorSet picks.
+		 */
+		private void sendRequest() {
+			Range range = rangeScheduler.getRange(this.rangeIndexer);
+			if (range.getLength() <= 0) {
+				nextRange();
+				return;
+			}
+			this.offset = range.getStart();
+			this.completed = false;
+			this.body = new CompletableFuture<Void>();
+			MirrorSet.Mirror mirror = mirrorSet.acquire();
+			this.requestTokenBucket = this.connectionTokenBucket
+					.forHost(HttpRangeConnection.getHostKey(mirror.getUrl()));
+			long requestStart = System.nanoTime();
+			HttpRequest request = HttpRequest.newBuilder(URI.create(mirror.getUrl().toString()))
+					.timeout(Duration.ofMillis(HTTPRangeGetter.CONNECT_TIMEOUT + HTTPRangeGetter.READ_TIMEOUT))
+					.header("Range", "bytes=" + range.getStart() + "-" + range.getEnd()).build();
+			this.httpClient.sendAsync(request, responseInfo -> {
+				if (responseInfo.version() != version && !fellBack.getAndSet(true))
+					System.err.println("The server doesn't speak HTTP/2, every stream takes a connection of its own");
+				this.connected.complete(null);
+				int status = responseInfo.statusCode();
+				String mismatch = mirrorSet.getMismatch(status,
+						responseInfo.headers().firstValue("Content-Range").orElse(null),
+						status == 200 ? responseInfo.headers().firstValueAsLong("Content-Length").orElse(-1) : -1,
+						responseInfo.headers().firstValue("ETag").orElse(null));
+				IOException failure = null;
+				if (mismatch != null) {
+					// The last mirror left has another file, no retry will fix that.
+					failure = mirrorSet.drop(mirror, mismatch) ? new IOException(mismatch + " from " + mirror.getUrl())
+							: new RetryPolicy.FatalException(mismatch + " from " + mirror.getUrl());
+				} else if (status != 206 && !(status == 200 && range.getStart() == 0)) {
+					// A server which ignores the range sends the whole file, good only from its start.
+					failure = new IOException("HTTP " + status + " from " + mirror.getUrl());
+				}
+				if (failure != null) {
+					this.body.completeExceptionally(failure);
+					return HttpResponse.BodySubscribers.replacing(null);
+				}
+				return this;
+			}).thenCompose(response -> this.body).whenComplete((result, error) -> {
+				this.connected.complete(null);
+				mirrorSet.release(mirror);
+				if (error == null) {
+					mirrorSet.record(mirror, this.offset - range.getStart(), System.nanoTime() - requestStart);
+					nextRange();
+				} else {
+					Throwable cause = error instanceof CompletionException && error.getCause() != null
+							? error.getCause() : error;
+					IOException failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+					// Leaving the range for the stream's front is no failure of the mirror.
+					boolean frontIdle = failure instanceof ReorderBuffer.FrontIdleException;
+					if (!frontIdle)
+						mirrorSet.fail(mirror, failure);
+					if (frontIdle || rangeScheduler.isRaced(this.rangeIndexer)) {
+						// The other stream of a raced range goes on with it, and the front left idle
+						// which the stream waits for is handed out first.
+						this.attempt = 0;
+						this.failedAt = -1;
+						nextRange();
+						return;
+					}
+					this.connectionMetrics.retry();
+					// The scheduler knows the exact offset handed over so far, the retry
+					// asks for the rest of the range.
+					long offset = rangeScheduler.getRange(this.rangeIndexer).getStart();
+					this.attempt = offset == this.failedAt ? this.attempt + 1 : 1;
+					this.failedAt = offset;
+					long delay = retryPolicy.getRetryDelay(failure, this.attempt);
+					if (delay >= 0)
+						timer.schedule(this::sendRequest, delay, TimeUnit.MILLISECONDS);
+					else
+						DownloadMetrics.get().closeConnection(this.connectionMetrics);
+				}
+			});
+		}
+
+		@Override
+		public CompletionStage<Void> getBody() {
+			return this.body;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			this.lastActivity = System.nanoTime();
+			watchForStall(this.body);
+			subscription.request(1);
+		}
+
+		@Override
+		public synchronized void onNext(List<ByteBuffer> buffers) {
+			// Data still on its way when the body was cancelled, it will be read again.
+			if (this.body.isDone())
+				return;
+			this.lastActivity = System.nanoTime();
+			this.buffers = buffers;
+			this.bufferIndex = 0;
+			this.bytesReceived = 0;
+			for (ByteBuffer buffer : buffers) {
+				this.bytesReceived += buffer.remaining();
+			}
+			copyBuffers();
+		}
+
+		/**
+		 * Copies the body's buffers into pooled chunks and hands them on, then asks
+		 * for more of the body. Stops, without asking for more, if the sink has no
+		 * room for a chunk: sinkReady goes on from there.
+		 */
+		private void copyBuffers() {
+			for (; this.bufferIndex < this.buffers.size(); this.bufferIndex++) {
+				ByteBuffer buffer = this.buffers.get(this.bufferIndex);
+				while (buffer.hasRemaining()) {
+					if (this.chunk_buffer == null)
+						this.chunk_buffer = chunkBufferPool.borrow();
+					int length = Math.min(buffer.remaining(), this.chunk_buffer.remaining());
+					ByteBuffer slice = buffer.slice();
+					slice.limit(length);
+					this.chunk_buffer.put(slice);
+					buffer.position(buffer.position() + length);
+					if (!this.chunk_buffer.hasRemaining()) {
+						int emitted = emitChunk();
+						if (emitted == REFUSED) {
+							keepBuffers();
+							return;
+						}
+						if (emitted == ENDED) {
+							// The rest of the range was stolen by another getter, or the stream lost the race for it.
+							this.subscription.cancel();
+							this.body.complete(null);
+							return;
+						}
+					}
+				}
+			}
+			this.buffers = null;
+			requestWhenEarned();
+		}
+
+		/**
+		 * Asks for more of the body once the token buckets gave what was received,
+		 * tried again whenever a level refused it.
+		 */
+		private synchronized void requestWhenEarned() {
+			long delay = this.requestTokenBucket.tryReserve(this.bytesReceived);
+			if (delay == 0) {
+				this.waitingForTokens = false;
+				this.subscription.request(1);
+			} else {
+				this.waitingForTokens = true;
+				DownloadMetrics.get().tokenWait(delay);
+				timer.schedule(() -> {
+					this.lastActivity = System.nanoTime();
+					requestWhenEarned();
+				}, delay, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		/**
+		 * Copies the bytes of the body not copied yet, the client may reuse its
+		 * buffers once onNext returns.
+		 */
+		private void keepBuffers() {
+			int bytesLeft = 0;
+			for (int index = this.bufferIndex; index < this.buffers.size(); index++) {
+				bytesLeft += this.buffers.get(index).remaining();
+			}
+			ByteBuffer copy = ByteBuffer.allocate(bytesLeft);
+			for (int index = this.bufferIndex; index < this.buffers.size(); index++) {
+				copy.put(this.buffers.get(index));
+			}
+			copy.flip();
+			this.buffers = List.of(copy);
+			this.bufferIndex = 0;
+		}
+
+		@Override
+		public synchronized void onError(Throwable throwable) {
+			if (this.pendingChunk == null)
+				emitChunk();
+			// The bytes the sink didn't take are read again by the retry.
+			dropPendingChunk();
+			this.body.completeExceptionally(throwable);
+		}
+
+		@Override
+		public synchronized void onComplete() {
+			this.completed = true;
+			if (this.pendingChunk == null)
+				completeBody();
+		}
+
+		/**
+		 * Hands the last bytes of the body on, and completes it unless the sink has
+		 * no room for them yet.
+		 */
+		private void completeBody() {
+			if (emitChunk() != REFUSED)
+				this.body.complete(null);
+		}
+
+		/**
+		 * The sink has room again, called on the thread which made it.
+		 */
+		private void sinkReady() {
+			try {
+				executor.execute(this::resume);
+			} catch (RejectedExecutionException e) {
+				// The engine was shut down, the download is over.
+			}
+		}
+
+		/**
+		 * Offers the pending chunk again, and goes on with the body if the sink
+		 * takes it.
+		 */
+		private synchronized void resume() {
+			if (this.pendingChunk == null)
+				return;
+			this.lastActivity = System.nanoTime();
+			if (this.body.isDone()) {
+				// Failed meanwhile, e.g. by the stall watch.
+				dropPendingChunk();
+				return;
+			}
+			int emitted = offerPendingChunk();
+			if (emitted == REFUSED)
+				return;
+			if (emitted == ENDED) {
+				this.subscription.cancel();
+				this.body.complete(null);
+				return;
+			}
+			if (this.buffers != null) {
+				copyBuffers();
+				if (this.pendingChunk != null || this.body.isDone())
+					return;
+			}
+			if (this.completed)
+				completeBody();
+		}
+
+		/**
+		 * Claims the buffered bytes, as much of them as still belong to the range
+		 * and weren't claimed by the other stream of a raced range, and offers them
+		 * to the ChunkSink.
+		 *
+		 * @return CONTINUED if the sink took them, REFUSED if it has no room for
+		 *         them yet, ENDED if the range ended before the buffered bytes, if
+		 *         the other stream of the range claimed all of them, or if the sink
+		 *         failed (and so did the body)
+		 */
+		private int emitChunk() {
+			if (this.chunk_buffer == null)
+				return CONTINUED;
+			ByteBuffer buffer = this.chunk_buffer;
+			this.chunk_buffer = null;
+			buffer.flip();
+			long readEnd = this.offset + buffer.remaining();
+			long chunkOffset = rangeScheduler.claim(this.rangeIndexer, this.offset, buffer);
+			int bytesClaimed = buffer.remaining();
+			this.offset = readEnd;
+			if (bytesClaimed == 0) {
+				chunkBufferPool.giveBack(buffer);
+				return ENDED;
+			}
+			this.pendingChunk = new Chunk(buffer, chunkOffset, bytesClaimed);
+			this.pendingChunkEndsRead = chunkOffset + bytesClaimed == readEnd;
+			return offerPendingChunk();
+		}
+
+		/**
+		 * @return like emitChunk
+		 */
+		private int offerPendingChunk() {
+			Chunk chunk = this.pendingChunk;
+			try {
+				if (!chunkSink.offer(chunk, this::sinkReady)) {
+					this.waitingForSink = true;
+					return REFUSED;
+				}
+			} catch (IOException e) {
+				// The chunk isn't on its way to the file, the retry reads it again.
+				this.pendingChunk = null;
+				this.waitingForSink = false;
+				rangeScheduler.unclaim(this.rangeIndexer, chunk.getOffset());
+				this.subscription.cancel();
+				this.body.completeExceptionally(e);
+				return ENDED;
+			}
+			this.pendingChunk = null;
+			this.waitingForSink = false;
+			this.connectionMetrics.addBytes(chunk.getSize_in_bytes());
+			return this.pendingChunkEndsRead ? CONTINUED : ENDED;
+		}
+
+		/**
+		 * Gives the bytes of the pending chunk back to the range, the sink never
+		 * took them.
+		 */
+		private void dropPendingChunk() {
+			if (this.pendingChunk == null)
+				return;
+			rangeScheduler.unclaim(this.rangeIndexer, this.pendingChunk.getOffset());
+			chunkBufferPool.giveBack(this.pendingChunk.getData());
+			this.pendingChunk = null;
+			this.waitingForSink = false;
+		}
+
+		/**
+		 * Fails the body if no data arrives for READ_TIMEOUT while more of it was
+		 * asked for, like the read timeout of the getter threads.
+		 *
+		 * @param watchedBody
+		 */
+		private void watchForStall(CompletableFuture<Void> watchedBody) {
+			timer.schedule(() -> {
+				if (watchedBody.isDone())
+					return;
+				if (!this.waitingForTokens && !this.waitingForSink && System.nanoTime() - this.lastActivity > TimeUnit.MILLISECONDS
+						.toNanos(HTTPRangeGetter.READ_TIMEOUT)) {
+					this.subscription.cancel();
+					executor.execute(() -> onError(new HttpTimeoutException("Read timed out")));
+				} else {
+					watchForStall(watchedBody);
+				}
+			}, HTTPRangeGetter.READ_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * One file of a DownloadBatch. It has its own metadata (so every file of the
+ * batch resumes by itself), RangeScheduler, writer and mirrors,
+ * while the connections, buffers and bandwidth are shared with the whole batch.
+ */
+class BatchDownload {
+	private final String url;
+	private final MirrorSet mirrorSet;
+	private final int weight;
+	private final String hostKey;
+	private DownloadableMetadata downloadableMetadata;
+	private RangeScheduler rangeScheduler;
+	private ChunkSink chunkSink;
+	private Runnable fileWriter;
+	private TokenBucketHierarchy tokenBucket;
+	// Guarded by the DownloadBatch.
+	private int activeConnections;
+
+	/**
+	 * @param urls
+	 *            the file's URL, followed by its mirrors
+	 * @param weight
+	 *            the file's share of the connections compared to the other files
+	 * @throws MalformedURLException
+	 */
+	BatchDownload(List<String> urls, int weight) throws MalformedURLException {
+		this.mirrorSet = new MirrorSet(urls);
+		this.url = this.mirrorSet.getPrimaryUrl();
+		this.weight = weight;
+		// The per-host limit of the batch counts the connections against the primary URL's server.
+		this.hostKey = HttpRangeConnection.getHostKey(new URL(this.url));
+	}
+
+	/**
+	 * Asks the server for the file's size and sets up its download, resumed from
+	 * its metadata file if there is one. A new download starts as a single range,
+	 * the RangeScheduler splits it once other connections are free for it, so
+	 * only files larger than 2 * RangeScheduler.MIN_STEAL_SIZE are ever split.
+	 *
+	 * @param tokenBucket
+	 *            the buckets shared with the other files, the global one and the
+	 *            host level's bucket of every server
+	 * @param chunkBufferPool
+	 * @throws Exception
+	 */
+	void open(TokenBucketHierarchy tokenBucket, ChunkBufferPool chunkBufferPool) throws Exception {
+		this.downloadableMetadata = DownloadableMetadata.open(this.url, 1);
+		this.mirrorSet.validate(this.downloadableMetadata.getFileSize(),
+				this.downloadableMetadata.getDownloadableMetadataObject().getETag());
+		this.downloadableMetadata.writeDownloadableMetadataObjToDisk();
+		if (PieceHasher.isSelected())
+			this.downloadableMetadata
+					.setPieceHasher(new PieceHasher(this.downloadableMetadata, PieceHasher.getPieceSize(), false));
+		this.rangeScheduler = new RangeScheduler(this.downloadableMetadata);
+		if (MappedFileWriter.isSelected()) {
+			MappedFileWriter mappedFileWriter = new MappedFileWriter(this.downloadableMetadata, chunkBufferPool, false);
+			this.chunkSink = mappedFileWriter;
+			this.fileWriter = mappedFileWriter;
+		} else if (StripedFileWriter.getNumberOfWriters() > 1) {
+			StripedFileWriter stripedFileWriter = new StripedFileWriter(this.downloadableMetadata,
+					StripedFileWriter.getNumberOfWriters(), chunkBufferPool, false);
+			this.chunkSink = stripedFileWriter;
+			this.fileWriter = stripedFileWriter;
+		} else {
+			ChunkQueue outQueue = new ChunkQueue();
+			this.chunkSink = outQueue;
+			this.fileWriter = new FileWriter(this.downloadableMetadata, outQueue, chunkBufferPool, false);
+		}
+		this.tokenBucket = tokenBucket
+				.withLevel(TokenBucketHierarchy.level(TokenBucketHierarchy.DOWNLOAD, null));
+	}
+
+	/**
+	 * @param rangeIndexer
+	 *            a range handed out by the file's RangeScheduler
+	 * @param chunkBufferPool
+	 * @param httpConnectionPool
+	 * @return a getter which downloads only that range
+	 */
+	HTTPRangeGetter newRangeGetter(int rangeIndexer, ChunkBufferPool chunkBufferPool,
+			HttpConnectionPool httpConnectionPool) {
+		return new HTTPRangeGetter(this.mirrorSet, this.rangeScheduler, rangeIndexer, this.chunkSink, this.tokenBucket,
+				chunkBufferPool, httpConnectionPool);
+	}
+
+	/**
+	 * @return
+	 */
+	String getUrl() {
+		return this.url;
+	}
+
+	/**
+	 * @return the name of the downloaded file
+	 */
+	String getFilename() {
+		return DownloadableMetadata.getName(this.url);
+	}
+
+	/**
+	 * @return
+	 */
+	int getWeight() {
+		return this.weight;
+	}
+
+	/**
+	 * @return
+	 */
+	String getHostKey() {
+		return this.hostKey;
+	}
+
+	/**
+	 * @return
+	 */
+	DownloadableMetadata getDownloadableMetadata() {
+		return this.downloadableMetadata;
+	}
+
+	/**
+	 * @return
+	 */
+	RangeScheduler getRangeScheduler() {
+		return this.rangeScheduler;
+	}
+
+	/**
+	 * @return the file's FileWriter, StripedFileWriter, or the MappedFileWriter
+	 *         which waits for the file to complete
+	 */
+	Runnable getFileWriter() {
+		return this.fileWriter;
+	}
+
+	/**
+	 * @return
+	 */
+	int getActiveConnections() {
+		return this.activeConnections;
+	}
+
+	/**
+	 * @param activeConnections
+	 */
+	void setActiveConnections(int activeConnections) {
+		this.activeConnections = activeConnections;
+	}
+}
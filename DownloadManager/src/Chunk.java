@@ -1,20 +1,25 @@
+import java.nio.ByteBuffer;
+
 /**
  * A chunk of data file
  *
  * Contains an offset, bytes of data, and size
+ *
+ * The data buffer is borrowed from a ChunkBufferPool and handed over without
+ * copying, the chunk's writer gives it back to the pool once it is on disk.
  */
 class Chunk {
-    private byte[] data;
+    private ByteBuffer data;
     private long offset;
     private int size_in_bytes;
 
-    Chunk(byte[] data, long offset, int size_in_bytes) {
-        this.data = data != null ? data.clone() : null;
+    Chunk(ByteBuffer data, long offset, int size_in_bytes) {
+        this.data = data;
         this.offset = offset;
         this.size_in_bytes = size_in_bytes;
     }
 
-    byte[] getData() {
+    ByteBuffer getData() {
         return data;
     }
 
@@ -0,0 +1,63 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of direct buffers of HTTPRangeGetter.CHUNK_SIZE bytes.
+ *
+ * The getters borrow a buffer for every read instead of allocating a new
+ * array, and the FileWriter gives it back after writing it. When the pool is
+ * empty a new buffer is allocated, and buffers given back to a full pool are
+ * left to the garbage collector, so the pool never holds more than its
+ * capacity.
+ *
+ * The capacity is taken from the budget of the chunks waiting for the writer,
+ * plus a buffer being read into per connection: every buffer which may be out
+ * at once is kept, so a writer which holds the getters back doesn't make them
+ * allocate new direct buffers once the old ones come back.
+ */
+class ChunkBufferPool {
+	private final BlockingQueue<ByteBuffer> freeBuffers;
+
+	/**
+	 * @param capacity
+	 */
+	ChunkBufferPool(int capacity) {
+		this.freeBuffers = new ArrayBlockingQueue<ByteBuffer>(capacity);
+	}
+
+	/**
+	 * @param budget
+	 *            the bytes of chunks which may wait for the writer
+	 * @param numberOfConnections
+	 */
+	ChunkBufferPool(long budget, int numberOfConnections) {
+		this((int) Math.min(Integer.MAX_VALUE,
+				(budget + HTTPRangeGetter.CHUNK_SIZE - 1) / HTTPRangeGetter.CHUNK_SIZE + numberOfConnections));
+	}
+
+	/**
+	 * A pool for the writer queue's budget and one connection.
+	 */
+	ChunkBufferPool() {
+		this(Long.getLong(ChunkQueue.BUDGET_PROPERTY, ChunkQueue.DEFAULT_BUDGET), 1);
+	}
+
+	/**
+	 * @return an empty buffer, ready to be read into
+	 */
+	ByteBuffer borrow() {
+		ByteBuffer buffer = this.freeBuffers.poll();
+		if (buffer == null)
+			buffer = ByteBuffer.allocateDirect(HTTPRangeGetter.CHUNK_SIZE);
+		return buffer;
+	}
+
+	/**
+	 * @param buffer
+	 */
+	void giveBack(ByteBuffer buffer) {
+		buffer.clear();
+		this.freeBuffers.offer(buffer);
+	}
+}
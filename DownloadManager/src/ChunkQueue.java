@@ -0,0 +1,256 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The queue of chunks between the getters and the FileWriter, bounded by the
+ * bytes it holds rather than by the number of chunks.
+ *
+ * When the disk is slower than the network the queue fills up to its budget,
+ * and then a getter handing it a chunk waits until the FileWriter takes enough
+ * of them. A waiting getter doesn't read its connection, so the server is
+ * slowed down by TCP instead of the chunks piling up in the heap. The async
+ * engine's streams don't wait: their offer is refused, and they stop asking for
+ * more of their bodies until the writer makes room.
+ *
+ * The budget is set by -Didcdm.queue.budget (bytes, default 16MB). The peak of
+ * the queue and the time the getters waited for it tell whether the budget (or
+ * the disk) is the bottleneck.
+ */
+class ChunkQueue implements ChunkSink {
+	static final String BUDGET_PROPERTY = "idcdm.queue.budget";
+	static final long DEFAULT_BUDGET = 16 * 1024 * 1024;
+
+	private final long budget;
+	private final ArrayDeque<Chunk> chunks;
+	private long bytesQueued;
+	private long peakBytesQueued;
+	private long blockedPuts;
+	private long blockedNanos;
+	private boolean closed;
+	// Run once the writer makes room, for the offers refused meanwhile.
+	private List<Runnable> readyListeners = new ArrayList<Runnable>();
+	private long refusedSince;
+
+	ChunkQueue() {
+		this(Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET));
+	}
+
+	/**
+	 * @param budget
+	 *            the most bytes the queue holds. A single chunk larger than the
+	 *            budget is still let in when the queue is empty.
+	 */
+	ChunkQueue(long budget) {
+		this.budget = budget;
+		this.chunks = new ArrayDeque<Chunk>();
+	}
+
+	/**
+	 * Adds the chunk, waiting first while it would take the queue over its
+	 * budget.
+	 *
+	 * @param chunk
+	 * @throws IOException
+	 *             if the queue is closed, its writer takes no more chunks
+	 * @throws InterruptedException
+	 */
+	@Override
+	public synchronized void put(Chunk chunk) throws IOException, InterruptedException {
+		int size = chunk.getSize_in_bytes();
+		if (this.bytesQueued > 0 && this.bytesQueued + size > this.budget) {
+			long waitStart = System.nanoTime();
+			try {
+				while (!this.closed && this.bytesQueued > 0 && this.bytesQueued + size > this.budget) {
+					wait();
+				}
+			} finally {
+				long blocked = System.nanoTime() - waitStart;
+				this.blockedPuts++;
+				this.blockedNanos += blocked;
+				DownloadMetrics.get().queueBlocked(blocked);
+			}
+		}
+		add(chunk);
+	}
+
+	/**
+	 * Adds the chunk if it fits in the budget, otherwise has whenReady run once
+	 * the writer takes some of the chunks.
+	 *
+	 * @param chunk
+	 * @param whenReady
+	 * @return
+	 * @throws IOException
+	 *             if the queue is closed, its writer takes no more chunks
+	 */
+	@Override
+	public synchronized boolean offer(Chunk chunk, Runnable whenReady) throws IOException {
+		if (!this.closed && this.bytesQueued > 0 && this.bytesQueued + chunk.getSize_in_bytes() > this.budget) {
+			if (this.readyListeners.isEmpty())
+				this.refusedSince = System.nanoTime();
+			this.readyListeners.add(whenReady);
+			return false;
+		}
+		add(chunk);
+		return true;
+	}
+
+	/**
+	 * @param chunk
+	 * @throws IOException
+	 *             if the queue is closed
+	 */
+	private void add(Chunk chunk) throws IOException {
+		if (this.closed)
+			throw new IOException("The writer stopped");
+		int size = chunk.getSize_in_bytes();
+		this.chunks.addLast(chunk);
+		this.bytesQueued += size;
+		this.peakBytesQueued = Math.max(this.peakBytesQueued, this.bytesQueued);
+		DownloadMetrics.get().queued(1, size);
+		notifyAll();
+	}
+
+	/**
+	 * @return the first chunk, waiting for one if the queue is empty, or null
+	 *         once the queue is closed and empty
+	 * @throws InterruptedException
+	 */
+	Chunk take() throws InterruptedException {
+		Chunk chunk;
+		List<Runnable> listeners;
+		synchronized (this) {
+			while (this.chunks.isEmpty()) {
+				if (this.closed)
+					return null;
+				wait();
+			}
+			chunk = this.chunks.removeFirst();
+			this.bytesQueued -= chunk.getSize_in_bytes();
+			DownloadMetrics.get().queued(-1, -chunk.getSize_in_bytes());
+			notifyAll();
+			listeners = takeReadyListeners();
+		}
+		runAll(listeners);
+		return chunk;
+	}
+
+	/**
+	 * Moves the chunks in the queue, up to maxChunks of them, to the given
+	 * collection without waiting.
+	 *
+	 * @param collection
+	 * @param maxChunks
+	 * @return the number of chunks moved
+	 */
+	int drainTo(Collection<Chunk> collection, int maxChunks) {
+		int moved = 0;
+		List<Runnable> listeners = null;
+		synchronized (this) {
+			long bytesMoved = 0;
+			while (moved < maxChunks && !this.chunks.isEmpty()) {
+				Chunk chunk = this.chunks.removeFirst();
+				bytesMoved += chunk.getSize_in_bytes();
+				collection.add(chunk);
+				moved++;
+			}
+			if (moved > 0) {
+				this.bytesQueued -= bytesMoved;
+				DownloadMetrics.get().queued(-moved, -bytesMoved);
+				notifyAll();
+				listeners = takeReadyListeners();
+			}
+		}
+		if (listeners != null)
+			runAll(listeners);
+		return moved;
+	}
+
+	/**
+	 * Tells the writer waiting for chunks that no more of them will come, and the
+	 * getters that it takes no more of them.
+	 */
+	void close() {
+		List<Runnable> listeners;
+		synchronized (this) {
+			this.closed = true;
+			notifyAll();
+			listeners = takeReadyListeners();
+		}
+		runAll(listeners);
+	}
+
+	/**
+	 * Takes the listeners of the refused offers, counting their wait like the
+	 * waits of put. Called with the queue's lock held, the listeners run after it
+	 * is released.
+	 *
+	 * @return
+	 */
+	private List<Runnable> takeReadyListeners() {
+		if (this.readyListeners.isEmpty())
+			return Collections.emptyList();
+		List<Runnable> listeners = this.readyListeners;
+		this.readyListeners = new ArrayList<Runnable>();
+		long blocked = System.nanoTime() - this.refusedSince;
+		this.blockedPuts++;
+		this.blockedNanos += blocked;
+		DownloadMetrics.get().queueBlocked(blocked);
+		return listeners;
+	}
+
+	/**
+	 * @param listeners
+	 */
+	private static void runAll(List<Runnable> listeners) {
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * @return the number of chunks in the queue
+	 */
+	synchronized int size() {
+		return this.chunks.size();
+	}
+
+	/**
+	 * @return the bytes of the chunks in the queue
+	 */
+	synchronized long getBytesQueued() {
+		return this.bytesQueued;
+	}
+
+	/**
+	 * @return the most bytes the queue held at once
+	 */
+	synchronized long getPeakBytesQueued() {
+		return this.peakBytesQueued;
+	}
+
+	/**
+	 * @return
+	 */
+	long getBudget() {
+		return this.budget;
+	}
+
+	/**
+	 * @return the number of chunks whose getter had to wait for room
+	 */
+	synchronized long getBlockedPuts() {
+		return this.blockedPuts;
+	}
+
+	/**
+	 * @return the total time the getters waited for room, in nanoseconds
+	 */
+	synchronized long getBlockedNanos() {
+		return this.blockedNanos;
+	}
+}
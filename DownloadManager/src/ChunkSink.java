@@ -0,0 +1,34 @@
+import java.io.IOException;
+
+/**
+ * Where the getters hand the chunks they downloaded: the FileWriter's queue,
+ * or a MappedFileWriter which copies them into the file right away.
+ */
+interface ChunkSink {
+
+	/**
+	 * Takes a chunk, and with it the ownership of its buffer. The chunk's bytes
+	 * are never lost, even if the method throws.
+	 *
+	 * @param chunk
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void put(Chunk chunk) throws IOException, InterruptedException;
+
+	/**
+	 * Takes a chunk like put, if it can without waiting, for the async engine
+	 * whose threads must not wait. If it can't, the caller keeps the chunk and
+	 * stops reading until whenReady runs, then offers it again.
+	 *
+	 * @param chunk
+	 * @param whenReady
+	 *            run once the sink may have room for the chunk, on the thread
+	 *            which made the room, so it should only hand the offer over to
+	 *            another thread
+	 * @return true if the sink took the chunk
+	 * @throws IOException
+	 *             like put
+	 */
+	boolean offer(Chunk chunk, Runnable whenReady) throws IOException;
+}
@@ -0,0 +1,80 @@
+/**
+ * The counters of one connection (an HTTPRangeGetter or a stream of the async
+ * engine), updated by the connection's own thread.
+ */
+class ConnectionMetrics implements ConnectionMetricsMBean {
+	// The throughput is sampled at most every SAMPLE_NANOS, the sample's weight in the average.
+	private static final long SAMPLE_NANOS = 100_000_000;
+	private static final double ALPHA = 0.3;
+
+	private final int id;
+	private volatile long bytes;
+	private volatile long bytesPerSecond;
+	private volatile long retries;
+	private long sampleStart;
+	private long sampleBytes;
+
+	/**
+	 * @param id
+	 */
+	ConnectionMetrics(int id) {
+		this.id = id;
+		this.sampleStart = System.nanoTime();
+	}
+
+	/**
+	 * @return
+	 */
+	int getId() {
+		return this.id;
+	}
+
+	/**
+	 * Counts bytes the connection downloaded.
+	 *
+	 * @param bytes
+	 */
+	synchronized void addBytes(long bytes) {
+		this.bytes += bytes;
+		DownloadMetrics.get().addBytes(bytes);
+		long now = System.nanoTime();
+		if (now - this.sampleStart >= SAMPLE_NANOS) {
+			long sample = (long) ((this.bytes - this.sampleBytes) * 1e9 / (now - this.sampleStart));
+			this.bytesPerSecond = this.bytesPerSecond == 0 ? sample
+					: (long) (ALPHA * sample + (1 - ALPHA) * this.bytesPerSecond);
+			this.sampleStart = now;
+			this.sampleBytes = this.bytes;
+		}
+	}
+
+	/**
+	 * Counts a retry after a failure.
+	 */
+	synchronized void retry() {
+		this.retries++;
+		DownloadMetrics.get().retry();
+	}
+
+	@Override
+	public long getBytes() {
+		return this.bytes;
+	}
+
+	@Override
+	public long getBytesPerSecond() {
+		return this.bytesPerSecond;
+	}
+
+	@Override
+	public long getRetries() {
+		return this.retries;
+	}
+
+	/**
+	 * @return the counters as a JSON object
+	 */
+	String toJson() {
+		return String.format("{\"id\":%d,\"bytes\":%d,\"bytesPerSecond\":%d,\"retries\":%d}", this.id, this.bytes,
+				this.bytesPerSecond, this.retries);
+	}
+}
@@ -0,0 +1,21 @@
+/**
+ * The JMX view of a ConnectionMetrics, registered as
+ * idcdm:type=Connection,id=N while the connection runs.
+ */
+public interface ConnectionMetricsMBean {
+
+	/**
+	 * @return the bytes the connection downloaded
+	 */
+	long getBytes();
+
+	/**
+	 * @return the connection's recent throughput
+	 */
+	long getBytesPerSecond();
+
+	/**
+	 * @return the number of times the connection retried after a failure
+	 */
+	long getRetries();
+}
@@ -0,0 +1,178 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+/**
+ * Chooses the number of connections (getter threads) of a download while it
+ * runs, selected with "auto" instead of MAX-CONCURRENT-CONNECTIONS.
+ *
+ * Every interval the tuner measures the throughput of all the connections
+ * together and adjusts their number like TCP's AIMD: it adds one connection
+ * after every interval which brought at least MIN_GAIN more than the best one
+ * so far, goes back to the best level when the last connection added didn't,
+ * and halves the connections when the throughput drops by MAX_LOSS (the server
+ * throttles us or the path is congested). A level which held for
+ * PROBE_INTERVALS intervals is probed with one more connection, in case the
+ * conditions changed. The interval after every change is not measured, the
+ * new connections are still starting.
+ *
+ * A stopped getter gives the rest of its range back to the RangeScheduler, and
+ * a new getter takes a range that was given back or steals half of one.
+ *
+ * Configured by -Didcdm.connections.min (default 1), -Didcdm.connections.max
+ * (default 16) and -Didcdm.connections.interval (milliseconds, default 1000).
+ */
+class ConnectionTuner {
+	static final String AUTO = "auto";
+	private static final int DEFAULT_MIN_CONNECTIONS = 1;
+	private static final int DEFAULT_MAX_CONNECTIONS = 16;
+	private static final long DEFAULT_INTERVAL = 1000;
+	private static final double MIN_GAIN = 0.05;
+	private static final double MAX_LOSS = 0.25;
+	private static final int PROBE_INTERVALS = 10;
+
+	private final RangeScheduler rangeScheduler;
+	private final ExecutorService executor;
+	private final Supplier<HTTPRangeGetter> getterFactory;
+	private final int minConnections;
+	private final int maxConnections;
+	private final long interval;
+	// The getters running, the last one started at the end.
+	private final Deque<HTTPRangeGetter> getters;
+	private int connections;
+	private int bestConnections;
+	private double bestBytesPerSecond;
+	private int steadyIntervals;
+
+	/**
+	 * @param rangeScheduler
+	 * @param executor
+	 *            runs the getters
+	 * @param getterFactory
+	 *            creates a getter for a new connection
+	 */
+	ConnectionTuner(RangeScheduler rangeScheduler, ExecutorService executor,
+			Supplier<HTTPRangeGetter> getterFactory) {
+		this.rangeScheduler = rangeScheduler;
+		this.executor = executor;
+		this.getterFactory = getterFactory;
+		this.minConnections = getMinConnections();
+		this.maxConnections = getMaxConnections();
+		this.interval = Long.getLong("idcdm.connections.interval", DEFAULT_INTERVAL);
+		this.getters = new ArrayDeque<HTTPRangeGetter>();
+	}
+
+	/**
+	 * @return the number of connections the tuner starts with
+	 */
+	static int getMinConnections() {
+		return Math.max(1, Integer.getInteger("idcdm.connections.min", DEFAULT_MIN_CONNECTIONS));
+	}
+
+	/**
+	 * @return the most connections the tuner may use
+	 */
+	static int getMaxConnections() {
+		return Math.max(getMinConnections(), Integer.getInteger("idcdm.connections.max", DEFAULT_MAX_CONNECTIONS));
+	}
+
+	/**
+	 * Runs the getters and tunes their number until every byte of the download
+	 * is claimed, or the download failed.
+	 *
+	 * @throws InterruptedException
+	 */
+	void run() throws InterruptedException {
+		setConnections(this.minConnections);
+		boolean changed = true;
+		long lastBytes = this.rangeScheduler.getBytesClaimed();
+		long lastTime = System.nanoTime();
+		while (!this.rangeScheduler.isDone() && !this.rangeScheduler.getRetryPolicy().hasFailed()) {
+			Thread.sleep(this.interval);
+			long bytes = this.rangeScheduler.getBytesClaimed();
+			long time = System.nanoTime();
+			double bytesPerSecond = (bytes - lastBytes) * 1e9 / (time - lastTime);
+			lastBytes = bytes;
+			lastTime = time;
+			if (changed) {
+				changed = false;
+			} else {
+				changed = tune(bytesPerSecond);
+			}
+			// Replace the getters which ran out of work, the new ones steal from the others.
+			setConnections(this.connections);
+		}
+		if (this.bestBytesPerSecond > 0)
+			System.err.printf("Finished with %d connections, the best level was %d (%d Bps)\n", this.connections,
+					this.bestConnections, (long) this.bestBytesPerSecond);
+		else
+			System.err.printf("Finished with %d connections\n", this.connections);
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *            the throughput of the last interval
+	 * @return true if the number of connections changed
+	 */
+	private boolean tune(double bytesPerSecond) {
+		int previousConnections = this.connections;
+		boolean settled = false;
+		if (bytesPerSecond > this.bestBytesPerSecond * (1 + MIN_GAIN)) {
+			this.bestBytesPerSecond = bytesPerSecond;
+			this.bestConnections = this.connections;
+			this.steadyIntervals = 0;
+			if (this.connections < this.maxConnections)
+				this.connections++;
+		} else if (bytesPerSecond < this.bestBytesPerSecond * (1 - MAX_LOSS)) {
+			this.connections = Math.max(this.minConnections, this.connections / 2);
+			// Measure the new level from scratch.
+			this.bestBytesPerSecond = 0;
+			this.steadyIntervals = 0;
+		} else if (this.connections > this.bestConnections) {
+			// The last connection added didn't bring enough.
+			this.connections = this.bestConnections;
+			this.steadyIntervals = 0;
+			settled = true;
+		} else if (++this.steadyIntervals >= PROBE_INTERVALS && this.connections < this.maxConnections) {
+			this.connections++;
+			this.steadyIntervals = 0;
+		}
+		if (this.connections == previousConnections)
+			return false;
+		System.err.printf("Connections: %d -> %d (%d Bps)\n", previousConnections, this.connections,
+				(long) bytesPerSecond);
+		if (settled)
+			System.err.printf("Settled on %d connections (%d Bps)\n", this.connections,
+					(long) this.bestBytesPerSecond);
+		return true;
+	}
+
+	/**
+	 * Starts or stops getters until the given number of them run.
+	 *
+	 * @param connections
+	 */
+	private synchronized void setConnections(int connections) {
+		this.connections = connections;
+		while (this.getters.size() < connections) {
+			HTTPRangeGetter getter = this.getterFactory.get();
+			this.getters.addLast(getter);
+			this.executor.execute(() -> {
+				getter.run();
+				finished(getter);
+			});
+		}
+		while (this.getters.size() > connections) {
+			this.getters.removeLast().stop();
+		}
+	}
+
+	/**
+	 * @param getter
+	 *            a getter which returned, either stopped or out of work
+	 */
+	private synchronized void finished(HTTPRangeGetter getter) {
+		this.getters.remove(getter);
+	}
+}
@@ -0,0 +1,393 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a list of URLs in one process, sharing a single pool of
+ * connections, the chunk buffers and the bandwidth between all the files.
+ *
+ * A fixed number of worker threads (the batch's connections) take one range at
+ * a time, of whichever file has the smallest share of the connections compared
+ * to its weight. A file which didn't start yet counts as having none, so every
+ * connection gets a file of its own while there are files left, and only then
+ * do idle connections join the files still downloading by splitting their
+ * ranges. No more than maxConnectionsPerHost connections work for the files of
+ * one server at a time.
+ *
+ * Every file keeps its own metadata and resumes by itself. A file which exists
+ * without a metadata file is taken as downloaded by an earlier run and skipped.
+ */
+class DownloadBatch {
+	private final int numberOfConnections;
+	private final int maxConnectionsPerHost;
+	private final ChunkBufferPool chunkBufferPool;
+	private final HttpConnectionPool httpConnectionPool;
+	// The global bucket, and the host level's bucket of every server.
+	private final TokenBucketHierarchy tokenBucket;
+	private final Set<String> filenames;
+	// Files not started yet, in the order of the list.
+	private final Deque<BatchDownload> pendingDownloads;
+	// Files which still have ranges to hand out.
+	private final List<BatchDownload> activeDownloads;
+	private final Map<String, Integer> hostConnections;
+	private int openingDownloads;
+	private final ExecutorService fileWriters;
+	private final AtomicInteger succeeded;
+	private final AtomicInteger failed;
+	private int skipped;
+
+	/**
+	 * @param numberOfConnections
+	 *            number of concurrent connections for all the files
+	 * @param maxBytesPerSecond
+	 *            limit on download bytes-per-second for all the files, or null
+	 *            for -Didcdm.rate.global (unlimited if not set)
+	 */
+	DownloadBatch(int numberOfConnections, Long maxBytesPerSecond) {
+		this.numberOfConnections = numberOfConnections;
+		// Every connection may fill the queue of its own file.
+		this.chunkBufferPool = new ChunkBufferPool(
+				Long.getLong(ChunkQueue.BUDGET_PROPERTY, ChunkQueue.DEFAULT_BUDGET) * numberOfConnections,
+				numberOfConnections);
+		this.httpConnectionPool = new HttpConnectionPool();
+		this.maxConnectionsPerHost = this.httpConnectionPool.getMaxConnectionsPerHost();
+		this.tokenBucket = new TokenBucketHierarchy(
+				TokenBucketHierarchy.level(TokenBucketHierarchy.GLOBAL, maxBytesPerSecond)).withHostLevels();
+		this.filenames = new HashSet<String>();
+		this.pendingDownloads = new ArrayDeque<BatchDownload>();
+		this.activeDownloads = new ArrayList<BatchDownload>();
+		this.hostConnections = new HashMap<String, Integer>();
+		this.openingDownloads = 0;
+		this.fileWriters = Executors.newCachedThreadPool();
+		this.succeeded = new AtomicInteger();
+		this.failed = new AtomicInteger();
+		this.skipped = 0;
+	}
+
+	/**
+	 * Adds the URLs of a list, one file per line: its URL, optionally followed by
+	 * URLs of mirrors of the file and by the file's weight (a positive integer,
+	 * default 1). Empty lines and lines starting with '#' are ignored.
+	 *
+	 * @param urlList
+	 * @throws IOException
+	 */
+	void addAll(BufferedReader urlList) throws IOException {
+		String line;
+		while ((line = urlList.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			String[] fields = line.split("\\s+");
+			List<String> urls = new ArrayList<String>();
+			int field = 0;
+			while (field < fields.length && fields[field].contains("://")) {
+				urls.add(fields[field++]);
+			}
+			int weight = 1;
+			if (field < fields.length) {
+				try {
+					weight = Integer.parseInt(fields[field]);
+				} catch (NumberFormatException e) {
+					weight = 0;
+				}
+			}
+			if (urls.isEmpty() || weight <= 0 || field < fields.length - 1) {
+				System.err.println("Skipping bad line: " + line);
+				this.failed.incrementAndGet();
+				continue;
+			}
+			add(urls, weight);
+		}
+	}
+
+	/**
+	 * @param urls
+	 *            the file's URL, followed by its mirrors
+	 * @param weight
+	 */
+	void add(List<String> urls, int weight) {
+		String url = urls.get(0);
+		String filename = DownloadableMetadata.getName(url);
+		if (!this.filenames.add(filename)) {
+			System.err.println("Skipping " + url + ", another URL of the batch is saved as " + filename);
+			this.failed.incrementAndGet();
+			return;
+		}
+		if (new File(filename).exists() && !new File(DownloadableMetadata.getMetadataName(filename)).exists()) {
+			System.err.println("Skipping " + url + ", " + filename + " was already downloaded");
+			this.skipped++;
+			return;
+		}
+		try {
+			this.pendingDownloads.add(new BatchDownload(urls, weight));
+		} catch (MalformedURLException e) {
+			System.err.println("Skipping malformed URL " + url);
+			this.failed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Downloads all the files and waits for them to be written.
+	 *
+	 * @return true if every file was downloaded
+	 * @throws InterruptedException
+	 */
+	boolean run() throws InterruptedException {
+		ExecutorService workers = Executors.newFixedThreadPool(this.numberOfConnections);
+		for (int worker = 0; worker < this.numberOfConnections; worker++) {
+			workers.execute(new Worker());
+		}
+		workers.shutdown();
+		workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		this.fileWriters.shutdown();
+		this.fileWriters.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+		this.httpConnectionPool.close();
+		this.tokenBucket.terminate();
+		System.err.printf("Batch finished: %d downloaded, %d skipped, %d failed\n", this.succeeded.get(),
+				this.skipped, this.failed.get());
+		return this.failed.get() == 0;
+	}
+
+	/**
+	 * Picks the work of a worker: the next range of the file with the smallest
+	 * share of the connections, or a file to start. Waits while the connections
+	 * the work needs are taken by other workers.
+	 *
+	 * @return the assignment, or null if nothing is left for the worker to do
+	 * @throws InterruptedException
+	 */
+	private synchronized Assignment nextAssignment() throws InterruptedException {
+		while (true) {
+			boolean waitForConnection = false;
+			BatchDownload activeDownload = null;
+			for (BatchDownload download : this.activeDownloads) {
+				if (!hasFreeConnection(download))
+					waitForConnection = true;
+				else if (activeDownload == null || hasSmallerShare(download, activeDownload))
+					activeDownload = download;
+			}
+			BatchDownload pendingDownload = null;
+			for (BatchDownload download : this.pendingDownloads) {
+				if (hasFreeConnection(download)) {
+					pendingDownload = download;
+					break;
+				}
+				waitForConnection = true;
+			}
+
+			if (pendingDownload != null
+					&& (activeDownload == null || hasSmallerShare(pendingDownload, activeDownload))) {
+				this.pendingDownloads.remove(pendingDownload);
+				this.openingDownloads++;
+				takeConnection(pendingDownload);
+				return new Assignment(pendingDownload, -1);
+			}
+			if (activeDownload != null) {
+				int rangeIndexer = activeDownload.getRangeScheduler().getMissingRange();
+				if (rangeIndexer == -1) {
+					// Whatever is left is already in the hands of other workers, endRange() adds
+					// the file back if one of them leaves bytes behind.
+					this.activeDownloads.remove(activeDownload);
+					continue;
+				}
+				takeConnection(activeDownload);
+				return new Assignment(activeDownload, rangeIndexer);
+			}
+			// A file being started may still have ranges to share.
+			if (!waitForConnection && this.openingDownloads == 0)
+				return null;
+			wait();
+		}
+	}
+
+	/**
+	 * Starts the file's download and hands out its first range.
+	 *
+	 * @param download
+	 * @return the range, or -1 if the download failed to start or has nothing
+	 *         left to download
+	 */
+	private int openDownload(BatchDownload download) {
+		try {
+			download.open(this.tokenBucket, this.chunkBufferPool);
+		} catch (Exception e) {
+			System.err.println("Failed to download " + download.getUrl() + ": " + e);
+			this.failed.incrementAndGet();
+			synchronized (this) {
+				this.openingDownloads--;
+				releaseConnection(download);
+			}
+			return -1;
+		}
+		this.fileWriters.execute(() -> writeFile(download));
+
+		synchronized (this) {
+			this.openingDownloads--;
+			this.activeDownloads.add(download);
+			int rangeIndexer = download.getRangeScheduler().getMissingRange();
+			if (rangeIndexer == -1) {
+				this.activeDownloads.remove(download);
+				releaseConnection(download);
+			}
+			notifyAll();
+			return rangeIndexer;
+		}
+	}
+
+	/**
+	 * Runs the file's FileWriter until the whole file is on disk (or the file
+	 * failed), and hashes what is left of it if it is verified.
+	 *
+	 * @param download
+	 */
+	private void writeFile(BatchDownload download) {
+		download.getFileWriter().run();
+		RetryPolicy retryPolicy = download.getDownloadableMetadata().getRetryPolicy();
+		if (retryPolicy.hasFailed()) {
+			System.err.println("Failed to download " + download.getFilename() + ": " + retryPolicy.getFailure());
+			this.failed.incrementAndGet();
+			if (retryPolicy.isFatal()) {
+				download.getDownloadableMetadata().delete();
+				return;
+			}
+			// Kept for the next run to resume the file, the data first since the snapshot covers it.
+			try {
+				DownloadableMetadata downloadableMetadata = download.getDownloadableMetadata();
+				downloadableMetadata.writeDownloadableMetadataObjToDisk(downloadableMetadata::forceFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		PieceHasher pieceHasher = download.getDownloadableMetadata().getPieceHasher();
+		if (pieceHasher != null) {
+			try {
+				pieceHasher.finish(null, null);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("Failed to hash " + download.getFilename());
+				this.failed.incrementAndGet();
+				return;
+			}
+		}
+		download.getDownloadableMetadata().delete();
+		System.err.println("Downloaded " + download.getFilename());
+		this.succeeded.incrementAndGet();
+	}
+
+	/**
+	 * @param download
+	 * @param otherDownload
+	 * @return true if the download would have a smaller share of the connections
+	 *         than the other one after getting one more connection
+	 */
+	private static boolean hasSmallerShare(BatchDownload download, BatchDownload otherDownload) {
+		return (long) (download.getActiveConnections() + 1) * otherDownload.getWeight() < (long) (otherDownload
+				.getActiveConnections() + 1) * download.getWeight();
+	}
+
+	/**
+	 * @param download
+	 * @return true if the download's server has less than maxConnectionsPerHost
+	 *         connections
+	 */
+	private boolean hasFreeConnection(BatchDownload download) {
+		Integer connections = this.hostConnections.get(download.getHostKey());
+		return connections == null || connections < this.maxConnectionsPerHost;
+	}
+
+	/**
+	 * @param download
+	 */
+	private void takeConnection(BatchDownload download) {
+		download.setActiveConnections(download.getActiveConnections() + 1);
+		Integer connections = this.hostConnections.get(download.getHostKey());
+		this.hostConnections.put(download.getHostKey(), connections == null ? 1 : connections + 1);
+	}
+
+	/**
+	 * Releases the connection of a getter which ended, and makes its file active
+	 * again if bytes are left to hand out: the getter stopped before the end of
+	 * its range, or lost the race for it while the other getter went on, which
+	 * may stop too.
+	 *
+	 * @param download
+	 */
+	private synchronized void endRange(BatchDownload download) {
+		releaseConnection(download);
+		RangeScheduler rangeScheduler = download.getRangeScheduler();
+		if (!this.activeDownloads.contains(download) && !rangeScheduler.isDone()
+				&& !rangeScheduler.getRetryPolicy().hasFailed())
+			this.activeDownloads.add(download);
+	}
+
+	/**
+	 * @param download
+	 */
+	private synchronized void releaseConnection(BatchDownload download) {
+		download.setActiveConnections(download.getActiveConnections() - 1);
+		this.hostConnections.put(download.getHostKey(), this.hostConnections.get(download.getHostKey()) - 1);
+		notifyAll();
+	}
+
+	/**
+	 * A range of a file for a worker to download, or a file for it to start.
+	 */
+	private static class Assignment {
+		private final BatchDownload download;
+		private final int rangeIndexer;
+
+		/**
+		 * @param download
+		 * @param rangeIndexer
+		 *            -1 to start the download
+		 */
+		Assignment(BatchDownload download, int rangeIndexer) {
+			this.download = download;
+			this.rangeIndexer = rangeIndexer;
+		}
+	}
+
+	/**
+	 * One of the batch's connections, downloading ranges of any of the files.
+	 */
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			try {
+				Assignment assignment;
+				while ((assignment = nextAssignment()) != null) {
+					BatchDownload download = assignment.download;
+					int rangeIndexer = assignment.rangeIndexer;
+					if (rangeIndexer == -1) {
+						rangeIndexer = openDownload(download);
+						if (rangeIndexer == -1)
+							continue;
+					}
+					try {
+						download.newRangeGetter(rangeIndexer, chunkBufferPool, httpConnectionPool).run();
+					} finally {
+						endRange(download);
+					}
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
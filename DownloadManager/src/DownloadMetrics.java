@@ -0,0 +1,306 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of the process's downloads, to find the bottleneck of a slow
+ * download: the network (the connections' throughput and retries), the token
+ * buckets (the time spent waiting for them), or the disk (the queues waiting
+ * for the writers, and the latency of their writes and flushes).
+ *
+ * The metrics are registered with the platform MBean server, so jconsole or any
+ * JMX client sees them: idcdm:type=Download for the whole process, and
+ * idcdm:type=Connection,id=N for every running connection. With
+ * -Didcdm.metrics.file they are also appended to a file as a JSON line every
+ * -Didcdm.metrics.interval milliseconds (default 1000), and once more on exit.
+ */
+class DownloadMetrics implements DownloadMetricsMBean {
+	static final String FILE_PROPERTY = "idcdm.metrics.file";
+	private static final long DEFAULT_INTERVAL = 1000;
+	private static final DownloadMetrics INSTANCE = new DownloadMetrics();
+
+	private final MBeanServer mBeanServer;
+	private final AtomicInteger nextConnectionId = new AtomicInteger();
+	private final Map<Integer, ConnectionMetrics> connections = new ConcurrentHashMap<Integer, ConnectionMetrics>();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder connectionsOpened = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+	private final LongAdder hedges = new LongAdder();
+	private final LongAdder queuedChunks = new LongAdder();
+	private final LongAdder queuedBytes = new LongAdder();
+	private final LongAdder queueBlockedNanos = new LongAdder();
+	private final LongAdder tokenWaitNanos = new LongAdder();
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+	private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+	private DownloadMetrics() {
+		this.mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		register(this, "idcdm:type=Download");
+	}
+
+	/**
+	 * @return the metrics of the process
+	 */
+	static DownloadMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param mBean
+	 * @param name
+	 */
+	private void register(Object mBean, String name) {
+		try {
+			this.mBeanServer.registerMBean(mBean, new ObjectName(name));
+		} catch (JMException e) {
+			// The metrics are still counted, only not seen through JMX.
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the metrics of a new connection, registered until it is closed
+	 */
+	ConnectionMetrics newConnection() {
+		ConnectionMetrics connection = new ConnectionMetrics(this.nextConnectionId.incrementAndGet());
+		this.connections.put(connection.getId(), connection);
+		register(connection, "idcdm:type=Connection,id=" + connection.getId());
+		return connection;
+	}
+
+	/**
+	 * @param connection
+	 *            a connection which is done
+	 */
+	void closeConnection(ConnectionMetrics connection) {
+		if (this.connections.remove(connection.getId()) == null)
+			return;
+		try {
+			this.mBeanServer.unregisterMBean(new ObjectName("idcdm:type=Connection,id=" + connection.getId()));
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param bytes
+	 */
+	void addBytes(long bytes) {
+		this.bytes.add(bytes);
+	}
+
+	void retry() {
+		this.retries.increment();
+	}
+
+	void connectionOpened() {
+		this.connectionsOpened.increment();
+	}
+
+	void reconnect() {
+		this.reconnects.increment();
+	}
+
+	void hedge() {
+		this.hedges.increment();
+	}
+
+	/**
+	 * @param chunks
+	 *            chunks added to a queue, or taken from it if negative
+	 * @param bytes
+	 */
+	void queued(int chunks, long bytes) {
+		this.queuedChunks.add(chunks);
+		this.queuedBytes.add(bytes);
+	}
+
+	/**
+	 * @param nanos
+	 *            time a connection waited for room in a queue
+	 */
+	void queueBlocked(long nanos) {
+		this.queueBlockedNanos.add(nanos);
+	}
+
+	/**
+	 * @param nanos
+	 *            time a connection waited for the token buckets
+	 */
+	void tokenWait(long nanos) {
+		this.tokenWaitNanos.add(nanos);
+	}
+
+	/**
+	 * @param nanos
+	 */
+	void recordWrite(long nanos) {
+		this.writeLatency.record(nanos);
+	}
+
+	/**
+	 * @param nanos
+	 */
+	void recordFlush(long nanos) {
+		this.flushLatency.record(nanos);
+	}
+
+	/**
+	 * Starts appending the metrics to the file of -Didcdm.metrics.file, if it is
+	 * set.
+	 */
+	void startReporter() {
+		String fileName = System.getProperty(FILE_PROPERTY);
+		if (fileName == null)
+			return;
+		long interval = Long.getLong("idcdm.metrics.interval", DEFAULT_INTERVAL);
+		PrintStream out;
+		try {
+			out = new PrintStream(new FileOutputStream(fileName, true), true);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to open " + fileName + ", the metrics are not reported");
+			return;
+		}
+		Thread reporter = new Thread(() -> {
+			try {
+				while (true) {
+					Thread.sleep(interval);
+					out.println(toJson());
+				}
+			} catch (InterruptedException e) {
+			}
+		}, "metrics-reporter");
+		reporter.setDaemon(true);
+		reporter.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> out.println(toJson())));
+	}
+
+	/**
+	 * @return the metrics as one line of JSON
+	 */
+	String toJson() {
+		StringJoiner connections = new StringJoiner(",", "[", "]");
+		for (ConnectionMetrics connection : this.connections.values()) {
+			connections.add(connection.toJson());
+		}
+		return String.format(
+				"{\"time\":%d,\"bytes\":%d,\"bytesPerSecond\":%d,\"retries\":%d,\"connectionsOpened\":%d,"
+						+ "\"reconnects\":%d,\"hedges\":%d,\"queuedChunks\":%d,\"queuedBytes\":%d,\"queueBlockedMs\":%d,"
+						+ "\"tokenWaitMs\":%d,\"write\":%s,\"flush\":%s,\"connections\":%s}",
+				System.currentTimeMillis(), getBytes(), getBytesPerSecond(), getRetries(), getConnectionsOpened(),
+				getReconnects(), getHedges(), getQueuedChunks(), getQueuedBytes(), getQueueBlockedMillis(), getTokenWaitMillis(),
+				this.writeLatency.toJson(), this.flushLatency.toJson(), connections);
+	}
+
+	@Override
+	public long getBytes() {
+		return this.bytes.sum();
+	}
+
+	@Override
+	public long getBytesPerSecond() {
+		long bytesPerSecond = 0;
+		for (ConnectionMetrics connection : this.connections.values()) {
+			bytesPerSecond += connection.getBytesPerSecond();
+		}
+		return bytesPerSecond;
+	}
+
+	@Override
+	public int getConnections() {
+		return this.connections.size();
+	}
+
+	@Override
+	public long getRetries() {
+		return this.retries.sum();
+	}
+
+	@Override
+	public long getConnectionsOpened() {
+		return this.connectionsOpened.sum();
+	}
+
+	@Override
+	public long getReconnects() {
+		return this.reconnects.sum();
+	}
+
+	@Override
+	public long getHedges() {
+		return this.hedges.sum();
+	}
+
+	@Override
+	public long getQueuedChunks() {
+		return this.queuedChunks.sum();
+	}
+
+	@Override
+	public long getQueuedBytes() {
+		return this.queuedBytes.sum();
+	}
+
+	@Override
+	public long getQueueBlockedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.queueBlockedNanos.sum());
+	}
+
+	@Override
+	public long getTokenWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.tokenWaitNanos.sum());
+	}
+
+	@Override
+	public long getWriteCount() {
+		return this.writeLatency.getCount();
+	}
+
+	@Override
+	public long getWriteP50Micros() {
+		return this.writeLatency.getPercentileMicros(0.5);
+	}
+
+	@Override
+	public long getWriteP99Micros() {
+		return this.writeLatency.getPercentileMicros(0.99);
+	}
+
+	@Override
+	public long getWriteMaxMicros() {
+		return this.writeLatency.getMaxMicros();
+	}
+
+	@Override
+	public long getFlushCount() {
+		return this.flushLatency.getCount();
+	}
+
+	@Override
+	public long getFlushP50Micros() {
+		return this.flushLatency.getPercentileMicros(0.5);
+	}
+
+	@Override
+	public long getFlushP99Micros() {
+		return this.flushLatency.getPercentileMicros(0.99);
+	}
+
+	@Override
+	public long getFlushMaxMicros() {
+		return this.flushLatency.getMaxMicros();
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * The JMX view of the DownloadMetrics, registered as idcdm:type=Download.
+ */
+public interface DownloadMetricsMBean {
+
+	/**
+	 * @return the bytes downloaded by all the connections
+	 */
+	long getBytes();
+
+	/**
+	 * @return the recent throughput of the running connections together
+	 */
+	long getBytesPerSecond();
+
+	/**
+	 * @return the number of running connections
+	 */
+	int getConnections();
+
+	/**
+	 * @return the number of retries after a failure, of all the connections
+	 */
+	long getRetries();
+
+	/**
+	 * @return the number of HTTP connections opened to the servers
+	 */
+	long getConnectionsOpened();
+
+	/**
+	 * @return the number of requests sent again on a new connection because a
+	 *         kept-alive one was closed by the server
+	 */
+	long getReconnects();
+
+	/**
+	 * @return the number of slow ranges raced by a second connection in the end
+	 *         game
+	 */
+	long getHedges();
+
+	/**
+	 * @return the chunks waiting in the queues for the FileWriters
+	 */
+	long getQueuedChunks();
+
+	/**
+	 * @return the bytes waiting in the queues for the FileWriters
+	 */
+	long getQueuedBytes();
+
+	/**
+	 * @return the time the connections waited for room in a full queue
+	 */
+	long getQueueBlockedMillis();
+
+	/**
+	 * @return the time the connections waited for the token buckets
+	 */
+	long getTokenWaitMillis();
+
+	/**
+	 * @return the number of writes of the FileWriters
+	 */
+	long getWriteCount();
+
+	/**
+	 * @return the median latency of a write
+	 */
+	long getWriteP50Micros();
+
+	/**
+	 * @return the 99th percentile latency of a write
+	 */
+	long getWriteP99Micros();
+
+	/**
+	 * @return the longest write
+	 */
+	long getWriteMaxMicros();
+
+	/**
+	 * @return the number of times the progress was flushed to the journal
+	 */
+	long getFlushCount();
+
+	/**
+	 * @return the median latency of a flush, forcing the data and the journal
+	 */
+	long getFlushP50Micros();
+
+	/**
+	 * @return the 99th percentile latency of a flush
+	 */
+	long getFlushP99Micros();
+
+	/**
+	 * @return the longest flush
+	 */
+	long getFlushMaxMicros();
+}
@@ -0,0 +1,174 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The file of a download as a stream of its bytes from the start, readable
+ * while it downloads, e.g. by a decompressor or a parser, or copied to stdout
+ * with -Didcdm.stream=stdout.
+ *
+ * The stream reads the file itself, up to the bytes from its start which are
+ * all written, and waits at their end for more of them. It never holds the
+ * download back: a slow reader only falls behind, the file is its buffer. To
+ * make the prefix grow steadily, a streamed download is handed out from the
+ * front of the file in windows of -Didcdm.stream.window bytes (default 4MB),
+ * and its chunks are put back in order by a ReorderBuffer before the writer.
+ *
+ * The stream is both an InputStream and a ReadableByteChannel. It ends with the
+ * file, or throws if the download failed before its end.
+ */
+class DownloadStream extends InputStream implements ReadableByteChannel {
+	static final String STREAM_PROPERTY = "idcdm.stream";
+	static final String WINDOW_PROPERTY = "idcdm.stream.window";
+	private static final long DEFAULT_WINDOW = 4 * 1024 * 1024;
+	// Bytes copied to stdout at a time.
+	private static final int COPY_SIZE = 64 * 1024;
+
+	private final DownloadableMetadata downloadableMetadata;
+	private final long fileSize;
+	private FileChannel fileChannel;
+	private long position;
+	// The bytes from the start of the file known to be written.
+	private long completedPrefix;
+	private boolean closed;
+
+	/**
+	 * @param downloadableMetadata
+	 */
+	DownloadStream(DownloadableMetadata downloadableMetadata) {
+		this.downloadableMetadata = downloadableMetadata;
+		this.fileSize = downloadableMetadata.getFileSize();
+	}
+
+	/**
+	 * @return true if the download is streamed to stdout
+	 */
+	static boolean isSelected() {
+		return System.getProperty(STREAM_PROPERTY, "").equals("stdout");
+	}
+
+	/**
+	 * @return the most bytes handed out at a time from the front of the file,
+	 *         in whole chunks
+	 */
+	static long getWindowSize() {
+		long windowSize = Long.getLong(WINDOW_PROPERTY, DEFAULT_WINDOW);
+		return Math.max(1, windowSize / HTTPRangeGetter.CHUNK_SIZE) * HTTPRangeGetter.CHUNK_SIZE;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		if (this.closed)
+			throw new ClosedChannelException();
+		if (!dst.hasRemaining())
+			return 0;
+		if (!awaitBytes())
+			return -1;
+		int length = (int) Math.min(dst.remaining(), this.completedPrefix - this.position);
+		ByteBuffer part = dst.duplicate();
+		part.limit(part.position() + length);
+		int bytesRead = 0;
+		while (bytesRead < length) {
+			int n = this.fileChannel.read(part, this.position + bytesRead);
+			if (n < 0)
+				throw new IOException("The file ended before the bytes written to it");
+			bytesRead += n;
+		}
+		dst.position(dst.position() + bytesRead);
+		this.position += bytesRead;
+		return bytesRead;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		return read(ByteBuffer.wrap(b, off, len));
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(0, this.completedPrefix - this.position));
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return !this.closed;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		this.closed = true;
+		if (this.fileChannel != null)
+			this.fileChannel.close();
+	}
+
+	/**
+	 * Waits until there are written bytes at the stream's position.
+	 *
+	 * @return false at the end of the file
+	 * @throws IOException
+	 *             if the download failed before the stream's position
+	 */
+	private boolean awaitBytes() throws IOException {
+		if (this.position >= this.fileSize)
+			return false;
+		if (this.position >= this.completedPrefix) {
+			try {
+				this.completedPrefix = this.downloadableMetadata.awaitCompletedPrefix(this.position);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the download", e);
+			}
+			if (this.completedPrefix <= this.position)
+				throw new IOException("The download failed", this.downloadableMetadata.getRetryPolicy().getFailure());
+		}
+		// The writer creates the file, it exists once some of it is written.
+		if (this.fileChannel == null)
+			this.fileChannel = FileChannel.open(
+					Paths.get(this.downloadableMetadata.getDownloadableMetadataObject().getFilename()),
+					StandardOpenOption.READ);
+		return true;
+	}
+
+	/**
+	 * Copies the stream to stdout as it downloads, until the file ends or the
+	 * download fails.
+	 *
+	 * @param downloadableMetadata
+	 * @return a thread which copies, already started
+	 */
+	static Thread copyToStdout(DownloadableMetadata downloadableMetadata) {
+		Thread thread = new Thread(() -> {
+			// Not through System.out, which hides the failure of a closed pipe.
+			try (DownloadStream in = new DownloadStream(downloadableMetadata);
+					OutputStream out = new FileOutputStream(FileDescriptor.out)) {
+				byte[] buffer = new byte[COPY_SIZE];
+				int n;
+				while ((n = in.read(buffer)) != -1) {
+					out.write(buffer, 0, n);
+				}
+			} catch (IOException e) {
+				// The download goes on to the file, e.g. if the reader of the pipe quit.
+				System.err.println("Stopped streaming the download: " + e);
+			}
+		}, "stream");
+		thread.start();
+		return thread;
+	}
+}
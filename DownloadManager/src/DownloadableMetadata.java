@@ -1,11 +1,17 @@
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Describes a file's metadata: URL, file name, size, and which parts already
@@ -25,12 +31,27 @@ import java.net.URL;
 class DownloadableMetadata {
 
 	private long numberOfWorkersAndRanges;
-	private int currentRangeToReadIndex;
 	private long totalFileSize;
+	private String eTag;
+	private String lastModified;
 	public transient Range[] LeftToReadPartialRangeArray;
 	private long rangeSize;
 	private DownloadableMetadataObject downloadableMetadataObject;
 	private final String MD_FileName;
+	private final ProgressJournal progressJournal;
+	// The journal is compacted into a snapshot well before it reaches n/1024 bytes.
+	private final long journalCompactionSize;
+	// Set when the download is verified.
+	private PieceHasher pieceHasher;
+	private final RetryPolicy retryPolicy = new RetryPolicy();
+	// The bytes written, out of order ones included, and not only the front of every range. Only the fronts are saved.
+	private ExtentSet writtenExtents;
+	// The ranges in the order of the file: their assigned starts, and their indexes.
+	private long[] rangeStarts;
+	private int[] rangeIndexers;
+	private int numberOfIndexedRanges;
+	// How long a DownloadStream waits for the prefix before it checks whether the download failed.
+	private static final long PREFIX_WAIT = 100;
 
 	/**
 	 * @param url
@@ -41,11 +62,19 @@ class DownloadableMetadata {
 	public DownloadableMetadata(String url, int numberOfWorkersAndRanges,
 			DownloadableMetadataObject downloadableMetadataObject) throws Exception {
 		this.numberOfWorkersAndRanges = numberOfWorkersAndRanges;
-		this.currentRangeToReadIndex = 0;
 		this.MD_FileName = getMetadataName(getName(url));
+		this.progressJournal = ProgressJournal.open(ProgressJournal.getJournalName(this.MD_FileName));
 		this.setFileSize(new URL(url));
 		this.rangeSize = this.totalFileSize / numberOfWorkersAndRanges;
-		this.LeftToReadPartialRangeArray = new Range[numberOfWorkersAndRanges];
+		this.journalCompactionSize = Math.max(64 * ProgressJournal.RECORD_SIZE, this.totalFileSize / 2048);
+		// The file on the server changed since the download started => start over
+		if (downloadableMetadataObject != null && !isSameFile(downloadableMetadataObject)) {
+			System.err.println("The file changed on the server, restarting the download");
+			downloadableMetadataObject = null;
+			// The writers don't truncate the file, a smaller new version would keep the old one's tail.
+			Files.deleteIfExists(Paths.get(getName(url)));
+			this.progressJournal.truncate();
+		}
 		// If file doesn't exist already => first time downloading it
 		if (downloadableMetadataObject == null) {
 			this.downloadableMetadataObject = new DownloadableMetadataObject(getName(url), url);
@@ -53,10 +82,58 @@ class DownloadableMetadata {
 		} else {
 			this.downloadableMetadataObject = downloadableMetadataObject;
 		}
+		this.downloadableMetadataObject.setFileSize(this.totalFileSize);
+		this.downloadableMetadataObject.setETag(this.eTag);
+		this.downloadableMetadataObject.setLastModified(this.lastModified);
+		// Metadata saved before ranges could be split only holds the equal slices.
+		if (this.downloadableMetadataObject.getAssignedRangeArray() == null) {
+			this.downloadableMetadataObject.setAssignedRangeArray(numberOfWorkersAndRanges, this.rangeSize,
+					this.totalFileSize);
+		}
+		if (downloadableMetadataObject != null) {
+			ProgressJournal.replay(ProgressJournal.getJournalName(this.MD_FileName), this.downloadableMetadataObject);
+			setAlreadyDownloadedNumberOfBytes();
+		}
 
 		setLeftToReadPartialRangeArray();
 	}
 
+	/**
+	 * Compares the size and validators stored in the metadata with the ones the
+	 * server sent now. Metadata which didn't store them (older versions) is
+	 * trusted.
+	 *
+	 * @param downloadableMetadataObject
+	 * @return
+	 */
+	private boolean isSameFile(DownloadableMetadataObject downloadableMetadataObject) {
+		if (downloadableMetadataObject.getFileSize() == 0)
+			return true;
+		return downloadableMetadataObject.getFileSize() == this.totalFileSize
+				&& isSameValidator(downloadableMetadataObject.getETag(), this.eTag)
+				&& isSameValidator(downloadableMetadataObject.getLastModified(), this.lastModified);
+	}
+
+	/**
+	 * @param savedValidator
+	 * @param currentValidator
+	 * @return
+	 */
+	private static boolean isSameValidator(String savedValidator, String currentValidator) {
+		return savedValidator == null || currentValidator == null || savedValidator.equals(currentValidator);
+	}
+
+	/**
+	 * Counts the bytes already downloaded according to the ranges read so far.
+	 */
+	private void setAlreadyDownloadedNumberOfBytes() {
+		long alreadyDownloaded = 0;
+		for (Range alreadyRead : this.downloadableMetadataObject.getAlreadyReadPartialRangeArray()) {
+			alreadyDownloaded += alreadyRead.getEnd() - alreadyRead.getStart();
+		}
+		this.downloadableMetadataObject.setCurrentAlreadyDownloadedNumberOfBytes(alreadyDownloaded);
+	}
+
 	/**
 	 * @param url
 	 * @param numberOfWorkersAndRanges
@@ -66,19 +143,139 @@ class DownloadableMetadata {
 		this(url, numberOfWorkersAndRanges, null);
 	}
 
+	/**
+	 * Resumes the download from its metadata file if there is one, otherwise
+	 * starts it over. A resumed download keeps the number of ranges it was saved
+	 * with, until it is resplit.
+	 *
+	 * @param url
+	 * @param numberOfWorkersAndRanges
+	 * @return
+	 * @throws Exception
+	 */
+	static DownloadableMetadata open(String url, int numberOfWorkersAndRanges) throws Exception {
+		String MD_FileName = getMetadataName(getName(url));
+		if (new File(MD_FileName).exists()) {
+			DownloadableMetadataObject downloadableMetadataObject = readObjectFromDisk(MD_FileName);
+			if (downloadableMetadataObject != null) {
+				return new DownloadableMetadata(url,
+						downloadableMetadataObject.getAlreadyReadPartialRangeArray().length,
+						downloadableMetadataObject);
+			}
+		}
+		return new DownloadableMetadata(url, numberOfWorkersAndRanges);
+	}
+
+	/**
+	 * Splits the bytes still missing into ranges for numberOfWorkersAndRanges
+	 * connections, e.g. when a download saved with 2 connections is resumed with
+	 * 16. The gaps between the written bytes are cut into ranges of at most
+	 * 1/numberOfWorkersAndRanges of the missing bytes, and every written extent
+	 * becomes a range which is already complete, so nothing on disk is
+	 * downloaded again. The journal's records refer to the old ranges, so they
+	 * are compacted into a snapshot of the old ranges, and the journal emptied
+	 * for good, before the snapshot of the new ones replaces it: a crash in
+	 * between leaves either snapshot with an empty journal, never the old records
+	 * replayed onto the new ranges.
+	 *
+	 * Does nothing if as many ranges as connections have bytes left, e.g. in a
+	 * new download or one resumed with the same number of connections.
+	 *
+	 * @param numberOfWorkersAndRanges
+	 * @throws IOException
+	 */
+	synchronized void resplit(int numberOfWorkersAndRanges) throws IOException {
+		int rangesLeft = 0;
+		for (Range missingRange : this.LeftToReadPartialRangeArray) {
+			if (missingRange.getLength() > 0)
+				rangesLeft++;
+		}
+		long missingBytes = this.totalFileSize - this.writtenExtents.getBytes();
+		if (rangesLeft == numberOfWorkersAndRanges || numberOfWorkersAndRanges < 1 || missingBytes <= 0)
+			return;
+		writeDownloadableMetadataObjToDisk(this::forceFile);
+		this.progressJournal.truncate(true);
+
+		long rangeSize = (missingBytes + numberOfWorkersAndRanges - 1) / numberOfWorkersAndRanges;
+		List<Range> assignedRanges = new ArrayList<Range>();
+		List<Range> rangesAlreadyRead = new ArrayList<Range>();
+		long offset = 0;
+		while (offset < this.totalFileSize) {
+			long gapStart = Math.min(this.writtenExtents.nextMissing(offset), this.totalFileSize);
+			if (gapStart > offset) {
+				assignedRanges.add(new Range(offset, gapStart - 1));
+				rangesAlreadyRead.add(new Range(offset, gapStart));
+			}
+			if (gapStart == this.totalFileSize)
+				break;
+			long gapEnd = Math.min(this.writtenExtents.nextPresent(gapStart), this.totalFileSize);
+			for (long start = gapStart; start < gapEnd; start += rangeSize) {
+				assignedRanges.add(new Range(start, Math.min(start + rangeSize, gapEnd) - 1));
+				rangesAlreadyRead.add(new Range(start, start));
+			}
+			offset = gapEnd;
+		}
+		this.downloadableMetadataObject.setAssignedRangeArray(assignedRanges.toArray(new Range[0]));
+		this.downloadableMetadataObject.setAlreadyReadPartialRangeArray(rangesAlreadyRead.toArray(new Range[0]));
+		this.numberOfWorkersAndRanges = numberOfWorkersAndRanges;
+		this.rangeSize = rangeSize;
+		setLeftToReadPartialRangeArray();
+		writeDownloadableMetadataObjToDisk(this::forceFile);
+	}
+
 	/**
 	 * Initializes the ranges left to read array in case the downloaded was pausted and then re-started.
+	 * Each range starts at the first byte not yet written and ends where its assigned range ends.
+	 */
+	public synchronized void setLeftToReadPartialRangeArray() {
+		Range[] rangesAlreadyRead = this.downloadableMetadataObject.getAlreadyReadPartialRangeArray();
+		Range[] assignedRanges = this.downloadableMetadataObject.getAssignedRangeArray();
+		this.LeftToReadPartialRangeArray = new Range[assignedRanges.length];
+		this.writtenExtents = new ExtentSet();
+		this.rangeStarts = new long[Math.max(1, assignedRanges.length)];
+		this.rangeIndexers = new int[this.rangeStarts.length];
+		this.numberOfIndexedRanges = 0;
+		for (int range = 0; range < assignedRanges.length; range++) {
+			this.LeftToReadPartialRangeArray[range] = new Range(rangesAlreadyRead[range].getEnd(),
+					assignedRanges[range].getEnd());
+			this.writtenExtents.add(rangesAlreadyRead[range].getStart(), rangesAlreadyRead[range].getEnd());
+			indexRange(range, assignedRanges[range]);
+		}
+	}
+
+	/**
+	 * Adds a range to the ranges in the order of the file. An empty range (e.g.
+	 * of a file smaller than the number of ranges) is left out, it would start
+	 * where the next one does.
+	 *
+	 * @param rangeIndexer
+	 * @param assignedRange
 	 */
-	public void setLeftToReadPartialRangeArray() {
-		for (int range = 0; range < numberOfWorkersAndRanges; range++) {
-			long end;
-			long start = this.downloadableMetadataObject.getAlreadyReadPartialRangeArray()[range].getEnd();
-			if (range + 1 == numberOfWorkersAndRanges)
-				end = this.totalFileSize;
-			else
-				end = (range + 1) * this.rangeSize;
-			this.LeftToReadPartialRangeArray[range] = new Range(start, end - 1);
+	private void indexRange(int rangeIndexer, Range assignedRange) {
+		long start = assignedRange.getStart();
+		if (assignedRange.getEnd() < start)
+			return;
+		int index = Arrays.binarySearch(this.rangeStarts, 0, this.numberOfIndexedRanges, start);
+		index = index >= 0 ? index : -index - 1;
+		if (this.numberOfIndexedRanges == this.rangeStarts.length) {
+			this.rangeStarts = Arrays.copyOf(this.rangeStarts, this.numberOfIndexedRanges * 2);
+			this.rangeIndexers = Arrays.copyOf(this.rangeIndexers, this.numberOfIndexedRanges * 2);
 		}
+		System.arraycopy(this.rangeStarts, index, this.rangeStarts, index + 1, this.numberOfIndexedRanges - index);
+		System.arraycopy(this.rangeIndexers, index, this.rangeIndexers, index + 1, this.numberOfIndexedRanges - index);
+		this.rangeStarts[index] = start;
+		this.rangeIndexers[index] = rangeIndexer;
+		this.numberOfIndexedRanges++;
+	}
+
+	/**
+	 * @param offset
+	 * @return the index of the range assigned the byte at offset, or -1
+	 */
+	private int findRange(long offset) {
+		int index = Arrays.binarySearch(this.rangeStarts, 0, this.numberOfIndexedRanges, offset);
+		index = index >= 0 ? index : -index - 2;
+		return index < 0 ? -1 : this.rangeIndexers[index];
 	}
 
 	/**
@@ -95,6 +292,28 @@ class DownloadableMetadata {
 		return numberOfWorkersAndRanges;
 	}
 
+	/**
+	 * @return the hasher the writers pass their chunks through, or null if the
+	 *         download is not verified
+	 */
+	PieceHasher getPieceHasher() {
+		return this.pieceHasher;
+	}
+
+	/**
+	 * @param pieceHasher
+	 */
+	void setPieceHasher(PieceHasher pieceHasher) {
+		this.pieceHasher = pieceHasher;
+	}
+
+	/**
+	 * @return the policy the getters and the writers of the download retry by
+	 */
+	RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
 	/**
 	 * @return
 	 */
@@ -133,11 +352,16 @@ class DownloadableMetadata {
 	 */
 	public void setFileSize(URL url) throws Exception {
 		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-		long fileSize = connection.getContentLength();
+		if (connection.getResponseCode() / 100 != 2) {
+			throw new Exception("HTTP " + connection.getResponseCode() + " " + connection.getResponseMessage());
+		}
+		long fileSize = connection.getContentLengthLong();
 		if (fileSize < 0) {
 			throw new Exception("Failed to get content length");
 		}
 		this.totalFileSize = fileSize;
+		this.eTag = connection.getHeaderField("ETag");
+		this.lastModified = connection.getHeaderField("Last-Modified");
 	}
 
 	/**
@@ -166,42 +390,127 @@ class DownloadableMetadata {
 	/**
 	 * @return
 	 */
+	synchronized int getNumberOfRanges() {
+		return this.LeftToReadPartialRangeArray.length;
+	}
+
 	/**
-	 * @return
+	 * @param rangeIndexer
+	 * @return the range which is left to read, its start is the first byte not yet written
 	 */
-	Range getMissingRange() {
-		Range range = null;
-		if (currentRangeToReadIndex < this.numberOfWorkersAndRanges) {
-			range = this.LeftToReadPartialRangeArray[this.currentRangeToReadIndex];
-			this.currentRangeToReadIndex++;
-		}
-		return range;
+	synchronized Range getMissingRange(int rangeIndexer) {
+		return this.LeftToReadPartialRangeArray[rangeIndexer];
+	}
 
+	/**
+	 * Cuts the range in two at splitOffset. The back part becomes a new range
+	 * which is recorded in the metadata, so it would be downloaded only once.
+	 * 
+	 * @param rangeIndexer
+	 * @param splitOffset
+	 * @return the index of the new range
+	 */
+	synchronized int splitRange(int rangeIndexer, long splitOffset) {
+		Range splitRange = this.LeftToReadPartialRangeArray[rangeIndexer];
+		int newRangeIndexer = this.downloadableMetadataObject.splitRange(rangeIndexer, splitOffset);
+		this.LeftToReadPartialRangeArray = Arrays.copyOf(this.LeftToReadPartialRangeArray, newRangeIndexer + 1);
+		this.LeftToReadPartialRangeArray[rangeIndexer] = new Range(splitRange.getStart(), splitOffset - 1);
+		this.LeftToReadPartialRangeArray[newRangeIndexer] = new Range(splitOffset, splitRange.getEnd());
+		indexRange(newRangeIndexer, this.downloadableMetadataObject.getAssignedRangeArray()[newRangeIndexer]);
+		this.progressJournal.append(ProgressJournal.SPLIT, rangeIndexer, splitOffset);
+		return newRangeIndexer;
 	}
 
 	/**
-	 * @param extendingRange
-	 * @param extandableRange
-	 * @return
+	 * Records the bytes as written. The range they belong to is found by a
+	 * binary search, and only moves forward (in the metadata and the journal)
+	 * up to the first byte of it which is still missing: bytes written ahead of
+	 * that, e.g. by another stripe's writer, are kept in memory until the bytes
+	 * before them arrive, and downloaded again if the download is resumed
+	 * meanwhile.
+	 *
+	 * @param extandingRange
 	 */
-	private boolean IsRangeContaines(Range extendingRange, Range extandableRange) {
-		boolean afterStart = extendingRange.getStart() >= extandableRange.getStart();
-		boolean beforeEnd = extendingRange.getEnd() <= extandableRange.getEnd();
-		return afterStart && beforeEnd;
+	synchronized void extendRange(Range extandingRange) {
+		if (extend(extandingRange.getStart(), extandingRange.getEnd() + 1))
+			notifyAll();
 	}
 
 	/**
-	 * @param extandingRange
+	 * Records the bytes of a writer's whole batch as written, like extendRange
+	 * for each of the extents but under a single lock of the metadata. An extent
+	 * may run over several ranges.
+	 *
+	 * @param extents
 	 */
-	void extendRange(Range extandingRange) {
+	synchronized void extendRanges(ExtentSet extents) {
+		boolean extendsPrefix = false;
+		for (int extent = extents.first(); extent != -1; extent = extents.next(extent)) {
+			extendsPrefix |= extend(extents.getStart(extent), extents.getEnd(extent));
+		}
+		if (extendsPrefix)
+			notifyAll();
+	}
 
-		Range[] rangesAlreadyRead = downloadableMetadataObject.getAlreadyReadPartialRangeArray();
-		for (int i = 0; i < this.LeftToReadPartialRangeArray.length; i++) {
-			if (IsRangeContaines(extandingRange, this.LeftToReadPartialRangeArray[i])) {
-				rangesAlreadyRead[i] = new Range(rangesAlreadyRead[i].getStart(), extandingRange.getEnd());
+	/**
+	 * @param start
+	 * @param end
+	 *            the byte after the last one
+	 * @return true if the bytes continue the prefix written from the start of
+	 *         the file, which a stream may wait for
+	 */
+	private boolean extend(long start, long end) {
+		boolean extendsPrefix = this.writtenExtents.nextMissing(0) >= start;
+		while (start < end) {
+			int rangeIndexer = findRange(start);
+			if (rangeIndexer == -1)
+				break;
+			Range assignedRange = this.downloadableMetadataObject.getAssignedRangeArray()[rangeIndexer];
+			long rangeEnd = Math.min(end, assignedRange.getEnd() + 1);
+			if (rangeEnd <= start)
 				break;
+			this.writtenExtents.add(start, rangeEnd);
+
+			Range[] rangesAlreadyRead = this.downloadableMetadataObject.getAlreadyReadPartialRangeArray();
+			// The end of an already read range is the next byte to read.
+			long alreadyReadEnd = Math.min(
+					this.writtenExtents.nextMissing(rangesAlreadyRead[rangeIndexer].getEnd()),
+					assignedRange.getEnd() + 1);
+			if (alreadyReadEnd > rangesAlreadyRead[rangeIndexer].getEnd()) {
+				rangesAlreadyRead[rangeIndexer] = new Range(rangesAlreadyRead[rangeIndexer].getStart(),
+						alreadyReadEnd);
+				this.progressJournal.append(ProgressJournal.EXTEND, rangeIndexer, alreadyReadEnd);
 			}
+			start = rangeEnd;
+		}
+		return extendsPrefix;
+	}
+
+	/**
+	 * @param offset
+	 * @return the first byte from offset on which is not written yet, the start
+	 *         of the next gap
+	 */
+	synchronized long getNextMissing(long offset) {
+		return this.writtenExtents.nextMissing(offset);
+	}
+
+	/**
+	 * Waits until the bytes written from the start of the file go past offset.
+	 *
+	 * @param offset
+	 * @return the number of bytes from the start of the file which are all
+	 *         written, at most offset if the file ends there or the download
+	 *         failed
+	 * @throws InterruptedException
+	 */
+	synchronized long awaitCompletedPrefix(long offset) throws InterruptedException {
+		long completedPrefix = this.writtenExtents.nextMissing(0);
+		while (completedPrefix <= offset && offset < this.totalFileSize && !this.retryPolicy.hasFailed()) {
+			wait(PREFIX_WAIT);
+			completedPrefix = this.writtenExtents.nextMissing(0);
 		}
+		return completedPrefix;
 	}
 
 	/**
@@ -216,6 +525,9 @@ class DownloadableMetadata {
 	 */
 	void delete() {
 		try {
+			this.progressJournal.delete();
+			if (this.pieceHasher != null)
+				this.pieceHasher.delete();
 			new File(this.MD_FileName).delete();
 		} catch (SecurityException e) {
 			e.printStackTrace();
@@ -253,15 +565,53 @@ class DownloadableMetadata {
 	}
 
 	/**
+	 * Commits the progress recorded since the last call to the journal, and
+	 * compacts the journal into a new snapshot once it grows too big.
+	 *
+	 * @param data
+	 *            forces the downloaded file's data to disk, before the journal
+	 *            when syncing
+	 * @param bytesWritten
+	 *            bytes written to the file since the last call
+	 * @throws IOException
+	 */
+	public void commitProgress(Flushable data, long bytesWritten) throws IOException {
+		if (this.progressJournal.commit(data, bytesWritten)
+				&& this.progressJournal.size() >= this.journalCompactionSize) {
+			writeDownloadableMetadataObjToDisk(data);
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the metadata and empties the journal, which the
+	 * snapshot already contains.
+	 *
 	 * @throws IOException
 	 */
 	public void writeDownloadableMetadataObjToDisk() throws IOException {
+		writeDownloadableMetadataObjToDisk(null);
+	}
+
+	/**
+	 * Writes a snapshot of the metadata and empties the journal, which the
+	 * snapshot already contains.
+	 *
+	 * @param data
+	 *            forces the downloaded file's data to disk before the snapshot is
+	 *            written, or null. The ranges can't be extended meanwhile, so the
+	 *            snapshot never covers bytes which are not on disk.
+	 * @throws IOException
+	 */
+	public synchronized void writeDownloadableMetadataObjToDisk(Flushable data) throws IOException {
+		if (data != null)
+			data.flush();
 		String metadataFileName = this.getMetadataFileName();
 		File metaFile = new File(metadataFileName);
 		File metaFileTemp = new File(metadataFileName + "_temp");
-		try (FileOutputStream fileOut = new FileOutputStream(metaFileTemp);
-				ObjectOutputStream out = new ObjectOutputStream(fileOut);) {
-			out.writeObject(this.downloadableMetadataObject);
+		try (FileOutputStream fileOut = new FileOutputStream(metaFileTemp)) {
+			fileOut.write(MetadataFileFormat.encode(this.downloadableMetadataObject));
+			this.progressJournal.clearPending();
+			fileOut.getFD().sync();
 		}
 		metaFile.delete();
 		boolean success = metaFileTemp.renameTo(metaFile);
@@ -269,6 +619,23 @@ class DownloadableMetadata {
 		if (!success) {
 			throw new java.io.IOException("Fail to write metadata obect to disk");
 		}
+		this.progressJournal.truncate();
+	}
+
+	/**
+	 * Forces the data written to the downloaded file to disk, through a channel
+	 * of its own: for a snapshot written once the writers closed theirs, e.g.
+	 * when the download failed.
+	 *
+	 * @throws IOException
+	 */
+	public void forceFile() throws IOException {
+		Path path = Paths.get(this.downloadableMetadataObject.getFilename());
+		if (!Files.exists(path))
+			return;
+		try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			fileChannel.force(false);
+		}
 	}
 
 	/**
@@ -280,20 +647,12 @@ class DownloadableMetadata {
 	public static DownloadableMetadataObject readObjectFromDisk(String metadataFileName)
 			throws IOException, ClassNotFoundException {
 		DownloadableMetadataObject downloadableMetadataObject = null;
-		FileInputStream fileInputStream = null;
-		ObjectInputStream objectInputStream = null;
 		try {
-			fileInputStream = new FileInputStream(new File(metadataFileName));
-			objectInputStream = new ObjectInputStream(fileInputStream);
-			downloadableMetadataObject = (DownloadableMetadataObject) objectInputStream.readObject();
+			downloadableMetadataObject = MetadataFileFormat
+					.decode(Files.readAllBytes(new File(metadataFileName).toPath()));
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.err.println("Download Failed");
-		} finally {
-			if (fileInputStream != null)
-				fileInputStream.close();
-			if (objectInputStream != null)
-				objectInputStream.close();
 		}
 
 		return downloadableMetadataObject;
@@ -313,20 +672,6 @@ class DownloadableMetadata {
 		this.numberOfWorkersAndRanges = numberOfWorkersAndRanges;
 	}
 
-	/**
-	 * @return
-	 */
-	public int getCurrentRangeToReadIndex() {
-		return currentRangeToReadIndex;
-	}
-
-	/**
-	 * @param currentRangeToReadIndex
-	 */
-	public void setCurrentRangeToReadIndex(int currentRangeToReadIndex) {
-		this.currentRangeToReadIndex = currentRangeToReadIndex;
-	}
-
 	/**
 	 * @return
 	 */
@@ -1,12 +1,18 @@
 import java.io.Serializable;
+import java.util.Arrays;
 
 public class DownloadableMetadataObject implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 	private String filename;
     private String url;
+    private long fileSize;
+    private String eTag;
+    private String lastModified;
     private Range [] alreadyReadPartialRangeArray;
-    private int currentAlreadyDownloadedNumberOfBytes;
+    private Range [] assignedRangeArray;
+    // Counted again from the ranges when the metadata is read, older files hold it as an int.
+    private transient volatile long currentAlreadyDownloadedNumberOfBytes;
     
     /**
      * @param alreadyReadPartialRangeArray
@@ -58,6 +64,54 @@ public class DownloadableMetadataObject implements Serializable {
 	}
 
 
+	/**
+	 * @return
+	 */
+	public long getFileSize() {
+		return fileSize;
+	}
+
+
+	/**
+	 * @param fileSize
+	 */
+	public void setFileSize(long fileSize) {
+		this.fileSize = fileSize;
+	}
+
+
+	/**
+	 * @return
+	 */
+	public String getETag() {
+		return eTag;
+	}
+
+
+	/**
+	 * @param eTag
+	 */
+	public void setETag(String eTag) {
+		this.eTag = eTag;
+	}
+
+
+	/**
+	 * @return
+	 */
+	public String getLastModified() {
+		return lastModified;
+	}
+
+
+	/**
+	 * @param lastModified
+	 */
+	public void setLastModified(String lastModified) {
+		this.lastModified = lastModified;
+	}
+
+
 	/**
 	 * @return
 	 */
@@ -83,7 +137,60 @@ public class DownloadableMetadataObject implements Serializable {
 	/**
 	 * @return
 	 */
-	public int getCurrentAlreadyDownloadedNumberOfBytes() {
+	public Range[] getAssignedRangeArray() {
+		return assignedRangeArray;
+	}
+
+
+	/**
+	 * @param assignedRangeArray
+	 */
+	public void setAssignedRangeArray(Range[] assignedRangeArray) {
+		this.assignedRangeArray = assignedRangeArray;
+	}
+
+
+	/**
+	 * Splits the range equally between the workers, the last range also takes the
+	 * remainder of the division.
+	 * 
+	 * @param numberOfWorkersAndRanges
+	 * @param rangeSize
+	 * @param totalFileSize
+	 */
+	public void setAssignedRangeArray(int numberOfWorkersAndRanges, long rangeSize, long totalFileSize) {
+		this.assignedRangeArray = new Range[numberOfWorkersAndRanges];
+		for (int range = 0; range < numberOfWorkersAndRanges; range++) {
+			long start = range * rangeSize;
+			long end = range + 1 == numberOfWorkersAndRanges ? totalFileSize - 1 : start + rangeSize - 1;
+			this.assignedRangeArray[range] = new Range(start, end);
+		}
+	}
+
+
+	/**
+	 * Cuts the back part of a range (starting at splitOffset) into a new range.
+	 * 
+	 * @param rangeIndexer
+	 * @param splitOffset
+	 * @return the index of the new range
+	 */
+	public int splitRange(int rangeIndexer, long splitOffset) {
+		int newRangeIndexer = this.assignedRangeArray.length;
+		Range splitRange = this.assignedRangeArray[rangeIndexer];
+		this.assignedRangeArray = Arrays.copyOf(this.assignedRangeArray, newRangeIndexer + 1);
+		this.alreadyReadPartialRangeArray = Arrays.copyOf(this.alreadyReadPartialRangeArray, newRangeIndexer + 1);
+		this.assignedRangeArray[rangeIndexer] = new Range(splitRange.getStart(), splitOffset - 1);
+		this.assignedRangeArray[newRangeIndexer] = new Range(splitOffset, splitRange.getEnd());
+		this.alreadyReadPartialRangeArray[newRangeIndexer] = new Range(splitOffset, splitOffset);
+		return newRangeIndexer;
+	}
+
+
+	/**
+	 * @return
+	 */
+	public long getCurrentAlreadyDownloadedNumberOfBytes() {
 		return currentAlreadyDownloadedNumberOfBytes;
 	}
 
@@ -91,7 +198,7 @@ public class DownloadableMetadataObject implements Serializable {
 	/**
 	 * @param currentAlreadyDownloadedNumberOfBytes
 	 */
-	public void setCurrentAlreadyDownloadedNumberOfBytes(int currentAlreadyDownloadedNumberOfBytes) {
+	public void setCurrentAlreadyDownloadedNumberOfBytes(long currentAlreadyDownloadedNumberOfBytes) {
 		this.currentAlreadyDownloadedNumberOfBytes = currentAlreadyDownloadedNumberOfBytes;
 	}
 
@@ -0,0 +1,264 @@
+import java.util.Arrays;
+
+/**
+ * The bytes of a file which are written, as a sorted set of extents [start,
+ * end) held in arrays of primitive longs, without a Range or a Long per
+ * extent.
+ *
+ * Extents which overlap or touch are merged when added, so the set holds the
+ * fewest extents which describe the bytes: usually one per range being
+ * downloaded, plus the chunks written ahead of its front. The extents are kept
+ * in blocks of at most BLOCK_SIZE, in the order of the file, and a lookup is a
+ * binary search over the blocks' first starts and then one inside the block.
+ * Adding the next chunk of an extent only moves its end. An extent which
+ * starts a new hole, or fills one, moves the extents after it inside its block
+ * only, and a full block is split in two, so the cost doesn't grow with the
+ * number of extents even with tens of thousands of holes.
+ *
+ * An extent is named by its position, from first() or next(), which stays
+ * valid until the set changes.
+ *
+ * Not synchronized, the DownloadableMetadata which owns it is.
+ */
+class ExtentSet {
+	private static final int BLOCK_SIZE = 256;
+	private static final int INITIAL_BLOCKS = 4;
+
+	// The blocks in the order of the file. The arrays past the last block are kept for reuse.
+	private long[][] blockStarts = new long[INITIAL_BLOCKS][];
+	private long[][] blockEnds = new long[INITIAL_BLOCKS][];
+	private int[] blockSizes = new int[INITIAL_BLOCKS];
+	// The start of every block's first extent.
+	private long[] firstStarts = new long[INITIAL_BLOCKS];
+	private int blocks;
+	private long bytes;
+
+	/**
+	 * Adds the bytes [start, end), merged with the extents they overlap or
+	 * touch.
+	 *
+	 * @param start
+	 * @param end
+	 *            the byte after the last one
+	 */
+	void add(long start, long end) {
+		if (start >= end)
+			return;
+		int extent = floor(start);
+		if (extent == -1 || getEnd(extent) < start) {
+			// A new extent, after the one before it.
+			extent = insertAfter(extent, start);
+		}
+		// The extents starting inside the new bytes, or right after them, are merged into it.
+		long newEnd = Math.max(end, getEnd(extent));
+		this.bytes -= getEnd(extent) - getStart(extent);
+		int next = next(extent);
+		while (next != -1 && getStart(next) <= end) {
+			newEnd = Math.max(newEnd, getEnd(next));
+			this.bytes -= getEnd(next) - getStart(next);
+			// The extents after it move down, or the next block does: it is at the same position again.
+			remove(next);
+			next = next(extent);
+		}
+		this.blockEnds[extent / BLOCK_SIZE][extent % BLOCK_SIZE] = newEnd;
+		this.bytes += newEnd - getStart(extent);
+	}
+
+	/**
+	 * Removes all the extents.
+	 */
+	void clear() {
+		this.blocks = 0;
+		this.bytes = 0;
+	}
+
+	/**
+	 * @param offset
+	 * @return the first byte from offset on which is not in the set, the start
+	 *         of the next gap
+	 */
+	long nextMissing(long offset) {
+		int extent = floor(offset);
+		return extent != -1 && offset < getEnd(extent) ? getEnd(extent) : offset;
+	}
+
+	/**
+	 * @param offset
+	 * @return the first byte from offset on which is in the set, the end of the
+	 *         gap at offset, or Long.MAX_VALUE if there is none
+	 */
+	long nextPresent(long offset) {
+		int extent = floor(offset);
+		if (extent != -1 && offset < getEnd(extent))
+			return offset;
+		int next = extent == -1 ? first() : next(extent);
+		return next != -1 ? getStart(next) : Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return the number of bytes in the set
+	 */
+	long getBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * @return the position of the first extent in the file, or -1 if the set is
+	 *         empty
+	 */
+	int first() {
+		return this.blocks > 0 ? 0 : -1;
+	}
+
+	/**
+	 * @param extent
+	 *            the position of an extent
+	 * @return the position of the extent after it, or -1 if it is the last one
+	 */
+	int next(int extent) {
+		int block = extent / BLOCK_SIZE;
+		if (extent % BLOCK_SIZE + 1 < this.blockSizes[block])
+			return extent + 1;
+		return block + 1 < this.blocks ? (block + 1) * BLOCK_SIZE : -1;
+	}
+
+	/**
+	 * @param extent
+	 *            the position of an extent
+	 * @return
+	 */
+	long getStart(int extent) {
+		return this.blockStarts[extent / BLOCK_SIZE][extent % BLOCK_SIZE];
+	}
+
+	/**
+	 * @param extent
+	 *            the position of an extent
+	 * @return the byte after its last one
+	 */
+	long getEnd(int extent) {
+		return this.blockEnds[extent / BLOCK_SIZE][extent % BLOCK_SIZE];
+	}
+
+	/**
+	 * @param offset
+	 * @return the position of the last extent which starts at or before offset,
+	 *         or -1 if there is none
+	 */
+	private int floor(long offset) {
+		int block = Arrays.binarySearch(this.firstStarts, 0, this.blocks, offset);
+		block = block >= 0 ? block : -block - 2;
+		if (block < 0)
+			return -1;
+		int index = Arrays.binarySearch(this.blockStarts[block], 0, this.blockSizes[block], offset);
+		return block * BLOCK_SIZE + (index >= 0 ? index : -index - 2);
+	}
+
+	/**
+	 * Inserts an empty extent at start, right after an extent.
+	 *
+	 * @param extent
+	 *            the position of the extent before it, or -1 to insert it first
+	 * @param start
+	 * @return the new extent's position
+	 */
+	private int insertAfter(int extent, long start) {
+		int block;
+		int index;
+		if (extent == -1) {
+			if (this.blocks == 0)
+				insertBlock(0);
+			block = 0;
+			index = 0;
+		} else {
+			block = extent / BLOCK_SIZE;
+			index = extent % BLOCK_SIZE + 1;
+		}
+		if (this.blockSizes[block] == BLOCK_SIZE) {
+			// The upper half moves to a new block after it.
+			int half = BLOCK_SIZE / 2;
+			insertBlock(block + 1);
+			System.arraycopy(this.blockStarts[block], half, this.blockStarts[block + 1], 0, half);
+			System.arraycopy(this.blockEnds[block], half, this.blockEnds[block + 1], 0, half);
+			this.blockSizes[block] = half;
+			this.blockSizes[block + 1] = half;
+			this.firstStarts[block + 1] = this.blockStarts[block + 1][0];
+			if (index > half) {
+				block++;
+				index -= half;
+			}
+		}
+		long[] starts = this.blockStarts[block];
+		long[] ends = this.blockEnds[block];
+		int size = this.blockSizes[block];
+		System.arraycopy(starts, index, starts, index + 1, size - index);
+		System.arraycopy(ends, index, ends, index + 1, size - index);
+		starts[index] = start;
+		ends[index] = start;
+		this.blockSizes[block]++;
+		if (index == 0)
+			this.firstStarts[block] = start;
+		return block * BLOCK_SIZE + index;
+	}
+
+	/**
+	 * @param extent
+	 *            the position of the extent to remove
+	 */
+	private void remove(int extent) {
+		int block = extent / BLOCK_SIZE;
+		int index = extent % BLOCK_SIZE;
+		int size = --this.blockSizes[block];
+		if (size == 0) {
+			removeBlock(block);
+			return;
+		}
+		System.arraycopy(this.blockStarts[block], index + 1, this.blockStarts[block], index, size - index);
+		System.arraycopy(this.blockEnds[block], index + 1, this.blockEnds[block], index, size - index);
+		if (index == 0)
+			this.firstStarts[block] = this.blockStarts[block][0];
+	}
+
+	/**
+	 * Inserts an empty block, with the arrays of a removed one if there are any
+	 * left.
+	 *
+	 * @param block
+	 */
+	private void insertBlock(int block) {
+		if (this.blocks == this.blockStarts.length) {
+			int capacity = this.blocks * 2;
+			this.blockStarts = Arrays.copyOf(this.blockStarts, capacity);
+			this.blockEnds = Arrays.copyOf(this.blockEnds, capacity);
+			this.blockSizes = Arrays.copyOf(this.blockSizes, capacity);
+			this.firstStarts = Arrays.copyOf(this.firstStarts, capacity);
+		}
+		long[] starts = this.blockStarts[this.blocks];
+		long[] ends = this.blockEnds[this.blocks];
+		System.arraycopy(this.blockStarts, block, this.blockStarts, block + 1, this.blocks - block);
+		System.arraycopy(this.blockEnds, block, this.blockEnds, block + 1, this.blocks - block);
+		System.arraycopy(this.blockSizes, block, this.blockSizes, block + 1, this.blocks - block);
+		System.arraycopy(this.firstStarts, block, this.firstStarts, block + 1, this.blocks - block);
+		this.blockStarts[block] = starts != null ? starts : new long[BLOCK_SIZE];
+		this.blockEnds[block] = ends != null ? ends : new long[BLOCK_SIZE];
+		this.blockSizes[block] = 0;
+		this.blocks++;
+	}
+
+	/**
+	 * Removes an empty block, its arrays go past the last block for reuse.
+	 *
+	 * @param block
+	 */
+	private void removeBlock(int block) {
+		long[] starts = this.blockStarts[block];
+		long[] ends = this.blockEnds[block];
+		this.blocks--;
+		System.arraycopy(this.blockStarts, block + 1, this.blockStarts, block, this.blocks - block);
+		System.arraycopy(this.blockEnds, block + 1, this.blockEnds, block, this.blocks - block);
+		System.arraycopy(this.blockSizes, block + 1, this.blockSizes, block, this.blocks - block);
+		System.arraycopy(this.firstStarts, block + 1, this.firstStarts, block, this.blocks - block);
+		this.blockStarts[this.blocks] = starts;
+		this.blockEnds[this.blocks] = ends;
+	}
+}
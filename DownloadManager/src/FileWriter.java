@@ -1,6 +1,12 @@
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 /**
  * This class takes chunks from the queue, writes them to disk and updates the
@@ -8,19 +14,81 @@ import java.util.concurrent.BlockingQueue;
  *
  * NOTE: make sure that the file interface you choose writes every update to the
  * file's content or metadata synchronously to the underlying storage device.
+ *
+ * The file is kept open for the whole download. The queue is drained in
+ * batches, and chunks which follow each other in the file are written together
+ * by a single gathering write of up to MAX_WRITE_SIZE bytes.
  */
 public class FileWriter implements Runnable {
+	static final int MAX_WRITE_SIZE = 1024 * 1024;
+	private static final int MAX_BATCH_CHUNKS = MAX_WRITE_SIZE / HTTPRangeGetter.CHUNK_SIZE;
+	private static final Comparator<Chunk> BY_OFFSET = new Comparator<Chunk>() {
+		@Override
+		public int compare(Chunk chunk1, Chunk chunk2) {
+			return Long.compare(chunk1.getOffset(), chunk2.getOffset());
+		}
+	};
 	private int completedPercentage = 0;
-	private final BlockingQueue<Chunk> chunkQueue;
+	private final ChunkQueue chunkQueue;
 	private DownloadableMetadata downloadableMetadata;
+	private final ChunkBufferPool chunkBufferPool;
+	private final boolean reportProgress;
+	// The writers the file is striped across, null if this is its only writer.
+	private final StripedFileWriter stripes;
+	// Chunks taken from the queue but not yet on disk, kept for the retry.
+	private final List<Chunk> batch = new ArrayList<Chunk>(MAX_BATCH_CHUNKS);
+	// The bytes of the batch, recorded in the metadata together once it is written.
+	private final ExtentSet batchExtents = new ExtentSet();
+	// Failures in a row since a batch was last written.
+	private int attempt;
+
+	/**
+	 * @param downloadableMetadata
+	 * @param chunkQueue
+	 * @param chunkBufferPool
+	 */
+	FileWriter(DownloadableMetadata downloadableMetadata, ChunkQueue chunkQueue,
+			ChunkBufferPool chunkBufferPool) {
+		this(downloadableMetadata, chunkQueue, chunkBufferPool, true);
+	}
 
 	/**
 	 * @param downloadableMetadata
 	 * @param chunkQueue
+	 * @param chunkBufferPool
+	 * @param reportProgress
+	 *            false to leave out the percentage lines, e.g. in a batch of many
+	 *            files
 	 */
-	FileWriter(DownloadableMetadata downloadableMetadata, BlockingQueue<Chunk> chunkQueue) {
+	FileWriter(DownloadableMetadata downloadableMetadata, ChunkQueue chunkQueue,
+			ChunkBufferPool chunkBufferPool, boolean reportProgress) {
+		this(downloadableMetadata, chunkQueue, chunkBufferPool, reportProgress, null);
+	}
+
+	/**
+	 * One of the writers of a StripedFileWriter, which counts and commits the
+	 * progress of all of them.
+	 *
+	 * @param downloadableMetadata
+	 * @param chunkQueue
+	 *            the chunks of this writer's stripes
+	 * @param chunkBufferPool
+	 * @param stripes
+	 */
+	FileWriter(DownloadableMetadata downloadableMetadata, ChunkQueue chunkQueue, ChunkBufferPool chunkBufferPool,
+			StripedFileWriter stripes) {
+		this(downloadableMetadata, chunkQueue, chunkBufferPool, false, stripes);
+	}
+
+	private FileWriter(DownloadableMetadata downloadableMetadata, ChunkQueue chunkQueue,
+			ChunkBufferPool chunkBufferPool, boolean reportProgress, StripedFileWriter stripes) {
 		this.chunkQueue = chunkQueue;
 		this.downloadableMetadata = downloadableMetadata;
+		this.chunkBufferPool = chunkBufferPool;
+		this.reportProgress = reportProgress;
+		this.stripes = stripes;
+		// Chunks which won't be written are not waited for.
+		downloadableMetadata.getRetryPolicy().onFailure(chunkQueue::close);
 	}
 
 	/**
@@ -28,44 +96,106 @@ public class FileWriter implements Runnable {
 	 * @throws InterruptedException
 	 */
 	private void writeChunks() throws IOException, InterruptedException {
-		while (!downloadableMetadata.isCompleted()) {
-			Chunk nextChunkToWrite = chunkQueue.take();
-			long fileOffset = nextChunkToWrite.getOffset();
-			long fileSize = nextChunkToWrite.getSize_in_bytes();
-			RandomAccessFile randomAccessFile = null;
-			try {
-				 randomAccessFile = new RandomAccessFile(downloadableMetadata.getDownloadableMetadataObject().getFilename(), "rw");
-				 randomAccessFile.seek(fileOffset);
-				 randomAccessFile.write(nextChunkToWrite.getData(), 0, (int) fileSize);
-			}
-			catch (Exception e) {
-				e.printStackTrace();
+		try (FileChannel fileChannel = FileChannel.open(
+				Paths.get(downloadableMetadata.getDownloadableMetadataObject().getFilename()),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			PieceHasher pieceHasher = downloadableMetadata.getPieceHasher();
+			while (!downloadableMetadata.isCompleted()) {
+				if (batch.isEmpty()) {
+					Chunk chunk = chunkQueue.take();
+					// Closed: another stripe's writer wrote the last chunk.
+					if (chunk == null)
+						break;
+					batch.add(chunk);
+					chunkQueue.drainTo(batch, MAX_BATCH_CHUNKS - 1);
+					Collections.sort(batch, BY_OFFSET);
+				}
+				writeBatch(fileChannel);
+				attempt = 0;
+
+				long bytesWritten = 0;
+				for (Chunk chunk : batch) {
+					batchExtents.add(chunk.getOffset(), chunk.getOffset() + chunk.getSize_in_bytes());
+					if (pieceHasher != null)
+						pieceHasher.update(chunk);
+					bytesWritten += chunk.getSize_in_bytes();
+					chunkBufferPool.giveBack(chunk.getData());
+				}
+				batch.clear();
+				// One lock of the metadata per batch, the writers of the other stripes take it too.
+				downloadableMetadata.extendRanges(batchExtents);
+				batchExtents.clear();
+				if (stripes != null) {
+					stripes.commit(fileChannel, bytesWritten);
+					continue;
+				}
+				downloadableMetadata.getDownloadableMetadataObject()
+						.setCurrentAlreadyDownloadedNumberOfBytes(downloadableMetadata
+								.getDownloadableMetadataObject().getCurrentAlreadyDownloadedNumberOfBytes()
+								+ bytesWritten);
+
+				if (reportProgress)
+					progressPercent();
+				downloadableMetadata.commitProgress(() -> fileChannel.force(false), bytesWritten);
 			}
-			finally {
-				if(randomAccessFile!= null) randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Writes the batch (sorted by offset). Every run of adjacent chunks is
+	 * written by one gathering write of up to MAX_WRITE_SIZE bytes.
+	 *
+	 * @param fileChannel
+	 * @throws IOException
+	 */
+	private void writeBatch(FileChannel fileChannel) throws IOException {
+		int first = 0;
+		while (first < batch.size()) {
+			long runOffset = batch.get(first).getOffset();
+			long runEnd = runOffset + batch.get(first).getSize_in_bytes();
+			int last = first + 1;
+			while (last < batch.size() && batch.get(last).getOffset() == runEnd
+					&& runEnd - runOffset + batch.get(last).getSize_in_bytes() <= MAX_WRITE_SIZE) {
+				runEnd += batch.get(last).getSize_in_bytes();
+				last++;
 			}
-			
-			downloadableMetadata.extendRange(new Range(fileOffset, fileOffset + fileSize - 1));
-			downloadableMetadata.getDownloadableMetadataObject()
-					.setCurrentAlreadyDownloadedNumberOfBytes((int) (downloadableMetadata
-							.getDownloadableMetadataObject().getCurrentAlreadyDownloadedNumberOfBytes() + fileSize));
 
-			progressPercent();
-			downloadableMetadata.writeDownloadableMetadataObjToDisk();
+			ByteBuffer[] run = new ByteBuffer[last - first];
+			for (int i = 0; i < run.length; i++) {
+				// Write from duplicates, so a failed write can be retried with the same chunks.
+				run[i] = batch.get(first + i).getData().duplicate();
+			}
+			long writeStart = System.nanoTime();
+			fileChannel.position(runOffset);
+			long bytesLeft = runEnd - runOffset;
+			while (bytesLeft > 0) {
+				bytesLeft -= fileChannel.write(run);
+			}
+			DownloadMetrics.get().recordWrite(System.nanoTime() - writeStart);
+			first = last;
 		}
 	}
 
+	/**
+	 * Writes the chunks until the file is complete, the queue is closed or the
+	 * download failed. A failed write is retried as the download's RetryPolicy
+	 * says, from the batch it failed in.
+	 */
 	@Override
 	public void run() {
+		RetryPolicy retryPolicy = downloadableMetadata.getRetryPolicy();
 		try {
-			this.writeChunks();
-		} catch (IOException | InterruptedException e) {
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e1) {
-			} finally {
-				run();
+			while (true) {
+				try {
+					this.writeChunks();
+					return;
+				} catch (IOException e) {
+					if (!retryPolicy.retry(e, ++attempt))
+						return;
+				}
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
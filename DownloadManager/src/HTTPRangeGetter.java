@@ -1,92 +1,281 @@
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * A runnable class which downloads a given url. It reads CHUNK_SIZE at a time
- * and writs it into a BlockingQueue. It supports downloading a range of data,
- * and limiting the download rate using a token bucket.
+ * and hands it to a ChunkSink. It supports downloading a range of data,
+ * and limiting the download rate using a hierarchy of token buckets.
+ *
+ * When its range is done, the getter asks the RangeScheduler for the next one,
+ * until there is nothing left to download. Every range (and every retry of
+ * it) is downloaded from the mirror the MirrorSet picks at the time. A failed
+ * request is retried as the download's RetryPolicy says, from the first byte
+ * not handed to the sink yet.
+ *
+ * In the end game, a getter with nothing left to download waits for a range
+ * another getter is still downloading to slow down, and races it for the rest
+ * of the range. The getter which
+ * loses the race (all of its read was claimed by the other one already) closes
+ * its connection and moves on, and so does a getter which fails while the
+ * other one goes on.
  */
 public class HTTPRangeGetter implements Runnable {
 	public static final int CHUNK_SIZE = 4096;
-	private static final int CONNECT_TIMEOUT = 500;
-	private static final int READ_TIMEOUT = 2000;
-	private final String urlString;
-	private Range range;
-	private final BlockingQueue<Chunk> outQueue;
-	private TokenBucket tokenBucket;
-	private URL urlObj = null;
+	static final int CONNECT_TIMEOUT = 500;
+	static final int READ_TIMEOUT = 2000;
+	private static final int MAX_REDIRECTS = 5;
+	// The throughput of a mirror is measured every MEASURE_SIZE bytes.
+	private static final long MEASURE_SIZE = 256 * 1024;
+	private final MirrorSet mirrorSet;
+	private final RangeScheduler rangeScheduler;
+	private int rangeIndexer;
+	// Set when the getter was given a single range, it stops when that range is done.
+	private final boolean singleRange;
+	private volatile boolean stopped;
+	private final ChunkSink chunkSink;
+	private TokenBucketHierarchy tokenBucket;
+	private final ChunkBufferPool chunkBufferPool;
+	private final HttpConnectionPool httpConnectionPool;
+	private final RetryPolicy retryPolicy;
+	private final ConnectionMetrics connectionMetrics;
 	private InputStream inputStream;
-	private int totalBytesRead;
-	private int currentBytesRead;
 
 	/**
-	 * @param url
-	 * @param range
-	 * @param outQueue
+	 * @param mirrorSet
+	 * @param rangeScheduler
+	 * @param chunkSink
+	 * @param tokenBucket
+	 * @param chunkBufferPool
+	 * @param httpConnectionPool
+	 */
+	HTTPRangeGetter(MirrorSet mirrorSet, RangeScheduler rangeScheduler, ChunkSink chunkSink,
+			TokenBucketHierarchy tokenBucket, ChunkBufferPool chunkBufferPool, HttpConnectionPool httpConnectionPool) {
+		this(mirrorSet, rangeScheduler, -1, chunkSink, tokenBucket, chunkBufferPool, httpConnectionPool);
+	}
+
+	/**
+	 * A getter which downloads only the given range, already handed out by the
+	 * RangeScheduler.
+	 *
+	 * @param mirrorSet
+	 * @param rangeScheduler
+	 * @param rangeIndexer
+	 * @param chunkSink
 	 * @param tokenBucket
-	 * @throws MalformedURLException
+	 * @param chunkBufferPool
+	 * @param httpConnectionPool
 	 */
-	HTTPRangeGetter(String url, Range range, BlockingQueue<Chunk> outQueue, TokenBucket tokenBucket)
-			throws MalformedURLException {
-		this.urlString = url;
-		this.range = range;
-		this.outQueue = outQueue;
-		this.tokenBucket = tokenBucket;
-		this.urlObj = new URL(this.urlString);
-		this.currentBytesRead = 0;
-		this.totalBytesRead = 0;
+	HTTPRangeGetter(MirrorSet mirrorSet, RangeScheduler rangeScheduler, int rangeIndexer,
+			ChunkSink chunkSink, TokenBucketHierarchy tokenBucket, ChunkBufferPool chunkBufferPool,
+			HttpConnectionPool httpConnectionPool) {
+		this.mirrorSet = mirrorSet;
+		this.rangeScheduler = rangeScheduler;
+		this.rangeIndexer = rangeIndexer;
+		this.singleRange = rangeIndexer != -1;
+		this.chunkSink = chunkSink;
+		// Every connection also gets its own bucket below the download's ones.
+		this.tokenBucket = tokenBucket
+				.withLevel(TokenBucketHierarchy.level(TokenBucketHierarchy.CONNECTION, null));
+		this.chunkBufferPool = chunkBufferPool;
+		this.httpConnectionPool = httpConnectionPool;
+		this.retryPolicy = rangeScheduler.getRetryPolicy();
+		this.connectionMetrics = DownloadMetrics.get().newConnection();
 	}
 
 	@Override
 	public void run() {
+		// Failures in a row without progress, and the offset the range was at.
+		int attempt = 0;
+		long failedAt = -1;
 		try {
-			this.downloadRange();
-		} catch (IOException | InterruptedException e) {
-
-			this.range = new Range(this.range.getStart() + this.currentBytesRead, this.range.getEnd());
-			this.currentBytesRead = 0;
-			try {
-				Thread.sleep(1000);
-			} catch (Exception e1) {
-				e1.printStackTrace();
-			} finally {
-				run();
+			if (this.rangeIndexer == -1 && !this.singleRange)
+				this.rangeIndexer = this.rangeScheduler.awaitMissingRange();
+			while (this.rangeIndexer != -1 && !this.stopped && !this.retryPolicy.hasFailed()) {
+				try {
+					this.downloadRange();
+				} catch (IOException e) {
+					// The other getter of a raced range goes on with it, and the front left idle
+					// which the stream waits for is handed out first.
+					if (e instanceof ReorderBuffer.FrontIdleException || this.rangeScheduler.isRaced(this.rangeIndexer)) {
+						this.rangeScheduler.giveBack(this.rangeIndexer);
+						this.rangeIndexer = this.singleRange ? -1 : this.rangeScheduler.awaitMissingRange();
+						attempt = 0;
+						failedAt = -1;
+						continue;
+					}
+					this.connectionMetrics.retry();
+					// The scheduler knows the exact offset handed over so far, the retry
+					// asks for the rest of the range.
+					long offset = this.rangeScheduler.getRange(this.rangeIndexer).getStart();
+					attempt = offset == failedAt ? attempt + 1 : 1;
+					failedAt = offset;
+					if (!this.retryPolicy.retry(e, attempt))
+						break;
+					continue;
+				}
+				if (!this.stopped) {
+					this.rangeScheduler.giveBack(this.rangeIndexer);
+					this.rangeIndexer = this.singleRange ? -1 : this.rangeScheduler.awaitMissingRange();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (this.rangeIndexer != -1) {
+				// Stopped in the middle of the range, another getter goes on with it.
+				this.rangeScheduler.giveBack(this.rangeIndexer);
+				this.rangeIndexer = -1;
 			}
+			DownloadMetrics.get().closeConnection(this.connectionMetrics);
 		}
 	}
 
 	/**
-	 * * Downloads a file from a URL
-	 *  * @param fileURL HTTP URL of the file to be downloaded 
-	 *  	 @param saveDir path of the directory to save the file
-	 * * @throws IOException 
+	 * Asks the getter to stop as soon as possible, the rest of its range goes
+	 * back to the RangeScheduler.
+	 */
+	void stop() {
+		this.stopped = true;
+	}
+
+	/**
+	 * Downloads the range from a mirror, until it ends, until another getter
+	 * steals the rest of it or until the getter loses the race for it.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
 	 */
 	private void downloadRange() throws IOException, InterruptedException {
-		HttpURLConnection httpConnection = (HttpURLConnection) urlObj.openConnection();
-		httpConnection.setConnectTimeout(CONNECT_TIMEOUT);
-		httpConnection.setReadTimeout(READ_TIMEOUT);
-		httpConnection.setRequestProperty("Range", "bytes=" + this.range.getStart() + "-" + this.range.getEnd());
+		Range range = this.rangeScheduler.getRange(this.rangeIndexer);
+		if (range.getLength() <= 0)
+			return;
 
-		// opens input stream from the HTTP connection
-		httpConnection.connect();
-		this.inputStream = httpConnection.getInputStream();
+		MirrorSet.Mirror mirror = this.mirrorSet.acquire();
+		try {
+			downloadRange(range, mirror);
+		} catch (IOException e) {
+			// Leaving the range for the stream's front is no failure of the mirror.
+			if (!(e instanceof ReorderBuffer.FrontIdleException))
+				this.mirrorSet.fail(mirror, e);
+			throw e;
+		} finally {
+			this.mirrorSet.release(mirror);
+		}
+	}
+
+	/**
+	 * Downloads the range from the mirror. The request is sent on a pooled
+	 * keep-alive connection, which goes back to the pool for the next range.
+	 *
+	 * @param range
+	 * @param mirror
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void downloadRange(Range range, MirrorSet.Mirror mirror) throws IOException, InterruptedException {
+		HttpRangeConnection httpConnection = null;
+		URL url = mirror.getUrl();
+		for (int redirects = 0; httpConnection == null; redirects++) {
+			httpConnection = this.httpConnectionPool.requestRange(url, range, CONNECT_TIMEOUT, READ_TIMEOUT);
+			int statusCode = httpConnection.getStatusCode();
+			String location = httpConnection.getHeader("Location");
+			if (statusCode / 100 == 3 && location != null && redirects < MAX_REDIRECTS) {
+				this.httpConnectionPool.release(httpConnection);
+				httpConnection = null;
+				url = new URL(url, location);
+				// Only a permanent redirect sends the later ranges straight to the new location.
+				if (statusCode == 301 || statusCode == 308)
+					mirror.setUrl(url);
+			}
+		}
+
+		// The server which sends the bytes has a bucket of its own in the host level.
+		TokenBucketHierarchy requestTokenBucket = this.tokenBucket.forHost(HttpRangeConnection.getHostKey(url));
+		boolean reusable = false;
+		try {
+			int statusCode = httpConnection.getStatusCode();
+			String contentLength = httpConnection.getHeader("Content-Length");
+			String mismatch = this.mirrorSet.getMismatch(statusCode, httpConnection.getHeader("Content-Range"),
+					statusCode == 200 && contentLength != null ? Long.parseLong(contentLength) : -1,
+					httpConnection.getHeader("ETag"));
+			if (mismatch != null) {
+				String message = "Mirror " + mirror.getUrl() + " doesn't match: " + mismatch;
+				// The last mirror left has another file, no retry will fix that.
+				if (!this.mirrorSet.drop(mirror, mismatch))
+					throw new RetryPolicy.FatalException(message);
+				throw new IOException(message);
+			}
+			// A server which ignores the range sends the whole file, good only from its start.
+			if (statusCode != 206 && !(statusCode == 200 && range.getStart() == 0))
+				throw new IOException("Unexpected response status " + statusCode);
 
-		for (long i = this.range.getStart(); i < this.range.getEnd(); i++) {
-			byte[] chunk_buffer = new byte[CHUNK_SIZE];
-			if ((this.currentBytesRead = inputStream.read(chunk_buffer)) != -1) {
-				// Syncronize the download rate to the RateLimiter by using the TokenBucket.
-				tokenBucket.take(this.currentBytesRead);
-				outQueue.add(
-						new Chunk(chunk_buffer, this.range.getStart() + this.totalBytesRead, this.currentBytesRead));
-				this.totalBytesRead += this.currentBytesRead;
+			this.inputStream = httpConnection.getBody();
+			ReadableByteChannel inputChannel = Channels.newChannel(this.inputStream);
+			long offset = range.getStart();
+			long measureStart = System.nanoTime();
+			long bytesMeasured = 0;
+			while (true) {
+				ByteBuffer chunk_buffer = this.chunkBufferPool.borrow();
+				int bytesRead = inputChannel.read(chunk_buffer);
+				int bytesClaimed = 0;
+				long chunkOffset = offset;
+				if (bytesRead > 0) {
+					chunk_buffer.flip();
+					chunkOffset = this.rangeScheduler.claim(this.rangeIndexer, offset, chunk_buffer);
+					bytesClaimed = chunk_buffer.remaining();
+				}
+				if (bytesClaimed > 0) {
+					try {
+						// Syncronize the download rate by using the TokenBucket.
+						requestTokenBucket.take(bytesClaimed);
+						// The sink owns the buffer from now on.
+						chunkSink.put(new Chunk(chunk_buffer, chunkOffset, bytesClaimed));
+					} catch (IOException | InterruptedException e) {
+						// The chunk isn't on its way to the file, the retry (or the getter
+						// which takes the range over once this one is stopped) reads it again.
+						this.rangeScheduler.unclaim(this.rangeIndexer, chunkOffset);
+						throw e;
+					}
+					this.connectionMetrics.addBytes(bytesClaimed);
+				} else {
+					this.chunkBufferPool.giveBack(chunk_buffer);
+				}
+				bytesMeasured += bytesClaimed;
+				// A body which ends before the range does is a failure to retry, unless the
+				// rest of the range was stolen meanwhile.
+				if (bytesRead == -1 && offset <= range.getEnd()
+						&& this.rangeScheduler.getRange(this.rangeIndexer).getLength() > 0)
+					throw new EOFException("The connection closed at " + offset + ", before the end of the range at "
+							+ range.getEnd());
+				long readEnd = offset + Math.max(0, bytesRead);
+				offset = readEnd;
+				// The other getter of the raced range is ahead, leave the rest to it.
+				if (chunkOffset >= readEnd && bytesRead > 0)
+					return;
+				// Either the range is done or the rest of it was stolen by another getter.
+				boolean done = chunkOffset + bytesClaimed < readEnd || bytesRead == -1;
+				if (bytesMeasured >= MEASURE_SIZE || done) {
+					long now = System.nanoTime();
+					this.mirrorSet.record(mirror, bytesMeasured, now - measureStart);
+					measureStart = now;
+					bytesMeasured = 0;
+				}
+				if (done)
+					break;
+				if (this.stopped || this.retryPolicy.hasFailed())
+					return;
 			}
+			reusable = true;
+		} finally {
+			if (reusable)
+				this.httpConnectionPool.release(httpConnection);
+			else
+				this.httpConnectionPool.discard(httpConnection);
 		}
-		
-		inputStream.close();
-		httpConnection.disconnect();
 	}
 }
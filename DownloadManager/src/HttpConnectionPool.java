@@ -0,0 +1,209 @@
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A pool of persistent HTTP connections, per server (protocol, host and port).
+ *
+ * A getter takes a connection for every range request and gives it back when
+ * the response was read. The connection it gets next is the last one given
+ * back, so a getter usually sends its next range, or its retry, on the same
+ * keep-alive socket and skips the TCP and TLS handshakes.
+ *
+ * At most maxConnectionsPerHost connections (busy or idle) are open to a server,
+ * when all of them are busy the getter waits for one, up to its connect
+ * timeout. Idle connections are closed after idleTimeout milliseconds.
+ *
+ * Configured by -Didcdm.http.maxConnectionsPerHost (default 64) and
+ * -Didcdm.http.idleTimeout (milliseconds, default 15000).
+ */
+class HttpConnectionPool {
+	private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 64;
+	private static final long DEFAULT_IDLE_TIMEOUT = 15000;
+	// A range cut short by a stealing getter is read to its end if it's this small, to keep the connection.
+	private static final long DRAIN_LIMIT = 64 * 1024;
+
+	private final int maxConnectionsPerHost;
+	private final long idleTimeout;
+	private final Map<String, Deque<HttpRangeConnection>> idleConnections;
+	private final Map<String, Integer> openConnections;
+
+	/**
+	 * @param maxConnectionsPerHost
+	 * @param idleTimeout
+	 */
+	HttpConnectionPool(int maxConnectionsPerHost, long idleTimeout) {
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.idleTimeout = idleTimeout;
+		this.idleConnections = new HashMap<String, Deque<HttpRangeConnection>>();
+		this.openConnections = new HashMap<String, Integer>();
+	}
+
+	HttpConnectionPool() {
+		this(Integer.getInteger("idcdm.http.maxConnectionsPerHost", DEFAULT_MAX_CONNECTIONS_PER_HOST),
+				Long.getLong("idcdm.http.idleTimeout", DEFAULT_IDLE_TIMEOUT));
+	}
+
+	/**
+	 * @return
+	 */
+	int getMaxConnectionsPerHost() {
+		return this.maxConnectionsPerHost;
+	}
+
+	/**
+	 * Sends a range request on an idle connection to the url's server, or on a
+	 * new one. A reused connection may have been closed by the server in the
+	 * meantime, in which case the request is sent again on a new connection.
+	 *
+	 * @param url
+	 * @param range
+	 * @param connectTimeout
+	 * @param readTimeout
+	 * @return the connection, with the response's headers read
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	HttpRangeConnection requestRange(URL url, Range range, int connectTimeout, int readTimeout)
+			throws IOException, InterruptedException {
+		while (true) {
+			HttpRangeConnection connection = acquire(url, connectTimeout, readTimeout);
+			try {
+				connection.requestRange(url, range);
+				return connection;
+			} catch (IOException e) {
+				discard(connection);
+				if (!connection.isReused())
+					throw e;
+				DownloadMetrics.get().reconnect();
+			}
+		}
+	}
+
+	/**
+	 * Gives a connection back. Its response should be read by now, a short
+	 * leftover is read here, otherwise the connection can't be reused and is
+	 * closed.
+	 *
+	 * @param connection
+	 */
+	void release(HttpRangeConnection connection) {
+		if (!connection.drain(DRAIN_LIMIT) || !connection.isReusable()) {
+			discard(connection);
+			return;
+		}
+		connection.markIdle();
+		synchronized (this) {
+			getIdleConnections(connection.getHostKey()).addLast(connection);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Closes a connection which can't be reused.
+	 *
+	 * @param connection
+	 */
+	void discard(HttpRangeConnection connection) {
+		connection.close();
+		synchronized (this) {
+			this.openConnections.put(connection.getHostKey(), this.openConnections.get(connection.getHostKey()) - 1);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Closes all the idle connections.
+	 */
+	synchronized void close() {
+		for (Map.Entry<String, Deque<HttpRangeConnection>> connections : this.idleConnections.entrySet()) {
+			for (HttpRangeConnection connection : connections.getValue()) {
+				connection.close();
+			}
+			this.openConnections.put(connections.getKey(),
+					this.openConnections.get(connections.getKey()) - connections.getValue().size());
+			connections.getValue().clear();
+		}
+	}
+
+	/**
+	 * @param url
+	 * @param connectTimeout
+	 *            also the most milliseconds to wait for a free connection
+	 * @param readTimeout
+	 * @return
+	 * @throws IOException
+	 *             also if no connection was free in time
+	 * @throws InterruptedException
+	 */
+	private HttpRangeConnection acquire(URL url, int connectTimeout, int readTimeout)
+			throws IOException, InterruptedException {
+		String hostKey = HttpRangeConnection.getHostKey(url);
+		long deadline = System.currentTimeMillis() + connectTimeout;
+		synchronized (this) {
+			while (true) {
+				evictIdle(hostKey);
+				Deque<HttpRangeConnection> connections = getIdleConnections(hostKey);
+				if (!connections.isEmpty())
+					return connections.pollLast();
+				Integer open = this.openConnections.get(hostKey);
+				if (open == null || open < this.maxConnectionsPerHost) {
+					this.openConnections.put(hostKey, open == null ? 1 : open + 1);
+					break;
+				}
+				long timeLeft = deadline - System.currentTimeMillis();
+				if (timeLeft <= 0)
+					throw new IOException("No connection to " + hostKey + " was free within " + connectTimeout + " ms");
+				wait(timeLeft);
+			}
+		}
+
+		// Connect outside the lock, the slot for the connection is already taken.
+		try {
+			HttpRangeConnection connection = new HttpRangeConnection(url, connectTimeout, readTimeout);
+			DownloadMetrics.get().connectionOpened();
+			return connection;
+		} catch (IOException e) {
+			synchronized (this) {
+				this.openConnections.put(hostKey, this.openConnections.get(hostKey) - 1);
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the server's connections which were idle for too long.
+	 *
+	 * @param hostKey
+	 */
+	private void evictIdle(String hostKey) {
+		long now = System.currentTimeMillis();
+		Iterator<HttpRangeConnection> connections = getIdleConnections(hostKey).iterator();
+		while (connections.hasNext()) {
+			HttpRangeConnection connection = connections.next();
+			if (now - connection.getIdleSince() > this.idleTimeout) {
+				connections.remove();
+				connection.close();
+				this.openConnections.put(hostKey, this.openConnections.get(hostKey) - 1);
+			}
+		}
+	}
+
+	/**
+	 * @param hostKey
+	 * @return
+	 */
+	private Deque<HttpRangeConnection> getIdleConnections(String hostKey) {
+		Deque<HttpRangeConnection> connections = this.idleConnections.get(hostKey);
+		if (connections == null) {
+			connections = new ArrayDeque<HttpRangeConnection>();
+			this.idleConnections.put(hostKey, connections);
+		}
+		return connections;
+	}
+}
@@ -0,0 +1,414 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A persistent HTTP/1.1 connection to one server, which sends range requests
+ * one after the other on the same socket (keep-alive).
+ *
+ * Connections are handed out and taken back by an HttpConnectionPool. A
+ * connection can be reused once the body of its last response was read to the
+ * end, unless the server asked to close it.
+ *
+ * The proxy is the one the default ProxySelector picks for the url, as for
+ * HttpURLConnection (-Dhttp.proxyHost, -Dhttps.proxyHost, -Dhttp.nonProxyHosts,
+ * -DsocksProxyHost or -Djava.net.useSystemProxies). Through an HTTP proxy, a
+ * plain request names the whole url and an https one goes through a CONNECT
+ * tunnel. Proxies which ask for credentials aren't supported.
+ */
+class HttpRangeConnection {
+	private final String hostKey;
+	private final Socket socket;
+	private final InputStream socketIn;
+	private final OutputStream socketOut;
+	// Set when the requests go to an HTTP proxy, which needs the whole url.
+	private final boolean absoluteForm;
+	private boolean reused;
+	private long idleSince;
+	private int statusCode;
+	private Map<String, String> headers;
+	private BodyInputStream body;
+	private boolean keepAlive;
+
+	/**
+	 * @param url
+	 * @param connectTimeout
+	 * @param readTimeout
+	 * @throws IOException
+	 */
+	HttpRangeConnection(URL url, int connectTimeout, int readTimeout) throws IOException {
+		this.hostKey = getHostKey(url);
+		String host = url.getHost();
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		boolean https = url.getProtocol().equals("https");
+		Proxy proxy = selectProxy(url);
+		Socket plainSocket;
+		InetSocketAddress address;
+		if (proxy.type() == Proxy.Type.HTTP) {
+			plainSocket = new Socket();
+			InetSocketAddress proxyAddress = (InetSocketAddress) proxy.address();
+			// The selector leaves the proxy's name unresolved.
+			address = new InetSocketAddress(proxyAddress.getHostString(), proxyAddress.getPort());
+		} else if (proxy.type() == Proxy.Type.SOCKS) {
+			// The proxy resolves the host.
+			plainSocket = new Socket(proxy);
+			address = InetSocketAddress.createUnresolved(host, port);
+		} else {
+			plainSocket = new Socket();
+			address = new InetSocketAddress(host, port);
+		}
+		this.absoluteForm = proxy.type() == Proxy.Type.HTTP && !https;
+		try {
+			plainSocket.connect(address, connectTimeout);
+			plainSocket.setSoTimeout(readTimeout);
+			plainSocket.setTcpNoDelay(true);
+			if (proxy.type() == Proxy.Type.HTTP && https)
+				openTunnel(plainSocket, host, port);
+		} catch (IOException e) {
+			plainSocket.close();
+			throw e;
+		}
+		if (https) {
+			SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+					.createSocket(plainSocket, host, port, true);
+			SSLParameters sslParameters = sslSocket.getSSLParameters();
+			sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+			sslSocket.setSSLParameters(sslParameters);
+			sslSocket.startHandshake();
+			this.socket = sslSocket;
+		} else {
+			this.socket = plainSocket;
+		}
+		this.socketIn = new BufferedInputStream(this.socket.getInputStream(), 16 * 1024);
+		this.socketOut = this.socket.getOutputStream();
+	}
+
+	/**
+	 * @param url
+	 * @return the first HTTP or SOCKS proxy the default ProxySelector picks for
+	 *         the url, or Proxy.NO_PROXY
+	 */
+	private static Proxy selectProxy(URL url) {
+		ProxySelector proxySelector = ProxySelector.getDefault();
+		if (proxySelector == null)
+			return Proxy.NO_PROXY;
+		try {
+			List<Proxy> proxies = proxySelector.select(url.toURI());
+			for (Proxy proxy : proxies) {
+				if (proxy.type() == Proxy.Type.DIRECT || proxy.address() instanceof InetSocketAddress)
+					return proxy;
+			}
+		} catch (URISyntaxException e) {
+		}
+		return Proxy.NO_PROXY;
+	}
+
+	/**
+	 * Asks the HTTP proxy at the other end of the socket for a tunnel to the
+	 * server.
+	 *
+	 * @param socket
+	 * @param host
+	 * @param port
+	 * @throws IOException
+	 *             if the proxy refuses it
+	 */
+	private static void openTunnel(Socket socket, String host, int port) throws IOException {
+		String authority = host + ":" + port;
+		String request = "CONNECT " + authority + " HTTP/1.1\r\n" + "Host: " + authority + "\r\n\r\n";
+		OutputStream out = socket.getOutputStream();
+		out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+		// Unbuffered, the bytes after the proxy's headers belong to the server.
+		InputStream in = socket.getInputStream();
+		String statusLine = readLine(in);
+		String[] status = statusLine.split(" ", 3);
+		if (status.length < 2 || !status[1].equals("200"))
+			throw new IOException("The proxy refused the tunnel to " + authority + ": " + statusLine);
+		while (!readLine(in).isEmpty()) {
+		}
+	}
+
+	/**
+	 * @param url
+	 * @return the key of the pool the url's connections belong to
+	 */
+	static String getHostKey(URL url) {
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		return url.getProtocol() + "://" + url.getHost() + ":" + port;
+	}
+
+	/**
+	 * Sends a range request and reads the response's status line and headers.
+	 *
+	 * @param url
+	 * @param range
+	 * @return the response's body
+	 * @throws IOException
+	 */
+	InputStream requestRange(URL url, Range range) throws IOException {
+		String path = url.getFile().isEmpty() ? "/" : url.getFile();
+		String hostHeader = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+		String target = this.absoluteForm ? url.getProtocol() + "://" + hostHeader + path : path;
+		String request = "GET " + target + " HTTP/1.1\r\n" + "Host: " + hostHeader + "\r\n" + "Range: bytes="
+				+ range.getStart() + "-" + range.getEnd() + "\r\n" + "Accept-Encoding: identity\r\n"
+				+ "Connection: keep-alive\r\n\r\n";
+		this.socketOut.write(request.getBytes(StandardCharsets.ISO_8859_1));
+		this.socketOut.flush();
+
+		String statusLine = readLine();
+		String[] status = statusLine.split(" ", 3);
+		if (status.length < 2 || !status[0].startsWith("HTTP/"))
+			throw new IOException("Bad status line: " + statusLine);
+		this.statusCode = Integer.parseInt(status[1]);
+		this.headers = new HashMap<String, String>();
+		String headerLine;
+		while (!(headerLine = readLine()).isEmpty()) {
+			int colon = headerLine.indexOf(':');
+			if (colon > 0)
+				this.headers.put(headerLine.substring(0, colon).trim().toLowerCase(),
+						headerLine.substring(colon + 1).trim());
+		}
+		this.keepAlive = status[0].equals("HTTP/1.1") && !"close".equalsIgnoreCase(getHeader("Connection"));
+
+		String contentLength = getHeader("Content-Length");
+		if ("chunked".equalsIgnoreCase(getHeader("Transfer-Encoding"))) {
+			this.body = new ChunkedBodyInputStream();
+		} else if (contentLength != null) {
+			this.body = new BodyInputStream(Long.parseLong(contentLength));
+		} else {
+			// The body ends when the server closes the connection.
+			this.keepAlive = false;
+			this.body = new BodyInputStream(Long.MAX_VALUE);
+		}
+		return this.body;
+	}
+
+	/**
+	 * @return the body of the last response
+	 */
+	InputStream getBody() {
+		return this.body;
+	}
+
+	/**
+	 * @return
+	 */
+	int getStatusCode() {
+		return this.statusCode;
+	}
+
+	/**
+	 * @param name
+	 * @return the header's value, or null if the response has no such header
+	 */
+	String getHeader(String name) {
+		return this.headers.get(name.toLowerCase());
+	}
+
+	/**
+	 * Reads the rest of the body if it is no longer than limit, so the
+	 * connection can be reused.
+	 *
+	 * @param limit
+	 * @return true if the body was read to its end
+	 */
+	boolean drain(long limit) {
+		if (this.body == null)
+			return true;
+		try {
+			if (this.body.bytesLeft() > limit)
+				return false;
+			byte[] buffer = new byte[4096];
+			while (this.body.read(buffer) != -1) {
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if another request can be sent on this connection
+	 */
+	boolean isReusable() {
+		return this.keepAlive && (this.body == null || this.body.isFinished()) && !this.socket.isClosed();
+	}
+
+	/**
+	 * @return true if the connection already served an earlier request
+	 */
+	boolean isReused() {
+		return this.reused;
+	}
+
+	/**
+	 * Called by the pool when the connection goes back to the idle ones.
+	 */
+	void markIdle() {
+		this.reused = true;
+		this.idleSince = System.currentTimeMillis();
+		this.body = null;
+	}
+
+	/**
+	 * @return
+	 */
+	long getIdleSince() {
+		return this.idleSince;
+	}
+
+	/**
+	 * @return
+	 */
+	String getHostKey() {
+		return this.hostKey;
+	}
+
+	/**
+	 *
+	 */
+	void close() {
+		try {
+			this.socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * @return a CRLF terminated line, without the CRLF
+	 * @throws IOException
+	 */
+	private String readLine() throws IOException {
+		return readLine(this.socketIn);
+	}
+
+	/**
+	 * @param in
+	 * @return a CRLF terminated line, without the CRLF
+	 * @throws IOException
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int character;
+		while ((character = in.read()) != '\n') {
+			if (character == -1)
+				throw new EOFException("Connection closed by the server");
+			if (character != '\r')
+				line.append((char) character);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * A body of a known length.
+	 */
+	private class BodyInputStream extends InputStream {
+		protected long bytesLeft;
+
+		/**
+		 * @param length
+		 */
+		BodyInputStream(long length) {
+			this.bytesLeft = length;
+		}
+
+		/**
+		 * @return
+		 */
+		long bytesLeft() {
+			return this.bytesLeft;
+		}
+
+		/**
+		 * @return
+		 */
+		boolean isFinished() {
+			return this.bytesLeft == 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (this.bytesLeft == 0)
+				return -1;
+			int bytesRead = socketIn.read(buffer, offset, (int) Math.min(length, this.bytesLeft));
+			if (bytesRead == -1) {
+				if (this.bytesLeft != Long.MAX_VALUE)
+					throw new EOFException("Connection closed before the end of the body");
+				this.bytesLeft = 0;
+				return -1;
+			}
+			this.bytesLeft -= bytesRead;
+			return bytesRead;
+		}
+	}
+
+	/**
+	 * A body sent with "Transfer-Encoding: chunked".
+	 */
+	private class ChunkedBodyInputStream extends BodyInputStream {
+		private boolean lastChunk;
+
+		ChunkedBodyInputStream() {
+			super(0);
+		}
+
+		@Override
+		long bytesLeft() {
+			return this.lastChunk ? 0 : Long.MAX_VALUE;
+		}
+
+		@Override
+		boolean isFinished() {
+			return this.lastChunk;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (this.lastChunk)
+				return -1;
+			if (this.bytesLeft == 0) {
+				String sizeLine = readLine();
+				int extension = sizeLine.indexOf(';');
+				this.bytesLeft = Long.parseLong((extension == -1 ? sizeLine : sizeLine.substring(0, extension)).trim(),
+						16);
+				if (this.bytesLeft == 0) {
+					// Skip the trailers.
+					while (!readLine().isEmpty()) {
+					}
+					this.lastChunk = true;
+					return -1;
+				}
+			}
+			int bytesRead = socketIn.read(buffer, offset, (int) Math.min(length, this.bytesLeft));
+			if (bytesRead == -1)
+				throw new EOFException("Connection closed before the end of the body");
+			this.bytesLeft -= bytesRead;
+			if (this.bytesLeft == 0)
+				readLine();
+			return bytesRead;
+		}
+	}
+}
@@ -1,4 +1,9 @@
-import java.io.File;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
 
 public class IdcDm {
@@ -20,100 +25,297 @@ public class IdcDm {
 	final static long TIMEOUT = 10000; // default time out for network disconnection.
 	final static long QUEUE_EMPTY_TIMEOUT = 100000;
 	final static long EXECUTER_AWAIT_TERMINATION_TIMER = 20L;
-	final static long MAXIMUM_DOWNLOAD_RATE = 1000000;
+
+	/**
+	 * Tuning options are passed as system properties (java -D&lt;name&gt;=&lt;value&gt; IdcDm ...):
+	 *
+	 * idcdm.journal.sync - when progress is forced to disk: "&lt;N&gt;b" every N bytes,
+	 * "&lt;T&gt;ms" every T milliseconds (default 1000ms) or "never".
+	 *
+	 * idcdm.rate.global, idcdm.rate.host, idcdm.rate.connection - bytes per
+	 * second allowed for all the downloads, per server and per connection, on top
+	 * of the download's own limit (the third argument, unlimited if left out).
+	 * Every level, including "download", also takes idcdm.rate.&lt;level&gt;.burst
+	 * (bytes, default one second's worth) and idcdm.rate.&lt;level&gt;.mode
+	 * ("soft" or "hard").
+	 *
+	 * idcdm.engine - "threads" (default) for a thread per connection, or "async"
+	 * to run all the connections on idcdm.engine.threads threads (default 2).
+	 *
+	 * idcdm.http.maxConnectionsPerHost, idcdm.http.idleTimeout - the limit of
+	 * keep-alive connections open to a server (default 64), and how long an idle
+	 * one is kept (milliseconds, default 15000). In batch mode (-i) it is also
+	 * the number of connections working on the files of one server at a time.
+	 *
+	 * idcdm.http.version - "1.1" (default), or "2" to run the connections as
+	 * concurrent streams of idcdm.http2.connections HTTP/2 connections (default 1)
+	 * on the async engine. A server which doesn't speak HTTP/2 gets HTTP/1.1, a
+	 * connection per stream. HTTP/2 has not been benchmarked, the bench's
+	 * RangeServer only speaks HTTP/1.1.
+	 *
+	 * idcdm.connections.min, idcdm.connections.max, idcdm.connections.interval -
+	 * the bounds of the number of connections when it is "auto" (default 1 and
+	 * 16), and how often the throughput is measured to tune it (milliseconds,
+	 * default 1000).
+	 *
+	 * idcdm.output - "channel" (default) to write the chunks through the
+	 * FileWriter's queue, or "mmap" to size the file up front and have the
+	 * connections copy their chunks straight into it, memory-mapped.
+	 *
+	 * idcdm.queue.budget - the most bytes of chunks waiting for the FileWriter
+	 * (default 16MB, per file in batch mode). Connections wait for the writer
+	 * once it is reached.
+	 *
+	 * idcdm.writers - the number of FileWriter threads per file (default 1), each
+	 * one writing its own stripes of the file. The queue budget is shared by them.
+	 *
+	 * idcdm.verify - "on" to hash the file in pieces while it is written and
+	 * write its digests to FILE.sha256, or the name of such a manifest to compare
+	 * them with. idcdm.verify.digest is the expected SHA-256 of the file (the
+	 * same as sha256sum's), which is only computed then since it reads back the
+	 * bytes not written in order, and
+	 * idcdm.verify.pieceSize the size of the pieces (bytes, default 1MB). In batch mode every file is hashed, but not compared.
+	 *
+	 * idcdm.metrics.file, idcdm.metrics.interval - a file the metrics (also
+	 * registered as JMX MBeans under "idcdm:") are appended to as a JSON line,
+	 * every interval milliseconds (default 1000).
+	 *
+	 * idcdm.retry.delay, idcdm.retry.maxDelay, idcdm.retry.attempts,
+	 * idcdm.retry.budget - the backoff before the first retry and the longest one
+	 * (milliseconds, default 500 and 30000), the retries of a range in a row
+	 * without progress (default 8) and of the whole download (default 1000). A
+	 * download out of retries keeps its metadata, and the next run resumes it.
+	 *
+	 * idcdm.hedge.floor - in the end game, a range whose throughput fell below
+	 * this share of a typical connection's (default 0.25) is raced by an idle
+	 * connection, the slower one of the two is closed. 0 for no races.
+	 *
+	 * idcdm.stream - "stdout" to copy the file to stdout from its start while it
+	 * downloads (it is still written to disk). idcdm.stream.window is the most
+	 * bytes a connection is handed at a time from the front of the file (default
+	 * 4MB), and idcdm.stream.buffer the most bytes of chunks held back until the
+	 * ones before them arrive (default 16MB). A streamed download has a single
+	 * FileWriter.
+	 *
+	 * In batch mode MAX-DOWNLOAD-LIMIT is shared by all the files (it replaces
+	 * idcdm.rate.global), idcdm.rate.download limits each file, and the
+	 * connections are always threads over HTTP/1.1.
+	 */
 
 	public static void main(String[] args) {
 		int numberOfWorkers = 1;
+		// "auto" instead of the number of connections lets the ConnectionTuner choose it.
+		boolean autoConnections = false;
 		Long maxBytesPerSecond = null;
+		// "-i URL-LIST" downloads every URL of the list, "-i -" reads the list from stdin.
+		boolean batch = args.length >= 1 && args[0].equals("-i");
+		// Every URL after the first one is a mirror of the same file.
+		List<String> urls = new ArrayList<String>();
+		int argsOffset = batch ? 2 : 0;
+		while (!batch && argsOffset < args.length && args[argsOffset].contains("://")) {
+			urls.add(args[argsOffset++]);
+		}
 
-		if (args.length < 1 || args.length > 3) {
-			System.err.printf("usage:\n\tjava IdcDm URL [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]\n");
+		if ((batch ? args.length < 2 : urls.isEmpty()) || args.length > argsOffset + 2) {
+			System.err.printf("usage:\n\tjava IdcDm URL [MIRROR-URL...] [MAX-CONCURRENT-CONNECTIONS|auto] [MAX-DOWNLOAD-LIMIT]\n"
+					+ "\tjava IdcDm -i URL-LIST|- [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]\n"
+					+ "The proxy is taken from -Dhttp.proxyHost, -Dhttps.proxyHost or -DsocksProxyHost,"
+					+ " proxies which ask for credentials are not supported.\n");
 			System.exit(1);
-		} else if (args.length >= 2) {
-			numberOfWorkers = Integer.parseInt(args[1]);
-			if (args.length == 3)
-				maxBytesPerSecond = Long.parseLong(args[2]);
+		} else if (args.length >= argsOffset + 1) {
+			autoConnections = !batch && args[argsOffset].equals(ConnectionTuner.AUTO);
+			numberOfWorkers = autoConnections ? ConnectionTuner.getMinConnections() : Integer.parseInt(args[argsOffset]);
+			if (args.length == argsOffset + 2)
+				maxBytesPerSecond = Long.parseLong(args[argsOffset + 1]);
 		}
 
-		String url = args[0];
+		DownloadMetrics.get().startReporter();
+		if (batch) {
+			System.exit(DownloadBatch(args[1], numberOfWorkers, maxBytesPerSecond) ? 0 : 1);
+		}
 
 		System.err.printf("Downloading");
-		if (numberOfWorkers > 1)
+		if (urls.size() > 1)
+			System.err.printf(" from %d mirrors", urls.size());
+		if (autoConnections)
+			System.err.printf(" using %d to %d connections", ConnectionTuner.getMinConnections(),
+					ConnectionTuner.getMaxConnections());
+		else if (numberOfWorkers > 1)
 			System.err.printf(" using %d connections", numberOfWorkers);
 		if (maxBytesPerSecond != null)
 			System.err.printf(" limited to %d Bps", maxBytesPerSecond);
+		if (DownloadStream.isSelected())
+			System.err.printf(" to stdout");
 		System.err.printf("...\n");
 
-		DownloadURL(url, numberOfWorkers, maxBytesPerSecond);
+		DownloadURL(urls, numberOfWorkers, autoConnections, maxBytesPerSecond);
+	}
+
+	/**
+	 * Downloads all the URLs of a list, with numberOfConnections connections and
+	 * maxBytesPerSecond shared by all the files.
+	 *
+	 * @param urlList
+	 *            the list's file name, or "-" for stdin
+	 * @param numberOfConnections
+	 *            number of concurrent connections for the whole batch
+	 * @param maxBytesPerSecond
+	 *            limit on download bytes-per-second for the whole batch, null for
+	 *            no limit
+	 * @return true if every file was downloaded
+	 */
+	private static boolean DownloadBatch(String urlList, int numberOfConnections, Long maxBytesPerSecond) {
+		DownloadBatch downloadBatch = new DownloadBatch(numberOfConnections, maxBytesPerSecond);
+		try (BufferedReader reader = new BufferedReader(
+				urlList.equals("-") ? new InputStreamReader(System.in) : new FileReader(urlList))) {
+			downloadBatch.addAll(reader);
+			return downloadBatch.run();
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+			System.err.println("Failed to download the batch");
+			return false;
+		}
 	}
 
 	/**
 	 * Initiate the file's metadata, and iterate over missing ranges. For each: 1.
-	 * Setup the Queue, TokenBucket, DownloadableMetadata, FileWriter, RateLimiter,
-	 * and a pool of HTTPRangeGetters 2. Join the HTTPRangeGetters, send finish
-	 * marker to the Queue and terminate the TokenBucket 3. Join the FileWriter and
-	 * RateLimiter
+	 * Setup the Queue, TokenBucket, DownloadableMetadata, FileWriter, and a pool
+	 * of HTTPRangeGetters 2. Join the HTTPRangeGetters, send finish marker to the
+	 * Queue and terminate the TokenBucket 3. Join the FileWriter
 	 *
 	 * Finally, print "Download succeeded/failed" and delete the metadata as needed.
 	 *
-	 * @param url
-	 *            URL to download
+	 * @param urls
+	 *            URL to download, followed by its mirrors
 	 * @param numberOfWorkersAndRanges
 	 *            number of concurrent connections
+	 * @param autoConnections
+	 *            true to let a ConnectionTuner choose the number of connections,
+	 *            starting from numberOfWorkersAndRanges
 	 * @param maxBytesPerSecond
-	 *            limit on download bytes-per-second
+	 *            limit on download bytes-per-second, or null for
+	 *            -Didcdm.rate.download (unlimited if not set, as in batch mode)
 	 */
-	private static void DownloadURL(String url, int numberOfWorkersAndRanges, Long maxBytesPerSecond) {
-		// If 3rd argument is missing.
-		if (maxBytesPerSecond == null)
-			maxBytesPerSecond = MAXIMUM_DOWNLOAD_RATE;
-
+	private static void DownloadURL(List<String> urls, int numberOfWorkersAndRanges, boolean autoConnections,
+			Long maxBytesPerSecond) {
 		DownloadableMetadata downloadableMetadata = null;
+		// Set when the download ran out of retries, its metadata is kept for the next run.
+		boolean resumable = false;
 		try {
-			String MD_FileName = DownloadableMetadata.getMetadataName(DownloadableMetadata.getName(url));
-			File MD_File = new File(MD_FileName);
-			if (MD_File.exists()) {
-				DownloadableMetadataObject downloadableMetadataObject = DownloadableMetadata
-						.readObjectFromDisk(MD_FileName);
-				numberOfWorkersAndRanges = downloadableMetadataObject.getAlreadyReadPartialRangeArray().length;
-				downloadableMetadata = new DownloadableMetadata(url, numberOfWorkersAndRanges,
-						downloadableMetadataObject);
+			MirrorSet mirrorSet = new MirrorSet(urls);
+			downloadableMetadata = DownloadableMetadata.open(mirrorSet.getPrimaryUrl(), numberOfWorkersAndRanges);
+			// A resumed download is split again for the connections asked for now. With
+			// "auto" they are only the tuner's first guess, its idle getters steal ranges anyway.
+			if (!autoConnections)
+				downloadableMetadata.resplit(numberOfWorkersAndRanges);
+			mirrorSet.validate(downloadableMetadata.getFileSize(),
+					downloadableMetadata.getDownloadableMetadataObject().getETag());
+
+			boolean streaming = DownloadStream.isSelected();
+			// The writer's queue and the stream's reorder buffer may both be full.
+			ChunkBufferPool chunkBufferPool = new ChunkBufferPool(
+					Long.getLong(ChunkQueue.BUDGET_PROPERTY, ChunkQueue.DEFAULT_BUDGET)
+							+ (streaming ? Long.getLong(ReorderBuffer.BUFFER_PROPERTY, ReorderBuffer.DEFAULT_BUFFER) : 0),
+					autoConnections ? ConnectionTuner.getMaxConnections() : numberOfWorkersAndRanges);
+			HttpConnectionPool httpConnectionPool = new HttpConnectionPool();
+			// The host level is picked per mirror, they may be different servers.
+			TokenBucketHierarchy tokenBucket = new TokenBucketHierarchy(
+					TokenBucketHierarchy.level(TokenBucketHierarchy.GLOBAL, null)).withHostLevels()
+					.withLevel(TokenBucketHierarchy.level(TokenBucketHierarchy.DOWNLOAD, maxBytesPerSecond));
+			ChunkSink writerSink;
+			Runnable fileWriter;
+			ChunkQueue outQueue = null;
+			if (MappedFileWriter.isSelected()) {
+				// The getters write the chunks themselves, the "writer" only waits for the last one.
+				MappedFileWriter mappedFileWriter = new MappedFileWriter(downloadableMetadata, chunkBufferPool, true);
+				writerSink = mappedFileWriter;
+				fileWriter = mappedFileWriter;
+			} else if (StripedFileWriter.getNumberOfWriters() > 1 && !streaming) {
+				// The stripes are written out of order, while a stream waits for the file's start.
+				StripedFileWriter stripedFileWriter = new StripedFileWriter(downloadableMetadata,
+						StripedFileWriter.getNumberOfWriters(), chunkBufferPool, true);
+				writerSink = stripedFileWriter;
+				fileWriter = stripedFileWriter;
 			} else {
-				downloadableMetadata = new DownloadableMetadata(url, numberOfWorkersAndRanges);
+				outQueue = new ChunkQueue();
+				writerSink = outQueue;
+				fileWriter = new FileWriter(downloadableMetadata, outQueue, chunkBufferPool);
 			}
-
-			BlockingQueue<Chunk> outQueue = new LinkedTransferQueue<Chunk>();
-			TokenBucket tokenBucket = new TokenBucket(maxBytesPerSecond, maxBytesPerSecond);
-			FileWriter fileWriter = new FileWriter(downloadableMetadata, outQueue);
 			Thread fileWriterThread = new Thread(fileWriter);
-			RateLimiter rateLimiter = new RateLimiter(tokenBucket, maxBytesPerSecond);
-			Thread rateLimiterThread = new Thread(rateLimiter);
 
 			downloadableMetadata.writeDownloadableMetadataObjToDisk();
-			ExecutorService executor = Executors.newFixedThreadPool(numberOfWorkersAndRanges + 1);
-			rateLimiterThread.start();
-			executor.execute(fileWriterThread);
-			Range newRange;
-			while ((newRange = downloadableMetadata.getMissingRange()) != null) {
-				HTTPRangeGetter httpRangeGettergetter = new HTTPRangeGetter(url, newRange, outQueue, tokenBucket);
-				executor.execute(httpRangeGettergetter);
+			// "-Didcdm.verify=on" only computes the digests, any other value is a manifest to compare them with.
+			String expectedManifest = System.getProperty(PieceHasher.VERIFY_PROPERTY);
+			if (expectedManifest != null && expectedManifest.equals("on"))
+				expectedManifest = null;
+			if (PieceHasher.isSelected())
+				downloadableMetadata.setPieceHasher(new PieceHasher(downloadableMetadata, expectedManifest != null
+						? PieceHasher.readManifestPieceSize(expectedManifest) : PieceHasher.getPieceSize(),
+						System.getProperty(PieceHasher.DIGEST_PROPERTY) != null));
+			RangeScheduler rangeScheduler = new RangeScheduler(downloadableMetadata,
+					streaming ? DownloadStream.getWindowSize() : 0);
+			ChunkSink chunkSink = streaming ? new ReorderBuffer(writerSink, downloadableMetadata, rangeScheduler)
+					: writerSink;
+			Thread streamThread = streaming ? DownloadStream.copyToStdout(downloadableMetadata) : null;
+			ExecutorService executor;
+			AsyncRangeEngine asyncRangeEngine = null;
+			if (AsyncRangeEngine.isSelected()) {
+				// The connections don't take threads, the executor only runs the FileWriter.
+				executor = Executors.newSingleThreadExecutor();
+				executor.execute(fileWriterThread);
+				asyncRangeEngine = new AsyncRangeEngine(mirrorSet, rangeScheduler, chunkSink, tokenBucket, chunkBufferPool);
+				// The streams aren't tuned, "auto" runs as many of them as it may use.
+				asyncRangeEngine.start(autoConnections ? ConnectionTuner.getMaxConnections() : numberOfWorkersAndRanges);
+			} else if (autoConnections) {
+				executor = Executors.newCachedThreadPool();
+				executor.execute(fileWriterThread);
+				new ConnectionTuner(rangeScheduler, executor, () -> new HTTPRangeGetter(mirrorSet, rangeScheduler,
+						chunkSink, tokenBucket, chunkBufferPool, httpConnectionPool)).run();
+			} else {
+				executor = Executors.newFixedThreadPool(numberOfWorkersAndRanges + 1);
+				executor.execute(fileWriterThread);
+				for (int worker = 0; worker < numberOfWorkersAndRanges; worker++) {
+					HTTPRangeGetter httpRangeGettergetter = new HTTPRangeGetter(mirrorSet, rangeScheduler, chunkSink,
+							tokenBucket, chunkBufferPool, httpConnectionPool);
+					executor.execute(httpRangeGettergetter);
+				}
 			}
 
 			executor.shutdown();
 			// Wait for as long as the exectuer is not done running the HTTPGetters +
 			// FileWriter.
-			while (!executor.isTerminated()) {
-			}
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 
+			if (asyncRangeEngine != null)
+				asyncRangeEngine.shutdown();
+			httpConnectionPool.close();
 			tokenBucket.terminate();
-			rateLimiterThread.join();
+			if (streamThread != null)
+				streamThread.join();
+			RetryPolicy retryPolicy = downloadableMetadata.getRetryPolicy();
+			if (retryPolicy.hasFailed()) {
+				if (!retryPolicy.isFatal()) {
+					// The data first, the snapshot covers it.
+					downloadableMetadata.writeDownloadableMetadataObjToDisk(downloadableMetadata::forceFile);
+					resumable = true;
+					System.err.println("Run the download again to resume it");
+				}
+				throw retryPolicy.getFailure();
+			}
+			if (downloadableMetadata.getPieceHasher() != null && !downloadableMetadata.getPieceHasher()
+					.finish(expectedManifest, System.getProperty(PieceHasher.DIGEST_PROPERTY)))
+				throw new Exception("Verification failed");
 			System.err.println("Download succeeded");
+			if (outQueue != null && outQueue.getBlockedPuts() > 0)
+				System.err.printf("The writer held the connections back for %d ms (queue peak %d of %d bytes)\n",
+						TimeUnit.NANOSECONDS.toMillis(outQueue.getBlockedNanos()), outQueue.getPeakBytesQueued(),
+						outQueue.getBudget());
 
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.err.println("Failed to download file");
 		} finally {
-			if (downloadableMetadata != null)
+			if (downloadableMetadata != null && !resumable)
 				downloadableMetadata.delete();
 		}
 	}
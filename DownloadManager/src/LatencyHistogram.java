@@ -0,0 +1,67 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in power of two buckets of microseconds: bucket i
+ * holds the latencies below 2^i microseconds which are not in bucket i - 1.
+ * Recording is lock free, so the writers can record every write.
+ */
+class LatencyHistogram {
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 */
+	void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		this.buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+		this.count.incrementAndGet();
+		this.maxNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * @return
+	 */
+	long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 1
+	 * @return the upper bound, in microseconds, of the bucket of the given
+	 *         percentile (at most the maximum), or 0 if nothing was recorded
+	 */
+	long getPercentileMicros(double percentile) {
+		long count = this.count.get();
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(count * percentile);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += this.buckets.get(i);
+			if (seen >= rank)
+				return Math.min((1L << i) - 1, getMaxMicros());
+		}
+		return getMaxMicros();
+	}
+
+	/**
+	 * @return
+	 */
+	long getMaxMicros() {
+		return this.maxNanos.get() / 1000;
+	}
+
+	/**
+	 * @return the histogram's summary as a JSON object
+	 */
+	String toJson() {
+		return String.format("{\"count\":%d,\"p50Us\":%d,\"p99Us\":%d,\"maxUs\":%d}", getCount(),
+				getPercentileMicros(0.5), getPercentileMicros(0.99), getMaxMicros());
+	}
+}
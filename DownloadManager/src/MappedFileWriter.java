@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An alternative to the FileWriter's queue, selected with
+ * -Didcdm.output=mmap.
+ *
+ * The file is sized up front to the download's size and mapped in windows of
+ * WINDOW_SIZE bytes, each one mapped the first time a chunk falls in it. The
+ * getters copy their chunks straight into the mapped windows from their own
+ * threads, so there is no queue and no writer thread to hop through. They only
+ * note the bytes they copied, and don't commit them.
+ *
+ * As a Runnable it takes the FileWriter's place: it commits the bytes noted
+ * since the last commit together, every COMMIT_INTERVAL or as soon as the last
+ * ones are in the file (a group commit, like the FileWriter's after each
+ * batch), until the download completes or fails, then closes the file. When
+ * the journal syncs it forces the windows written since the last sync instead
+ * of the file channel, without holding up the getters.
+ */
+class MappedFileWriter implements ChunkSink, Runnable {
+	static final String OUTPUT_PROPERTY = "idcdm.output";
+	private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+	// Milliseconds between the commits.
+	private static final long COMMIT_INTERVAL = 100;
+
+	private final DownloadableMetadata downloadableMetadata;
+	private final ChunkBufferPool chunkBufferPool;
+	private final boolean reportProgress;
+	private final FileChannel fileChannel;
+	private final long fileSize;
+	private final MappedByteBuffer[] windows;
+	// Windows written since they were last forced, guarded by the windows array.
+	private final boolean[] dirtyWindows;
+	// The bytes copied since the last commit, guarded by this, and the ones being committed.
+	private ExtentSet pendingExtents = new ExtentSet();
+	private long pendingBytes;
+	private ExtentSet committedExtents = new ExtentSet();
+	// Failed commits in a row.
+	private int attempt;
+	private int completedPercentage = 0;
+
+	/**
+	 * Opens the file and sizes it to the download's size.
+	 *
+	 * @param downloadableMetadata
+	 * @param chunkBufferPool
+	 * @param reportProgress
+	 *            false to leave out the percentage lines, e.g. in a batch of many
+	 *            files
+	 * @throws IOException
+	 */
+	MappedFileWriter(DownloadableMetadata downloadableMetadata, ChunkBufferPool chunkBufferPool,
+			boolean reportProgress) throws IOException {
+		this.downloadableMetadata = downloadableMetadata;
+		this.chunkBufferPool = chunkBufferPool;
+		this.reportProgress = reportProgress;
+		this.fileSize = downloadableMetadata.getFileSize();
+		this.fileChannel = FileChannel.open(
+				Paths.get(downloadableMetadata.getDownloadableMetadataObject().getFilename()),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		// A window can't be mapped past the end of the file, an empty file has none.
+		if (this.fileSize > 0 && this.fileChannel.size() < this.fileSize)
+			this.fileChannel.write(ByteBuffer.wrap(new byte[1]), this.fileSize - 1);
+		int numberOfWindows = (int) ((this.fileSize + WINDOW_SIZE - 1) / WINDOW_SIZE);
+		this.windows = new MappedByteBuffer[numberOfWindows];
+		this.dirtyWindows = new boolean[numberOfWindows];
+		downloadableMetadata.getRetryPolicy().onFailure(this::wakeUp);
+	}
+
+	/**
+	 * @return true if the mapped output was selected instead of the FileWriter
+	 */
+	static boolean isSelected() {
+		return "mmap".equals(System.getProperty(OUTPUT_PROPERTY, "channel"));
+	}
+
+	/**
+	 * Copies the chunk into the file and notes its bytes for the next commit.
+	 * The chunk's bytes are in the file before its range is extended, so it only
+	 * throws if the chunk is not in the file, and the getter reads it again.
+	 *
+	 * @param chunk
+	 * @throws IOException
+	 */
+	@Override
+	public void put(Chunk chunk) throws IOException {
+		ByteBuffer data = chunk.getData();
+		long offset = chunk.getOffset();
+		while (data.hasRemaining()) {
+			int windowIndex = (int) (offset / WINDOW_SIZE);
+			// Getters share the window, each one writes through its own duplicate.
+			ByteBuffer window = getWindow(windowIndex).duplicate();
+			window.position((int) (offset % WINDOW_SIZE));
+			int length = Math.min(data.remaining(), window.remaining());
+			ByteBuffer part = data.duplicate();
+			part.limit(part.position() + length);
+			window.put(part);
+			data.position(data.position() + length);
+			offset += length;
+			synchronized (this.windows) {
+				this.dirtyWindows[windowIndex] = true;
+			}
+		}
+		data.rewind();
+		if (this.downloadableMetadata.getPieceHasher() != null)
+			this.downloadableMetadata.getPieceHasher().update(chunk);
+		this.chunkBufferPool.giveBack(data);
+		synchronized (this) {
+			this.pendingExtents.add(chunk.getOffset(), chunk.getOffset() + chunk.getSize_in_bytes());
+			this.pendingBytes += chunk.getSize_in_bytes();
+			// The download waits for the last bytes, they are committed right away.
+			if (isLastPending())
+				notifyAll();
+		}
+	}
+
+	/**
+	 * @return true if the bytes noted are the last ones of the file
+	 */
+	private boolean isLastPending() {
+		return this.downloadableMetadata.getDownloadableMetadataObject().getCurrentAlreadyDownloadedNumberOfBytes()
+				+ this.pendingBytes >= this.fileSize;
+	}
+
+	/**
+	 * Extends the ranges with the bytes noted since the last commit, counts
+	 * them and commits them, without holding up the getters which copy more
+	 * chunks meanwhile.
+	 *
+	 * @throws IOException
+	 */
+	private void commit() throws IOException {
+		long bytesWritten;
+		ExtentSet extents;
+		synchronized (this) {
+			bytesWritten = this.pendingBytes;
+			if (bytesWritten == 0)
+				return;
+			extents = this.pendingExtents;
+			this.pendingExtents = this.committedExtents;
+			this.committedExtents = extents;
+			this.pendingBytes = 0;
+		}
+		this.downloadableMetadata.extendRanges(extents);
+		extents.clear();
+		DownloadableMetadataObject downloadableMetadataObject = this.downloadableMetadata
+				.getDownloadableMetadataObject();
+		downloadableMetadataObject.setCurrentAlreadyDownloadedNumberOfBytes(
+				downloadableMetadataObject.getCurrentAlreadyDownloadedNumberOfBytes() + bytesWritten);
+		if (this.reportProgress)
+			progressPercent();
+		this.downloadableMetadata.commitProgress(this::force, bytesWritten);
+	}
+
+	/**
+	 * Copies the chunk into the file like put, there is no queue to wait for.
+	 *
+	 * @param chunk
+	 * @param whenReady
+	 * @return true
+	 * @throws IOException
+	 */
+	@Override
+	public boolean offer(Chunk chunk, Runnable whenReady) throws IOException {
+		put(chunk);
+		return true;
+	}
+
+	/**
+	 * @param windowIndex
+	 * @return the window, mapped the first time it is asked for
+	 * @throws IOException
+	 */
+	private MappedByteBuffer getWindow(int windowIndex) throws IOException {
+		synchronized (this.windows) {
+			if (this.windows[windowIndex] == null) {
+				long windowStart = windowIndex * WINDOW_SIZE;
+				this.windows[windowIndex] = this.fileChannel.map(FileChannel.MapMode.READ_WRITE, windowStart,
+						Math.min(WINDOW_SIZE, this.fileSize - windowStart));
+			}
+			return this.windows[windowIndex];
+		}
+	}
+
+	/**
+	 * Forces the windows written since the last call to disk. A chunk copied
+	 * while they are forced marks its window again for the next call.
+	 */
+	private void force() {
+		for (int windowIndex = 0; windowIndex < this.windows.length; windowIndex++) {
+			MappedByteBuffer window;
+			synchronized (this.windows) {
+				if (!this.dirtyWindows[windowIndex])
+					continue;
+				this.dirtyWindows[windowIndex] = false;
+				window = this.windows[windowIndex];
+			}
+			window.force();
+		}
+	}
+
+	/**
+	 * Waits for the next commit, COMMIT_INTERVAL at most.
+	 *
+	 * @throws InterruptedException
+	 */
+	private synchronized void awaitCommit() throws InterruptedException {
+		if (!isLastPending() && !this.downloadableMetadata.getRetryPolicy().hasFailed())
+			wait(COMMIT_INTERVAL);
+	}
+
+	/**
+	 * Wakes up run(), the download failed.
+	 */
+	private synchronized void wakeUp() {
+		notifyAll();
+	}
+
+	/**
+	 * Commits the progress until the download completes or fails. A commit
+	 * which fails is retried as the download's RetryPolicy says.
+	 */
+	@Override
+	public void run() {
+		RetryPolicy retryPolicy = this.downloadableMetadata.getRetryPolicy();
+		try {
+			while (!this.downloadableMetadata.isCompleted() && !retryPolicy.hasFailed()) {
+				awaitCommit();
+				try {
+					commit();
+					this.attempt = 0;
+				} catch (IOException e) {
+					if (!retryPolicy.retry(e, ++this.attempt))
+						break;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			// The windows are unmapped once they are collected, the file stays mapped until then.
+			this.fileChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Prints the current percentage of the download every time it changes.
+	 */
+	private void progressPercent() {
+		long bytesDownloaded = this.downloadableMetadata.getDownloadableMetadataObject()
+				.getCurrentAlreadyDownloadedNumberOfBytes();
+		int currPercent = (int) Math.floor((bytesDownloaded * 100) / this.fileSize);
+		if (this.completedPercentage != currPercent) {
+			System.err.println("Downloaded so far: " + currPercent + "%");
+			this.completedPercentage = currPercent;
+		}
+	}
+}
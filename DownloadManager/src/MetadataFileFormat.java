@@ -0,0 +1,118 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.zip.CRC32;
+
+/**
+ * The binary format of the metadata snapshot file.
+ *
+ * Layout (big endian):
+ *
+ * int magic "IDMD", short version, UTF filename, UTF url, long file size,
+ * UTF ETag, UTF Last-Modified (empty when the server sent none), int number of
+ * ranges, and for every range three longs: start, end, and the next byte to
+ * read. The file ends with the CRC32 of everything before it, as an int.
+ *
+ * Files written by older versions with Java serialization are still read, and
+ * are rewritten in this format by the next snapshot.
+ */
+class MetadataFileFormat {
+	static final int MAGIC = 0x49444D44;
+	static final short VERSION = 1;
+	private static final int SERIALIZATION_MAGIC = 0xACED;
+
+	/**
+	 * @param downloadableMetadataObject
+	 * @return the file's content
+	 * @throws IOException
+	 */
+	static byte[] encode(DownloadableMetadataObject downloadableMetadataObject) throws IOException {
+		Range[] assignedRanges = downloadableMetadataObject.getAssignedRangeArray();
+		Range[] rangesAlreadyRead = downloadableMetadataObject.getAlreadyReadPartialRangeArray();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 + assignedRanges.length * 24);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeUTF(downloadableMetadataObject.getFilename());
+		out.writeUTF(downloadableMetadataObject.getUrl());
+		out.writeLong(downloadableMetadataObject.getFileSize());
+		out.writeUTF(nullToEmpty(downloadableMetadataObject.getETag()));
+		out.writeUTF(nullToEmpty(downloadableMetadataObject.getLastModified()));
+		out.writeInt(assignedRanges.length);
+		for (int range = 0; range < assignedRanges.length; range++) {
+			out.writeLong(assignedRanges[range].getStart());
+			out.writeLong(assignedRanges[range].getEnd());
+			out.writeLong(rangesAlreadyRead[range].getEnd());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeInt((int) crc.getValue());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param content
+	 *            the file's content, in this format or Java serialization
+	 * @return
+	 * @throws IOException
+	 *             if the file is corrupted or of an unknown version
+	 * @throws ClassNotFoundException
+	 */
+	static DownloadableMetadataObject decode(byte[] content) throws IOException, ClassNotFoundException {
+		if (content.length >= 2 && ((content[0] & 0xFF) << 8 | (content[1] & 0xFF)) == SERIALIZATION_MAGIC) {
+			try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(content))) {
+				return (DownloadableMetadataObject) in.readObject();
+			}
+		}
+
+		if (content.length < 4)
+			throw new IOException("Metadata file is truncated");
+		CRC32 crc = new CRC32();
+		crc.update(content, 0, content.length - 4);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a metadata file");
+		short version = in.readShort();
+		if (version != VERSION)
+			throw new IOException("Unknown metadata version " + version);
+
+		DownloadableMetadataObject downloadableMetadataObject = new DownloadableMetadataObject(in.readUTF(),
+				in.readUTF());
+		downloadableMetadataObject.setFileSize(in.readLong());
+		downloadableMetadataObject.setETag(emptyToNull(in.readUTF()));
+		downloadableMetadataObject.setLastModified(emptyToNull(in.readUTF()));
+		int numberOfRanges = in.readInt();
+		Range[] assignedRanges = new Range[numberOfRanges];
+		Range[] rangesAlreadyRead = new Range[numberOfRanges];
+		for (int range = 0; range < numberOfRanges; range++) {
+			long start = in.readLong();
+			assignedRanges[range] = new Range(start, in.readLong());
+			rangesAlreadyRead[range] = new Range(start, in.readLong());
+		}
+		if (in.readInt() != (int) crc.getValue())
+			throw new IOException("Metadata file is corrupted");
+		downloadableMetadataObject.setAssignedRangeArray(assignedRanges);
+		downloadableMetadataObject.setAlreadyReadPartialRangeArray(rangesAlreadyRead);
+		return downloadableMetadataObject;
+	}
+
+	/**
+	 * @param value
+	 * @return
+	 */
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+
+	/**
+	 * @param value
+	 * @return
+	 */
+	private static String emptyToNull(String value) {
+		return value.isEmpty() ? null : value;
+	}
+}
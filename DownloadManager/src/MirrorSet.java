@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The URLs (mirrors) the same file is downloaded from. The first one is the
+ * primary URL: the file is named after it and its size and validators are the
+ * ones kept in the metadata.
+ *
+ * A getter takes a mirror for every range it downloads. The mirrors share the
+ * connections in proportion to the throughput each of them gives a connection
+ * (an exponentially weighted average of its measurements), a mirror not yet
+ * measured is expected to be as fast as the fastest one. The RangeScheduler does the rest: getters of fast
+ * mirrors finish first and steal the back half of the ranges of slow ones.
+ *
+ * A mirror whose file doesn't match the primary one (size, ETag or a client
+ * error status) is dropped at once, and one which fails MAX_FAILURES times in a
+ * row is dropped too. The last mirror left is never dropped, its getters go on
+ * retrying it like with a single URL, but a mismatch of the last mirror fails
+ * the download.
+ */
+class MirrorSet {
+	private static final int MAX_FAILURES = 3;
+	// Weight of a new measurement in a mirror's throughput.
+	private static final double THROUGHPUT_ALPHA = 0.3;
+
+	private final String primaryUrl;
+	private final List<Mirror> mirrors;
+	private long fileSize = -1;
+	private String eTag;
+
+	/**
+	 * @param urls
+	 *            the primary URL first
+	 * @throws MalformedURLException
+	 */
+	MirrorSet(List<String> urls) throws MalformedURLException {
+		this.primaryUrl = urls.get(0);
+		this.mirrors = new ArrayList<Mirror>();
+		for (String url : urls) {
+			this.mirrors.add(new Mirror(new URL(url)));
+		}
+	}
+
+	/**
+	 * @return the URL the file and its metadata are named after
+	 */
+	String getPrimaryUrl() {
+		return this.primaryUrl;
+	}
+
+	/**
+	 * @return the number of mirrors not dropped
+	 */
+	synchronized int size() {
+		int size = 0;
+		for (Mirror mirror : this.mirrors) {
+			if (!mirror.dropped)
+				size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Asks every mirror but the primary one for the first byte of the file, and
+	 * drops the mirrors whose file doesn't have the primary file's size and ETag.
+	 *
+	 * @param fileSize
+	 *            the size of the primary file
+	 * @param eTag
+	 *            the ETag of the primary file, or null
+	 */
+	void validate(long fileSize, String eTag) {
+		this.fileSize = fileSize;
+		this.eTag = eTag;
+		for (Mirror mirror : this.mirrors.subList(1, this.mirrors.size())) {
+			String mismatch;
+			try {
+				HttpURLConnection connection = (HttpURLConnection) mirror.getUrl().openConnection();
+				connection.setConnectTimeout(HTTPRangeGetter.CONNECT_TIMEOUT);
+				connection.setReadTimeout(HTTPRangeGetter.READ_TIMEOUT);
+				connection.setRequestProperty("Range", "bytes=0-0");
+				int statusCode = connection.getResponseCode();
+				mismatch = getMismatch(statusCode, connection.getHeaderField("Content-Range"),
+						statusCode == 200 ? connection.getContentLengthLong() : -1, connection.getHeaderField("ETag"));
+				connection.disconnect();
+			} catch (IOException e) {
+				mismatch = e.toString();
+			}
+			if (mismatch != null)
+				drop(mirror, mismatch);
+		}
+	}
+
+	/**
+	 * Compares a mirror's response with the primary file.
+	 *
+	 * @param statusCode
+	 * @param contentRange
+	 *            the response's Content-Range header, or null
+	 * @param contentLength
+	 *            the size of a whole file response, or -1
+	 * @param eTag
+	 *            the response's ETag header, or null
+	 * @return why the response is not of the primary file, or null if it is
+	 */
+	String getMismatch(int statusCode, String contentRange, long contentLength, String eTag) {
+		// A timeout or too many requests is the server's trouble, not a sign of another file.
+		if (statusCode / 100 == 4 && statusCode != 408 && statusCode != 429)
+			return "HTTP " + statusCode;
+		if (statusCode != 200 && statusCode != 206)
+			return null;
+		long size = contentLength;
+		if (contentRange != null && contentRange.lastIndexOf('/') != -1) {
+			String total = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+			size = total.equals("*") ? -1 : Long.parseLong(total);
+		}
+		if (this.fileSize != -1 && size != -1 && size != this.fileSize)
+			return "size " + size + " instead of " + this.fileSize;
+		if (this.eTag != null && eTag != null && !this.eTag.equals(eTag))
+			return "ETag " + eTag + " instead of " + this.eTag;
+		return null;
+	}
+
+	/**
+	 * @return the mirror which would have the smallest share of the connections
+	 *         compared to its throughput after getting another one
+	 */
+	synchronized Mirror acquire() {
+		// A mirror not measured yet is expected to be as fast as the fastest one.
+		double fastest = 0;
+		for (Mirror mirror : this.mirrors) {
+			if (!mirror.dropped)
+				fastest = Math.max(fastest, mirror.bytesPerNano);
+		}
+		Mirror chosen = null;
+		double chosenShare = 0;
+		for (Mirror mirror : this.mirrors) {
+			if (mirror.dropped)
+				continue;
+			double bytesPerNano = mirror.bytesPerNano != 0 ? mirror.bytesPerNano : fastest;
+			double share = bytesPerNano == 0 ? mirror.activeConnections
+					: (mirror.activeConnections + 1) / bytesPerNano;
+			if (chosen == null || share < chosenShare) {
+				chosen = mirror;
+				chosenShare = share;
+			}
+		}
+		chosen.activeConnections++;
+		return chosen;
+	}
+
+	/**
+	 * @param mirror
+	 *            a mirror taken by acquire() which the getter is done with
+	 */
+	synchronized void release(Mirror mirror) {
+		mirror.activeConnections--;
+	}
+
+	/**
+	 * Adds a measurement of the throughput a connection got from the mirror.
+	 *
+	 * @param mirror
+	 * @param bytes
+	 * @param nanos
+	 */
+	synchronized void record(Mirror mirror, long bytes, long nanos) {
+		if (bytes <= 0 || nanos <= 0)
+			return;
+		double bytesPerNano = (double) bytes / nanos;
+		mirror.bytesPerNano = mirror.bytesPerNano == 0 ? bytesPerNano
+				: THROUGHPUT_ALPHA * bytesPerNano + (1 - THROUGHPUT_ALPHA) * mirror.bytesPerNano;
+		mirror.failures = 0;
+	}
+
+	/**
+	 * @param mirror
+	 * @param e
+	 *            why the request failed
+	 */
+	synchronized void fail(Mirror mirror, IOException e) {
+		if (++mirror.failures >= MAX_FAILURES)
+			drop(mirror, MAX_FAILURES + " failures in a row, the last one " + e);
+	}
+
+	/**
+	 * @param mirror
+	 * @param reason
+	 * @return false if the mirror is the last one left, and was kept
+	 */
+	synchronized boolean drop(Mirror mirror, String reason) {
+		if (mirror.dropped)
+			return true;
+		if (size() == 1)
+			return false;
+		mirror.dropped = true;
+		System.err.println("Dropping mirror " + mirror.getUrl() + ": " + reason);
+		return true;
+	}
+
+	/**
+	 * One of the URLs of the file.
+	 */
+	static class Mirror {
+		private URL url;
+		private int activeConnections;
+		// Throughput of one connection, 0 until measured.
+		private double bytesPerNano;
+		private int failures;
+		private boolean dropped;
+
+		/**
+		 * @param url
+		 */
+		Mirror(URL url) {
+			this.url = url;
+		}
+
+		/**
+		 * @return
+		 */
+		synchronized URL getUrl() {
+			return this.url;
+		}
+
+		/**
+		 * The mirror moved (a redirect), its next ranges go straight to the new
+		 * location.
+		 *
+		 * @param url
+		 */
+		synchronized void setUrl(URL url) {
+			this.url = url;
+		}
+	}
+}
@@ -0,0 +1,551 @@
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the downloaded bytes while they are written, selected with
+ * -Didcdm.verify.
+ *
+ * The file is cut into pieces of -Didcdm.verify.pieceSize bytes (default
+ * 1MB), and every piece gets its own SHA-256. The writers pass their chunks through update() right after writing
+ * them: a piece whose bytes arrive in order (most of them, a range is
+ * downloaded from its start) is hashed straight from the chunks. A piece whose
+ * bytes arrive out of order, where two ranges meet, or which was half
+ * downloaded by an earlier run, is read back from the file once it is complete,
+ * while it is still in the page cache.
+ *
+ * The file's root is the SHA-256 of its pieces' digests, which costs no more
+ * reading. A plain SHA-256 of the file, the one sha256sum prints, is only
+ * computed when one is expected: it is fed in the order of the file, a chunk
+ * which continues the bytes hashed so far from memory, and the completed
+ * pieces after it read back from the file once the hashed bytes reach them.
+ * The read back is done outside the lock of the digest, by one writer at a
+ * time, so the other writers don't wait on the disk. The bytes ahead of the
+ * first range are read back as the ranges before them complete, and a resumed
+ * download reads back all that the earlier run wrote.
+ *
+ * The digests of the completed pieces are appended to a side file next to the
+ * metadata, so a resumed download only hashes the pieces it didn't complete.
+ * At the end the pieces, the root and the file's digest, if computed, are
+ * written to a manifest, and compared with the expected manifest or digest if
+ * one was given.
+ */
+class PieceHasher {
+	static final String VERIFY_PROPERTY = "idcdm.verify";
+	static final String DIGEST_PROPERTY = "idcdm.verify.digest";
+	static final String PIECE_SIZE_PROPERTY = "idcdm.verify.pieceSize";
+	static final String MANIFEST_SUFFIX = ".sha256";
+	private static final String PIECES_SUFFIX = ".pieces";
+	private static final int DEFAULT_PIECE_SIZE = 1024 * 1024;
+	private static final String ALGORITHM = "SHA-256";
+	private static final int DIGEST_SIZE = 32;
+	// A record of the side file: the piece's index followed by its digest.
+	private static final int RECORD_SIZE = 4 + DIGEST_SIZE;
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private final String filename;
+	private final long fileSize;
+	private final int pieceSize;
+	private final Piece[] pieces;
+	private final FileChannel piecesChannel;
+	private FileChannel readChannel;
+	private int piecesReadBack;
+	// The plain SHA-256 of the file, or null, fed up to fileHashed, guarded by itself.
+	private final MessageDigest fileDigest;
+	private long fileHashed;
+	// Whether a writer reads back into the file's digest, outside its lock.
+	private boolean fileReadingBack;
+	private long fileBytesReadBack;
+
+	/**
+	 * Sets up the pieces of the download, and takes the digests of the pieces
+	 * completed by an earlier run from the side file.
+	 *
+	 * @param downloadableMetadata
+	 * @param pieceSize
+	 * @param fileDigest
+	 *            whether to compute the plain SHA-256 of the file too
+	 * @throws IOException
+	 */
+	PieceHasher(DownloadableMetadata downloadableMetadata, int pieceSize, boolean fileDigest) throws IOException {
+		this.filename = downloadableMetadata.getDownloadableMetadataObject().getFilename();
+		this.fileSize = downloadableMetadata.getFileSize();
+		this.pieceSize = pieceSize;
+		this.fileDigest = fileDigest ? newMessageDigest() : null;
+		this.pieces = new Piece[(int) ((this.fileSize + pieceSize - 1) / pieceSize)];
+		for (int i = 0; i < this.pieces.length; i++) {
+			long start = (long) i * pieceSize;
+			this.pieces[i] = new Piece(start, (int) Math.min(pieceSize, this.fileSize - start));
+		}
+		for (int range = 0; range < downloadableMetadata.getNumberOfRanges(); range++) {
+			Range missingRange = downloadableMetadata.getMissingRange(range);
+			for (long offset = missingRange.getStart(); offset <= missingRange.getEnd();) {
+				Piece piece = this.pieces[(int) (offset / pieceSize)];
+				long end = Math.min(missingRange.getEnd() + 1, piece.start + piece.length);
+				piece.bytesMissing += end - offset;
+				offset = end;
+			}
+		}
+		this.piecesChannel = FileChannel.open(Paths.get(this.filename + PIECES_SUFFIX), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		readPieces();
+		for (Piece piece : this.pieces) {
+			// Hashed from the chunks only if none of its bytes were written before.
+			piece.streamed = piece.bytesMissing == piece.length;
+			if (piece.bytesMissing > 0)
+				piece.digest = null;
+		}
+	}
+
+	/**
+	 * @return true if the downloads are verified
+	 */
+	static boolean isSelected() {
+		return System.getProperty(VERIFY_PROPERTY) != null || System.getProperty(DIGEST_PROPERTY) != null;
+	}
+
+	/**
+	 * @return the piece size set by -Didcdm.verify.pieceSize
+	 */
+	static int getPieceSize() {
+		return Integer.getInteger(PIECE_SIZE_PROPERTY, DEFAULT_PIECE_SIZE);
+	}
+
+	/**
+	 * Reads the side file. It starts with the piece size, a side file of another
+	 * piece size is started over. A torn record at its end is cut off.
+	 *
+	 * @throws IOException
+	 */
+	private void readPieces() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(4);
+		this.piecesChannel.read(header, 0);
+		header.flip();
+		if (header.remaining() < 4 || header.getInt() != this.pieceSize) {
+			this.piecesChannel.truncate(0);
+			header.clear();
+			header.putInt(this.pieceSize).flip();
+			this.piecesChannel.write(header, 0);
+			this.piecesChannel.position(4);
+			return;
+		}
+		long position = 4;
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		try {
+			while (true) {
+				record.clear();
+				while (record.hasRemaining()) {
+					if (this.piecesChannel.read(record, position + record.position()) == -1)
+						throw new EOFException();
+				}
+				record.flip();
+				int pieceIndex = record.getInt();
+				if (pieceIndex < 0 || pieceIndex >= this.pieces.length)
+					break;
+				this.pieces[pieceIndex].digest = new byte[DIGEST_SIZE];
+				record.get(this.pieces[pieceIndex].digest);
+				position += RECORD_SIZE;
+			}
+		} catch (EOFException e) {
+			// Reached the last complete record.
+		}
+		this.piecesChannel.truncate(position);
+		this.piecesChannel.position(position);
+	}
+
+	/**
+	 * Hashes a chunk which was just written, and completes the pieces it fills.
+	 * Never throws: a piece which couldn't be completed is read back by finish().
+	 *
+	 * @param chunk
+	 */
+	void update(Chunk chunk) {
+		ByteBuffer data = chunk.getData().duplicate();
+		long offset = chunk.getOffset();
+		while (data.hasRemaining()) {
+			int pieceIndex = (int) (offset / this.pieceSize);
+			Piece piece = this.pieces[pieceIndex];
+			int length = (int) Math.min(data.remaining(), piece.start + piece.length - offset);
+			ByteBuffer part = data.duplicate();
+			part.limit(part.position() + length);
+			data.position(data.position() + length);
+			boolean completed;
+			synchronized (piece) {
+				if (piece.streamed && offset == piece.start + piece.bytesHashed) {
+					if (piece.messageDigest == null)
+						piece.messageDigest = newMessageDigest();
+					piece.messageDigest.update(part);
+					piece.bytesHashed += length;
+				} else {
+					// Out of order, the piece is read back once complete.
+					piece.streamed = false;
+					piece.messageDigest = null;
+				}
+				piece.bytesMissing -= length;
+				completed = piece.bytesMissing == 0;
+			}
+			if (completed)
+				complete(pieceIndex);
+			offset += length;
+		}
+		if (this.fileDigest != null)
+			hashInOrder(chunk);
+	}
+
+	/**
+	 * Feeds the file's digest with the chunk if it continues the bytes hashed so
+	 * far, then with the completed pieces which follow, read back. Never throws:
+	 * finish() reads back what is left.
+	 *
+	 * @param chunk
+	 */
+	private void hashInOrder(Chunk chunk) {
+		synchronized (this.fileDigest) {
+			long chunkEnd = chunk.getOffset() + chunk.getSize_in_bytes();
+			if (!this.fileReadingBack && chunk.getOffset() <= this.fileHashed && this.fileHashed < chunkEnd) {
+				ByteBuffer data = chunk.getData().duplicate();
+				data.position(data.position() + (int) (this.fileHashed - chunk.getOffset()));
+				this.fileDigest.update(data);
+				this.fileHashed = chunkEnd;
+			}
+		}
+		try {
+			hashCompletedPieces();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads back the bytes from the ones hashed so far to the end of the first
+	 * piece which isn't complete, and feeds them to the file's digest. The read
+	 * is done without the digest's lock: the writer which claims it feeds the
+	 * digest alone, and the others leave it the pieces they complete meanwhile.
+	 * A failed read starts the digest over, for finish() to read the file again.
+	 *
+	 * @throws IOException
+	 */
+	private void hashCompletedPieces() throws IOException {
+		while (true) {
+			long start;
+			long end;
+			synchronized (this.fileDigest) {
+				if (this.fileReadingBack)
+					return;
+				start = this.fileHashed;
+				end = start;
+				while (end < this.fileSize) {
+					Piece piece = this.pieces[(int) (end / this.pieceSize)];
+					synchronized (piece) {
+						if (piece.bytesMissing > 0)
+							break;
+					}
+					end = piece.start + piece.length;
+				}
+				if (end == start)
+					return;
+				this.fileReadingBack = true;
+			}
+			boolean read = false;
+			try {
+				read(this.fileDigest, start, end);
+				read = true;
+			} finally {
+				synchronized (this.fileDigest) {
+					if (read) {
+						this.fileHashed = end;
+						this.fileBytesReadBack += end - start;
+					} else {
+						this.fileDigest.reset();
+						this.fileHashed = 0;
+					}
+					this.fileReadingBack = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param pieceIndex
+	 *            a piece whose bytes are all written
+	 */
+	private void complete(int pieceIndex) {
+		Piece piece = this.pieces[pieceIndex];
+		try {
+			byte[] digest;
+			if (piece.streamed) {
+				digest = piece.messageDigest.digest();
+				piece.messageDigest = null;
+			} else {
+				digest = readBack(piece);
+			}
+			synchronized (piece) {
+				piece.digest = digest;
+			}
+			writeRecord(pieceIndex, digest);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Appends the digest of a completed piece to the side file.
+	 *
+	 * @param pieceIndex
+	 * @param digest
+	 * @throws IOException
+	 */
+	private synchronized void writeRecord(int pieceIndex, byte[] digest) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		record.putInt(pieceIndex).put(digest).flip();
+		while (record.hasRemaining()) {
+			this.piecesChannel.write(record);
+		}
+	}
+
+	/**
+	 * @param piece
+	 * @return the digest of the piece, read from the file
+	 * @throws IOException
+	 */
+	private byte[] readBack(Piece piece) throws IOException {
+		synchronized (this) {
+			this.piecesReadBack++;
+		}
+		MessageDigest messageDigest = newMessageDigest();
+		read(messageDigest, piece.start, piece.start + piece.length);
+		return messageDigest.digest();
+	}
+
+	/**
+	 * @param messageDigest
+	 *            fed with the bytes read
+	 * @param start
+	 * @param end
+	 *            the byte after the last one
+	 * @throws IOException
+	 */
+	private void read(MessageDigest messageDigest, long start, long end) throws IOException {
+		FileChannel channel;
+		synchronized (this) {
+			if (this.readChannel == null)
+				this.readChannel = FileChannel.open(Paths.get(this.filename), StandardOpenOption.READ);
+			channel = this.readChannel;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		long position = start;
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			int bytesRead = channel.read(buffer, position);
+			if (bytesRead == -1)
+				throw new EOFException("The file ends inside piece " + (position / this.pieceSize));
+			buffer.flip();
+			messageDigest.update(buffer);
+			position += bytesRead;
+		}
+	}
+
+	/**
+	 * Called once the download is complete: hashes the pieces left (e.g. the
+	 * pieces completed by a run which died before recording their digests),
+	 * writes the manifest and compares the digests with the expected ones.
+	 *
+	 * @param expectedManifest
+	 *            the name of a manifest to compare the pieces with, or null
+	 * @param expectedDigest
+	 *            the expected digest of the file in hex, or null
+	 * @return true if the file matches what was expected
+	 * @throws IOException
+	 */
+	boolean finish(String expectedManifest, String expectedDigest) throws IOException {
+		for (Piece piece : this.pieces) {
+			if (piece.digest == null)
+				piece.digest = readBack(piece);
+		}
+		MessageDigest rootDigest = newMessageDigest();
+		for (Piece piece : this.pieces) {
+			rootDigest.update(piece.digest);
+		}
+		String root = toHex(rootDigest.digest());
+		String digest = null;
+		if (this.fileDigest != null) {
+			// Every piece is complete now, whatever wasn't hashed in order is read back.
+			hashCompletedPieces();
+			synchronized (this.fileDigest) {
+				digest = toHex(this.fileDigest.digest());
+			}
+		}
+		writeManifest(this.filename + MANIFEST_SUFFIX, root, digest);
+		System.err.printf("SHA-256 of %s in %d pieces (%d read back): root %s\n", this.filename, this.pieces.length,
+				this.piecesReadBack, root);
+		if (digest != null)
+			System.err.printf("SHA-256 of %s (%d bytes read back): %s\n", this.filename, this.fileBytesReadBack, digest);
+
+		boolean verified = true;
+		if (expectedManifest != null) {
+			List<String> expected = readManifest(expectedManifest, this.pieceSize, this.fileSize);
+			List<Integer> mismatches = new ArrayList<Integer>();
+			for (int i = 0; i < this.pieces.length; i++) {
+				if (!expected.get(i).equalsIgnoreCase(toHex(this.pieces[i].digest)))
+					mismatches.add(i);
+			}
+			if (!mismatches.isEmpty()) {
+				System.err.println(mismatches.size() + " pieces don't match " + expectedManifest + ": "
+						+ (mismatches.size() > 10 ? mismatches.subList(0, 10) + "..." : mismatches));
+				verified = false;
+			}
+		}
+		if (expectedDigest != null && digest != null && !expectedDigest.equalsIgnoreCase(digest)) {
+			System.err.println("The digest doesn't match " + expectedDigest);
+			verified = false;
+		}
+		return verified;
+	}
+
+	/**
+	 * Writes "pieces PIECE-SIZE FILE-SIZE", the digest of every piece on its own
+	 * line, "root ROOT" and "digest FILE-DIGEST" if it was computed.
+	 *
+	 * @param manifestName
+	 * @param root
+	 * @param digest
+	 *            the file's plain digest, or null
+	 * @throws IOException
+	 */
+	private void writeManifest(String manifestName, String root, String digest) throws IOException {
+		try (PrintWriter writer = new PrintWriter(manifestName)) {
+			writer.printf("pieces %d %d\n", this.pieceSize, this.fileSize);
+			for (Piece piece : this.pieces) {
+				writer.println(toHex(piece.digest));
+			}
+			writer.printf("root %s\n", root);
+			if (digest != null)
+				writer.printf("digest %s\n", digest);
+		}
+	}
+
+	/**
+	 * @param manifestName
+	 * @return the piece size of a manifest
+	 * @throws IOException
+	 */
+	static int readManifestPieceSize(String manifestName) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new FileReader(manifestName))) {
+			String[] header = readManifestHeader(manifestName, reader);
+			return Integer.parseInt(header[1]);
+		}
+	}
+
+	/**
+	 * @param manifestName
+	 * @param pieceSize
+	 * @param fileSize
+	 * @return the digests of the manifest's pieces in hex
+	 * @throws IOException
+	 *             if the manifest is not of a file of this size cut into pieces
+	 *             of this size
+	 */
+	private static List<String> readManifest(String manifestName, int pieceSize, long fileSize) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new FileReader(manifestName))) {
+			String[] header = readManifestHeader(manifestName, reader);
+			if (Integer.parseInt(header[1]) != pieceSize || Long.parseLong(header[2]) != fileSize)
+				throw new IOException(manifestName + " is of " + header[2] + " bytes in pieces of " + header[1]);
+			List<String> digests = new ArrayList<String>();
+			String line;
+			// The pieces end at the root, or the digest of a manifest written before roots.
+			while ((line = reader.readLine()) != null && !line.startsWith("root") && !line.startsWith("digest")) {
+				digests.add(line.trim());
+			}
+			if (digests.size() != (fileSize + pieceSize - 1) / pieceSize)
+				throw new IOException(manifestName + " has " + digests.size() + " pieces");
+			return digests;
+		}
+	}
+
+	/**
+	 * @param manifestName
+	 * @param reader
+	 * @return the words of the manifest's first line
+	 * @throws IOException
+	 */
+	private static String[] readManifestHeader(String manifestName, BufferedReader reader) throws IOException {
+		String line = reader.readLine();
+		String[] header = line == null ? new String[0] : line.trim().split("\\s+");
+		if (header.length != 3 || !header[0].equals("pieces"))
+			throw new IOException(manifestName + " is not a manifest");
+		return header;
+	}
+
+	/**
+	 * Closes the files and deletes the side file, with the metadata.
+	 */
+	synchronized void delete() {
+		try {
+			this.piecesChannel.close();
+			if (this.readChannel != null)
+				this.readChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		new File(this.filename + PIECES_SUFFIX).delete();
+	}
+
+	/**
+	 * @return
+	 */
+	private static MessageDigest newMessageDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param bytes
+	 * @return
+	 */
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * A piece of the file and the state of its hashing.
+	 */
+	private static class Piece {
+		private final long start;
+		private final int length;
+		private long bytesMissing;
+		// Whether the piece is hashed from the chunks, as long as they come in order.
+		private boolean streamed;
+		private long bytesHashed;
+		private MessageDigest messageDigest;
+		private byte[] digest;
+
+		/**
+		 * @param start
+		 * @param length
+		 */
+		Piece(long start, int length) {
+			this.start = start;
+			this.length = length;
+		}
+	}
+}
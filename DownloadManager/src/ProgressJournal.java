@@ -0,0 +1,313 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append-only journal of the download's progress, kept next to the
+ * metadata snapshot.
+ *
+ * Every change to the ranges is a fixed-size record: EXTEND (a range was read
+ * up to a byte) or SPLIT (a range was cut in two). Records are collected in
+ * memory and appended together by the FileWriter after each batch (group
+ * commit). When records are forced to disk, the file's data is forced first,
+ * so a record on disk never covers bytes that didn't make it there. Once the
+ * journal grows, the metadata compacts it into a new snapshot.
+ *
+ * Loading is the snapshot followed by the journal replayed on top of it.
+ * Replaying is idempotent, so a crash between writing a snapshot and
+ * truncating the journal is harmless.
+ */
+class ProgressJournal {
+	static final int RECORD_SIZE = 16;
+	static final int EXTEND = 1;
+	static final int SPLIT = 2;
+	static final String SYNC_PROPERTY = "idcdm.journal.sync";
+	// Force the data and the journal to disk once a second by default.
+	static final String DEFAULT_SYNC = "1000ms";
+
+	private final String journalFileName;
+	private final SyncPolicy syncPolicy;
+	private FileChannel journalChannel;
+	private ByteBuffer pendingRecords;
+	private long bytesSinceSync;
+	private long lastSyncTime;
+
+	/**
+	 * @param journalFileName
+	 * @param syncPolicy
+	 */
+	ProgressJournal(String journalFileName, SyncPolicy syncPolicy) {
+		this.journalFileName = journalFileName;
+		this.syncPolicy = syncPolicy;
+		this.pendingRecords = ByteBuffer.allocate(64 * RECORD_SIZE);
+		this.lastSyncTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param journalFileName
+	 * @return
+	 */
+	static ProgressJournal open(String journalFileName) {
+		return new ProgressJournal(journalFileName,
+				SyncPolicy.parse(System.getProperty(SYNC_PROPERTY, DEFAULT_SYNC)));
+	}
+
+	/**
+	 * @param metadataFileName
+	 * @return
+	 */
+	static String getJournalName(String metadataFileName) {
+		return metadataFileName + ".journal";
+	}
+
+	/**
+	 * Adds a record to the next group commit. An extension of the same range as
+	 * the previous pending record replaces it.
+	 *
+	 * @param type
+	 * @param rangeIndexer
+	 * @param value
+	 */
+	synchronized void append(int type, int rangeIndexer, long value) {
+		int last = this.pendingRecords.position() - RECORD_SIZE;
+		if (type == EXTEND && last >= 0 && this.pendingRecords.getInt(last) == EXTEND
+				&& this.pendingRecords.getInt(last + 4) == rangeIndexer) {
+			this.pendingRecords.putLong(last + 8, value);
+			return;
+		}
+		if (this.pendingRecords.remaining() < RECORD_SIZE) {
+			ByteBuffer grown = ByteBuffer.allocate(this.pendingRecords.capacity() * 2);
+			this.pendingRecords.flip();
+			grown.put(this.pendingRecords);
+			this.pendingRecords = grown;
+		}
+		this.pendingRecords.putInt(type).putInt(rangeIndexer).putLong(value);
+	}
+
+	/**
+	 * Appends the pending records to the journal. If the sync policy says it's
+	 * time, the file's data is forced before the records are written, and the
+	 * journal is forced after.
+	 *
+	 * @param data
+	 *            forces the downloaded file's data to disk
+	 * @param bytesWritten
+	 *            data bytes written since the last commit
+	 * @return true if the records were written
+	 * @throws IOException
+	 */
+	boolean commit(Flushable data, long bytesWritten) throws IOException {
+		ByteBuffer records;
+		synchronized (this) {
+			this.bytesSinceSync += bytesWritten;
+			long now = System.currentTimeMillis();
+			if (!this.syncPolicy.isDue(this.bytesSinceSync, now - this.lastSyncTime))
+				return false;
+			this.pendingRecords.flip();
+			records = ByteBuffer.allocate(this.pendingRecords.remaining());
+			records.put(this.pendingRecords).flip();
+			this.pendingRecords.clear();
+			this.bytesSinceSync = 0;
+			this.lastSyncTime = now;
+		}
+
+		long flushStart = System.nanoTime();
+		if (this.syncPolicy.forces())
+			data.flush();
+		FileChannel channel = getJournalChannel();
+		while (records.hasRemaining()) {
+			channel.write(records);
+		}
+		if (this.syncPolicy.forces())
+			channel.force(false);
+		DownloadMetrics.get().recordFlush(System.nanoTime() - flushStart);
+		return true;
+	}
+
+	/**
+	 * Drops the pending records, called when a snapshot which already contains
+	 * them is taken.
+	 */
+	synchronized void clearPending() {
+		this.pendingRecords.clear();
+	}
+
+	/**
+	 * Empties the journal, called after a snapshot was safely written.
+	 *
+	 * @throws IOException
+	 */
+	void truncate() throws IOException {
+		truncate(this.syncPolicy.forces());
+	}
+
+	/**
+	 * @param force
+	 *            force the empty journal to disk, whatever the sync policy, when
+	 *            its records must never be replayed again
+	 * @throws IOException
+	 */
+	void truncate(boolean force) throws IOException {
+		FileChannel channel = getJournalChannel();
+		channel.truncate(0);
+		if (force)
+			channel.force(true);
+	}
+
+	/**
+	 * @return the journal's size on disk
+	 * @throws IOException
+	 */
+	long size() throws IOException {
+		return getJournalChannel().size();
+	}
+
+	/**
+	 *
+	 */
+	void delete() {
+		try {
+			if (this.journalChannel != null)
+				this.journalChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		new File(this.journalFileName).delete();
+	}
+
+	/**
+	 * @return
+	 * @throws IOException
+	 */
+	private FileChannel getJournalChannel() throws IOException {
+		if (this.journalChannel == null) {
+			this.journalChannel = FileChannel.open(Paths.get(this.journalFileName), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+		return this.journalChannel;
+	}
+
+	/**
+	 * Applies the journal's records to a snapshot loaded from disk. A torn record
+	 * at the end of the journal (the process died while appending it) is
+	 * ignored.
+	 *
+	 * @param journalFileName
+	 * @param downloadableMetadataObject
+	 * @throws IOException
+	 */
+	static void replay(String journalFileName, DownloadableMetadataObject downloadableMetadataObject)
+			throws IOException {
+		File journalFile = new File(journalFileName);
+		if (!journalFile.exists())
+			return;
+		try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+			while (true) {
+				record.clear();
+				while (record.hasRemaining()) {
+					if (channel.read(record) == -1)
+						throw new EOFException();
+				}
+				record.flip();
+				int type = record.getInt();
+				int rangeIndexer = record.getInt();
+				long value = record.getLong();
+				if (!apply(downloadableMetadataObject, type, rangeIndexer, value))
+					return;
+			}
+		} catch (EOFException e) {
+			// Reached the last complete record.
+		}
+	}
+
+	/**
+	 * @param downloadableMetadataObject
+	 * @param type
+	 * @param rangeIndexer
+	 * @param value
+	 * @return false if the record is not a valid one
+	 */
+	private static boolean apply(DownloadableMetadataObject downloadableMetadataObject, int type, int rangeIndexer,
+			long value) {
+		Range[] assignedRanges = downloadableMetadataObject.getAssignedRangeArray();
+		if (rangeIndexer < 0 || rangeIndexer >= assignedRanges.length)
+			return false;
+		Range assignedRange = assignedRanges[rangeIndexer];
+		switch (type) {
+		case EXTEND:
+			Range alreadyRead = downloadableMetadataObject.getAlreadyReadPartialRangeArray()[rangeIndexer];
+			if (value > alreadyRead.getEnd())
+				downloadableMetadataObject.extendRange(rangeIndexer, new Range(alreadyRead.getStart(), value));
+			return true;
+		case SPLIT:
+			// Already in the snapshot if the offset is no longer inside the range.
+			if (value > assignedRange.getStart() && value <= assignedRange.getEnd())
+				downloadableMetadataObject.splitRange(rangeIndexer, value);
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * When to force the data and the journal to disk: every N bytes written,
+	 * every T milliseconds, or never (left to the operating system).
+	 *
+	 * Written as "&lt;N&gt;b", "&lt;T&gt;ms" or "never".
+	 */
+	static class SyncPolicy {
+		private final long everyBytes;
+		private final long everyMillis;
+
+		/**
+		 * @param everyBytes
+		 * @param everyMillis
+		 */
+		private SyncPolicy(long everyBytes, long everyMillis) {
+			this.everyBytes = everyBytes;
+			this.everyMillis = everyMillis;
+		}
+
+		/**
+		 * @param policy
+		 * @return
+		 */
+		static SyncPolicy parse(String policy) {
+			if (policy.equals("never"))
+				return new SyncPolicy(-1, -1);
+			if (policy.endsWith("ms"))
+				return new SyncPolicy(-1, Long.parseLong(policy.substring(0, policy.length() - 2)));
+			if (policy.endsWith("b"))
+				return new SyncPolicy(Long.parseLong(policy.substring(0, policy.length() - 1)), -1);
+			throw new IllegalArgumentException("Unknown journal sync policy: " + policy);
+		}
+
+		/**
+		 * @return
+		 */
+		boolean forces() {
+			return this.everyBytes >= 0 || this.everyMillis >= 0;
+		}
+
+		/**
+		 * Without forcing, records are appended on every commit.
+		 *
+		 * @param bytesSinceSync
+		 * @param millisSinceSync
+		 * @return
+		 */
+		boolean isDue(long bytesSinceSync, long millisSinceSync) {
+			if (!forces())
+				return true;
+			if (this.everyBytes >= 0)
+				return bytesSinceSync >= this.everyBytes;
+			return millisSinceSync >= this.everyMillis;
+		}
+	}
+}
@@ -1,27 +1,49 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
 /**
  * Describes a simple range, with a start, an end, and a length
+ *
+ * The bounds are primitive longs. Metadata files written with Java
+ * serialization hold them as Long fields, which stays their serialized form.
  */
-@SuppressWarnings("serial")
 class Range implements Serializable{
-    private Long start;
-    private Long end;
+    private static final long serialVersionUID = 8312409516260019161L;
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("start", Long.class), new ObjectStreamField("end", Long.class) };
+    private long start;
+    private long end;
 
-    Range(Long start, Long end) {
+    Range(long start, long end) {
         this.start = start;
         this.end = end;
     }
 
-    Long getStart() {
+    long getStart() {
         return start;
     }
 
-    Long getEnd() {
+    long getEnd() {
         return end;
     }
 
-    Long getLength() {
+    long getLength() {
         return end - start + 1;
     }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.start = (Long) fields.get("start", null);
+        this.end = (Long) fields.get("end", null);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("start", Long.valueOf(this.start));
+        fields.put("end", Long.valueOf(this.end));
+        out.writeFields();
+    }
 }
@@ -0,0 +1,414 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out ranges to the HTTPRangeGetters on demand.
+ *
+ * A getter asks for its next range whenever it finishes the current one.
+ * Ranges that were never handed out are served first. Once they are all taken,
+ * the idle getter steals the back half of the largest range still in flight,
+ * so a slow connection doesn't hold the whole download. The split is recorded
+ * in the file's metadata, so a stolen part is never downloaded twice.
+ *
+ * When the ranges left are too small to steal (the end game), the idle getter
+ * races the rest of the slowest range instead: one whose throughput, measured
+ * every second, fell below idcdm.hedge.floor (default 0.25, 0 for no races)
+ * of the typical throughput of a connection. Both getters read the same bytes
+ * and claim them from the same offset, so whichever gets them first keeps them
+ * and the other one drops them. The getter which falls behind by a whole read
+ * lost the race, and leaves the range to the winner.
+ *
+ * A streamed download (see DownloadStream) is read from its start while it
+ * downloads, so its ranges are handed out in the order of the file instead,
+ * cut into windows of at most windowSize bytes. The getters then all work
+ * close to the front of the file, and the prefix the stream reads grows at the
+ * speed of all of them. A slow range before the next window is raced right
+ * away rather than in the end game. A range left without a getter is the first
+ * one handed out again, and the stream's ReorderBuffer is told about it, so a
+ * getter waiting for the front can leave its own range for it.
+ */
+class RangeScheduler {
+	// A range smaller than twice this size is not worth a new HTTP connection.
+	static final long MIN_STEAL_SIZE = 256 * 1024;
+	static final String HEDGE_FLOOR_PROPERTY = "idcdm.hedge.floor";
+	private static final double DEFAULT_HEDGE_FLOOR = 0.25;
+	// The throughput of a range is measured over windows of this many nanoseconds.
+	static final long RATE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+	// The weight of the newest window in the typical throughput of a connection.
+	private static final double RATE_WEIGHT = 0.2;
+	private final DownloadableMetadata downloadableMetadata;
+	private final double hedgeFloor;
+	// The most bytes handed out at a time from the front of the file, 0 for whole ranges.
+	private final long windowSize;
+	private long[] nextOffsetToRead;
+	// The number of getters downloading each range, 2 while it is raced.
+	private int[] getters;
+	private long[] windowStart;
+	private long[] windowBytes;
+	// Bytes per second of the range's last window, -1 before the first one.
+	private double[] rate;
+	private double typicalRate;
+	private long bytesClaimed;
+	// Run when a range with bytes left loses its last getter.
+	private Runnable idleListener;
+
+	/**
+	 * @param downloadableMetadata
+	 */
+	RangeScheduler(DownloadableMetadata downloadableMetadata) {
+		this(downloadableMetadata, 0);
+	}
+
+	/**
+	 * @param downloadableMetadata
+	 * @param windowSize
+	 *            hand out the ranges from the front of the file, at most this
+	 *            many bytes at a time (a multiple of the chunk size), or 0 to hand
+	 *            out whole ranges in any order
+	 */
+	RangeScheduler(DownloadableMetadata downloadableMetadata, long windowSize) {
+		this.downloadableMetadata = downloadableMetadata;
+		this.windowSize = windowSize;
+		this.hedgeFloor = Double.parseDouble(System.getProperty(HEDGE_FLOOR_PROPERTY, "" + DEFAULT_HEDGE_FLOOR));
+		int numberOfRanges = downloadableMetadata.getNumberOfRanges();
+		this.nextOffsetToRead = new long[numberOfRanges];
+		this.getters = new int[numberOfRanges];
+		this.windowStart = new long[numberOfRanges];
+		this.windowBytes = new long[numberOfRanges];
+		this.rate = new double[numberOfRanges];
+		for (int range = 0; range < numberOfRanges; range++) {
+			this.nextOffsetToRead[range] = downloadableMetadata.getMissingRange(range).getStart();
+		}
+	}
+
+	/**
+	 * @return the index of the next range to download, or -1 if nothing is left
+	 *         to hand out or the download failed
+	 */
+	synchronized int getMissingRange() {
+		if (getRetryPolicy().hasFailed())
+			return -1;
+		if (this.windowSize > 0)
+			return getMissingWindow();
+		for (int range = 0; range < this.getters.length; range++) {
+			if (this.getters[range] == 0 && bytesLeft(range) > 0) {
+				handOut(range);
+				return range;
+			}
+		}
+		return stealRange();
+	}
+
+	/**
+	 * Hands out the front of the first range in the file which was not handed
+	 * out yet, up to windowSize bytes. The rest of it is split into a new range,
+	 * handed out later. A slow range before it holds the stream back more than
+	 * anything after it, so it is raced first.
+	 *
+	 * @return the index of the window, or -1 if nothing is left
+	 */
+	private int getMissingWindow() {
+		int firstRange = -1;
+		for (int range = 0; range < this.getters.length; range++) {
+			if (this.getters[range] == 0 && bytesLeft(range) > 0 && (firstRange == -1
+					|| this.nextOffsetToRead[range] < this.nextOffsetToRead[firstRange]))
+				firstRange = range;
+		}
+		if (firstRange == -1)
+			return stealRange();
+		int slowRange = getSlowRange();
+		if (slowRange != -1 && this.nextOffsetToRead[slowRange] < this.nextOffsetToRead[firstRange]) {
+			handOut(slowRange);
+			DownloadMetrics.get().hedge();
+			return slowRange;
+		}
+		if (bytesLeft(firstRange) > this.windowSize) {
+			long splitOffset = this.nextOffsetToRead[firstRange] + this.windowSize;
+			int restRange = this.downloadableMetadata.splitRange(firstRange, splitOffset);
+			grow(restRange + 1);
+			this.nextOffsetToRead[restRange] = splitOffset;
+		}
+		handOut(firstRange);
+		return firstRange;
+	}
+
+	/**
+	 * @return the index of the back half of the largest range in flight, split
+	 *         from it, or of a slow range to race if they are all too small to
+	 *         split. -1 if there is none.
+	 */
+	private int stealRange() {
+		int largestRange = -1;
+		for (int range = 0; range < this.getters.length; range++) {
+			if (largestRange == -1 || bytesLeft(range) > bytesLeft(largestRange))
+				largestRange = range;
+		}
+		if (largestRange == -1)
+			return -1;
+		if (bytesLeft(largestRange) < 2 * MIN_STEAL_SIZE) {
+			int slowRange = getSlowRange();
+			if (slowRange != -1) {
+				handOut(slowRange);
+				DownloadMetrics.get().hedge();
+			}
+			return slowRange;
+		}
+
+		// Keep the split aligned to whole chunks of the getter being robbed.
+		long splitOffset = this.nextOffsetToRead[largestRange] + bytesLeft(largestRange) / 2;
+		splitOffset -= (splitOffset - this.nextOffsetToRead[largestRange]) % HTTPRangeGetter.CHUNK_SIZE;
+		int stolenRange = this.downloadableMetadata.splitRange(largestRange, splitOffset);
+		grow(stolenRange + 1);
+		this.nextOffsetToRead[stolenRange] = splitOffset;
+		handOut(stolenRange);
+		return stolenRange;
+	}
+
+	/**
+	 * Makes room for the ranges added by a split.
+	 *
+	 * @param numberOfRanges
+	 */
+	private void grow(int numberOfRanges) {
+		this.nextOffsetToRead = Arrays.copyOf(this.nextOffsetToRead, numberOfRanges);
+		this.getters = Arrays.copyOf(this.getters, numberOfRanges);
+		this.windowStart = Arrays.copyOf(this.windowStart, numberOfRanges);
+		this.windowBytes = Arrays.copyOf(this.windowBytes, numberOfRanges);
+		this.rate = Arrays.copyOf(this.rate, numberOfRanges);
+	}
+
+	/**
+	 * Like getMissingRange(), but while the last ranges are still downloaded by
+	 * other getters, waits for one of them to slow down enough to be raced.
+	 *
+	 * @return the index of the next range to download, or -1 if every byte was
+	 *         claimed or the download failed
+	 * @throws InterruptedException
+	 */
+	synchronized int awaitMissingRange() throws InterruptedException {
+		int range = getMissingRange();
+		while (range == -1 && hasRacesLeft()) {
+			wait(TimeUnit.NANOSECONDS.toMillis(RATE_WINDOW));
+			range = getMissingRange();
+		}
+		return range;
+	}
+
+	/**
+	 * @return true while some ranges are still downloaded, and may slow down
+	 *         enough to be raced
+	 */
+	synchronized boolean hasRacesLeft() {
+		return this.hedgeFloor > 0 && !isDone() && !getRetryPolicy().hasFailed();
+	}
+
+	/**
+	 * Adds a getter to the range, and starts measuring its throughput over.
+	 *
+	 * @param rangeIndexer
+	 */
+	private void handOut(int rangeIndexer) {
+		this.getters[rangeIndexer]++;
+		this.windowStart[rangeIndexer] = System.nanoTime();
+		this.windowBytes[rangeIndexer] = 0;
+		this.rate[rangeIndexer] = -1;
+	}
+
+	/**
+	 * @return the range which would take the longest to finish of those whose
+	 *         only getter is below the throughput floor, or -1 if there is none
+	 */
+	private int getSlowRange() {
+		if (this.hedgeFloor <= 0 || this.typicalRate <= 0)
+			return -1;
+		long now = System.nanoTime();
+		int slowRange = -1;
+		double slowRangeTimeLeft = 0;
+		for (int range = 0; range < this.getters.length; range++) {
+			if (this.getters[range] != 1 || bytesLeft(range) <= 0)
+				continue;
+			double rate = getRate(range, now);
+			if (rate < 0 || rate >= this.hedgeFloor * this.typicalRate)
+				continue;
+			// Seconds the range still needs, not worth a race if it ends within a window anyway.
+			double timeLeft = bytesLeft(range) / Math.max(rate, 1);
+			if (timeLeft * TimeUnit.SECONDS.toNanos(1) >= RATE_WINDOW && timeLeft > slowRangeTimeLeft) {
+				slowRange = range;
+				slowRangeTimeLeft = timeLeft;
+			}
+		}
+		return slowRange;
+	}
+
+	/**
+	 * @param rangeIndexer
+	 * @param now
+	 * @return the range's throughput in bytes per second: of the current window
+	 *         if it is already longer than a window (e.g. the getter is stuck),
+	 *         of the last window otherwise, -1 if not measured yet
+	 */
+	private double getRate(int rangeIndexer, long now) {
+		long elapsed = now - this.windowStart[rangeIndexer];
+		if (elapsed >= RATE_WINDOW)
+			return this.windowBytes[rangeIndexer] * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+		return this.rate[rangeIndexer];
+	}
+
+	/**
+	 * @param rangeIndexer
+	 * @return the part of the range which wasn't read yet
+	 */
+	synchronized Range getRange(int rangeIndexer) {
+		return new Range(this.nextOffsetToRead[rangeIndexer],
+				this.downloadableMetadata.getMissingRange(rangeIndexer).getEnd());
+	}
+
+	/**
+	 * Marks bytes read by a getter of the range as taken. The range might have
+	 * been cut by a stealing getter since the request was sent, so the getter may
+	 * only keep the bytes which are still inside its range. If the range is
+	 * raced, the other getter may have claimed the first of them already, those
+	 * are dropped from the buffer.
+	 *
+	 * @param rangeIndexer
+	 * @param offset
+	 *            the offset of the bytes read
+	 * @param buffer
+	 *            the bytes read, from its position to its limit. Left with the
+	 *            bytes the getter may keep, from its start.
+	 * @return the offset of the bytes kept. Past the bytes read if the other
+	 *         getter of the range claimed all of them, it is ahead and this
+	 *         getter lost the race.
+	 */
+	synchronized long claim(int rangeIndexer, long offset, ByteBuffer buffer) {
+		int bytesRead = buffer.remaining();
+		long claimOffset = Math.max(offset, this.nextOffsetToRead[rangeIndexer]);
+		int bytesDropped = (int) Math.min(bytesRead, claimOffset - offset);
+		int bytesClaimed = (int) Math.max(0, Math.min(bytesRead - bytesDropped, bytesLeft(rangeIndexer)));
+		if (bytesDropped > 0) {
+			buffer.position(buffer.position() + bytesDropped);
+			buffer.limit(buffer.position() + bytesClaimed);
+			// The sinks take the chunk's bytes from the start of its buffer.
+			buffer.compact().flip();
+		} else {
+			buffer.limit(buffer.position() + bytesClaimed);
+		}
+		this.nextOffsetToRead[rangeIndexer] += bytesClaimed;
+		this.bytesClaimed += bytesClaimed;
+
+		this.windowBytes[rangeIndexer] += bytesClaimed;
+		long now = System.nanoTime();
+		long elapsed = now - this.windowStart[rangeIndexer];
+		if (elapsed >= RATE_WINDOW) {
+			double rate = this.windowBytes[rangeIndexer] * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+			this.rate[rangeIndexer] = rate;
+			this.typicalRate = this.typicalRate == 0 ? rate : (1 - RATE_WEIGHT) * this.typicalRate + RATE_WEIGHT * rate;
+			this.windowStart[rangeIndexer] = now;
+			this.windowBytes[rangeIndexer] = 0;
+		}
+		return claimOffset;
+	}
+
+	/**
+	 * Gives back the end of the bytes claimed from a range, which the getter
+	 * failed to hand over, so the retry reads them again.
+	 *
+	 * @param rangeIndexer
+	 * @param offset
+	 *            the first byte given back, up to the range's next byte to read
+	 */
+	synchronized void unclaim(int rangeIndexer, long offset) {
+		if (offset < this.nextOffsetToRead[rangeIndexer]) {
+			this.bytesClaimed -= this.nextOffsetToRead[rangeIndexer] - offset;
+			this.nextOffsetToRead[rangeIndexer] = offset;
+		}
+	}
+
+	/**
+	 * Takes back a range from one of its getters, which finished it, lost the
+	 * race for it or stopped before its end. If no getter is left on it, the
+	 * rest of it is handed out again.
+	 *
+	 * @param rangeIndexer
+	 */
+	void giveBack(int rangeIndexer) {
+		Runnable idleListener = null;
+		synchronized (this) {
+			if (this.getters[rangeIndexer] > 0)
+				this.getters[rangeIndexer]--;
+			// A getter waiting for a race may take the rest of it.
+			notifyAll();
+			if (this.getters[rangeIndexer] == 0 && bytesLeft(rangeIndexer) > 0)
+				idleListener = this.idleListener;
+		}
+		if (idleListener != null)
+			idleListener.run();
+	}
+
+	/**
+	 * @param idleListener
+	 *            run outside the scheduler's lock whenever a range with bytes
+	 *            left loses its last getter
+	 */
+	synchronized void setIdleListener(Runnable idleListener) {
+		this.idleListener = idleListener;
+	}
+
+	/**
+	 * @param offset
+	 * @return true if the byte at offset is still to be read, in a range which
+	 *         no getter downloads
+	 */
+	synchronized boolean isIdle(long offset) {
+		for (int range = 0; range < this.getters.length; range++) {
+			if (this.getters[range] == 0 && this.nextOffsetToRead[range] <= offset
+					&& offset <= this.downloadableMetadata.getMissingRange(range).getEnd())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param rangeIndexer
+	 * @return true if another getter downloads the range too, so a getter which
+	 *         failed leaves the range to it instead of retrying
+	 */
+	synchronized boolean isRaced(int rangeIndexer) {
+		return this.getters[rangeIndexer] > 1;
+	}
+
+	/**
+	 * @return the number of bytes claimed by the getters so far
+	 */
+	synchronized long getBytesClaimed() {
+		return this.bytesClaimed;
+	}
+
+	/**
+	 * @return the policy of the download's retries
+	 */
+	RetryPolicy getRetryPolicy() {
+		return this.downloadableMetadata.getRetryPolicy();
+	}
+
+	/**
+	 * @return true if every byte of every range was claimed
+	 */
+	synchronized boolean isDone() {
+		for (int range = 0; range < this.getters.length; range++) {
+			if (bytesLeft(range) > 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param rangeIndexer
+	 * @return
+	 */
+	private long bytesLeft(int rangeIndexer) {
+		return this.downloadableMetadata.getMissingRange(rangeIndexer).getEnd() - this.nextOffsetToRead[rangeIndexer]
+				+ 1;
+	}
+}
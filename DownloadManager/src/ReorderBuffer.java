@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Puts the chunks of a streamed download back in the order of the file before
+ * they reach the writer, so the file (and the prefix a DownloadStream reads)
+ * grows from its start.
+ *
+ * A chunk which continues the bytes handed on so far is ready for the writer's
+ * ChunkSink right away, together with the chunks it was holding up. A chunk
+ * ahead of it waits here. The ready chunks are handed on in order by one thread
+ * at a time, outside the buffer's lock, and never by waiting for the sink: a
+ * sink which refuses them calls back once it has room, and meanwhile they stay
+ * here.
+ *
+ * The chunks held, ready or not, are bounded by a budget (-Didcdm.stream.buffer,
+ * bytes, default 16MB), over which only the next chunk of the file is let in:
+ * once it is reached, a getter with a chunk ahead waits for the front to move
+ * on, for as long as it takes, which keeps the getters near the front, and the
+ * offer of an async stream is refused. Waiting is only safe while a getter
+ * downloads the front though. When the front's range has none (its getter
+ * stopped, or left it to the other getter of a race), the getter with a chunk
+ * ahead gets a FrontIdleException instead: it gives the chunk back to its
+ * range and leaves the range, and the RangeScheduler hands it the front's.
+ */
+class ReorderBuffer implements ChunkSink {
+	static final String BUFFER_PROPERTY = "idcdm.stream.buffer";
+	static final long DEFAULT_BUFFER = 16 * 1024 * 1024;
+
+	private final ChunkSink chunkSink;
+	private final long budget;
+	private final RetryPolicy retryPolicy;
+	private final RangeScheduler rangeScheduler;
+	private final PriorityQueue<Chunk> chunks = new PriorityQueue<Chunk>(
+			(chunk1, chunk2) -> Long.compare(chunk1.getOffset(), chunk2.getOffset()));
+	// The chunks in the order of the file, waiting for the sink to take them.
+	private final ArrayDeque<Chunk> readyChunks = new ArrayDeque<Chunk>();
+	// The bytes the chunks may still be missing, in the order of the file.
+	private final long[] missingStarts;
+	private final long[] missingEnds;
+	private int missingRange;
+	// The offset of the next chunk to hand on.
+	private long nextOffset;
+	private long bytesHeld;
+	// Set while a thread hands the ready chunks on, and while the sink has no room for them.
+	private boolean handingOn;
+	private boolean sinkFull;
+	// Counts the sink's calls back, so a call which comes during a refused offer isn't missed.
+	private int sinkReadyCount;
+	// Run once there is room, for the offers refused meanwhile.
+	private List<Runnable> readyListeners = new ArrayList<Runnable>();
+
+	/**
+	 * @param chunkSink
+	 *            the writer's sink, which gets the chunks in order
+	 * @param downloadableMetadata
+	 * @param rangeScheduler
+	 *            the scheduler of the getters, which tells whether one downloads
+	 *            the front
+	 */
+	ReorderBuffer(ChunkSink chunkSink, DownloadableMetadata downloadableMetadata, RangeScheduler rangeScheduler) {
+		this(chunkSink, downloadableMetadata, rangeScheduler, Long.getLong(BUFFER_PROPERTY, DEFAULT_BUFFER));
+	}
+
+	/**
+	 * @param chunkSink
+	 *            the writer's sink, which gets the chunks in order
+	 * @param downloadableMetadata
+	 * @param rangeScheduler
+	 *            the scheduler of the getters, which tells whether one downloads
+	 *            the front
+	 * @param budget
+	 *            the most bytes of chunks held, besides the next one of the file
+	 */
+	ReorderBuffer(ChunkSink chunkSink, DownloadableMetadata downloadableMetadata, RangeScheduler rangeScheduler,
+			long budget) {
+		this.chunkSink = chunkSink;
+		this.budget = budget;
+		this.retryPolicy = downloadableMetadata.getRetryPolicy();
+		this.retryPolicy.onFailure(this::wakeUp);
+		this.rangeScheduler = rangeScheduler;
+		// A getter waiting for the front learns that the front's range lost its getter.
+		this.rangeScheduler.setIdleListener(this::wakeUp);
+		int numberOfRanges = downloadableMetadata.getNumberOfRanges();
+		Range[] missingRanges = new Range[numberOfRanges];
+		for (int range = 0; range < numberOfRanges; range++) {
+			missingRanges[range] = downloadableMetadata.getMissingRange(range);
+		}
+		Arrays.sort(missingRanges, (range1, range2) -> Long.compare(range1.getStart(), range2.getStart()));
+		this.missingStarts = new long[numberOfRanges];
+		this.missingEnds = new long[numberOfRanges];
+		for (int range = 0; range < numberOfRanges; range++) {
+			this.missingStarts[range] = missingRanges[range].getStart();
+			this.missingEnds[range] = missingRanges[range].getEnd();
+		}
+		this.nextOffset = numberOfRanges > 0 ? this.missingStarts[0] : 0;
+		skipDownloaded();
+	}
+
+	/**
+	 * Takes the chunk, and hands it on if it is the next one in the file.
+	 *
+	 * @param chunk
+	 * @throws IOException
+	 *             if the download failed, the writer takes no more chunks
+	 * @throws FrontIdleException
+	 *             if the chunk must wait for a front no getter downloads
+	 * @throws InterruptedException
+	 */
+	@Override
+	public void put(Chunk chunk) throws IOException, InterruptedException {
+		synchronized (this) {
+			while (mustWait(chunk) && !this.retryPolicy.hasFailed()) {
+				checkFront();
+				wait();
+			}
+			hold(chunk);
+		}
+		handOn();
+	}
+
+	/**
+	 * Takes the chunk like put if the budget has room for it.
+	 *
+	 * @param chunk
+	 * @param whenReady
+	 * @return
+	 * @throws IOException
+	 *             if the download failed, the writer takes no more chunks
+	 * @throws FrontIdleException
+	 *             if the chunk must wait for a front no getter downloads
+	 */
+	@Override
+	public boolean offer(Chunk chunk, Runnable whenReady) throws IOException {
+		synchronized (this) {
+			if (mustWait(chunk) && !this.retryPolicy.hasFailed()) {
+				checkFront();
+				this.readyListeners.add(whenReady);
+				return false;
+			}
+			hold(chunk);
+		}
+		handOn();
+		return true;
+	}
+
+	/**
+	 * @param chunk
+	 * @return true if the chunk would take the buffer over its budget. The next
+	 *         chunk of the file, which the others wait for, is let in unless the
+	 *         sink is the one behind.
+	 */
+	private boolean mustWait(Chunk chunk) {
+		return this.bytesHeld > 0 && this.bytesHeld + chunk.getSize_in_bytes() > this.budget
+				&& (chunk.getOffset() != this.nextOffset || !this.readyChunks.isEmpty());
+	}
+
+	/**
+	 * Called with the lock held, by a chunk which must wait for the front.
+	 *
+	 * @throws FrontIdleException
+	 *             if no getter downloads the front, nor ever will while the
+	 *             getters wait here
+	 */
+	private void checkFront() throws FrontIdleException {
+		// The sink being behind frees the budget by itself.
+		if (this.readyChunks.isEmpty() && this.rangeScheduler.isIdle(this.nextOffset))
+			throw new FrontIdleException("No getter downloads the front at " + this.nextOffset);
+	}
+
+	/**
+	 * Adds the chunk to the ones held, and moves the chunks which continue the
+	 * file to the ready ones.
+	 *
+	 * @param chunk
+	 * @throws IOException
+	 *             if the download failed
+	 */
+	private void hold(Chunk chunk) throws IOException {
+		if (this.retryPolicy.hasFailed())
+			throw new IOException("The writer stopped");
+		this.chunks.add(chunk);
+		this.bytesHeld += chunk.getSize_in_bytes();
+		while (!this.chunks.isEmpty() && this.chunks.peek().getOffset() == this.nextOffset) {
+			Chunk nextChunk = this.chunks.poll();
+			this.nextOffset += nextChunk.getSize_in_bytes();
+			skipDownloaded();
+			this.readyChunks.addLast(nextChunk);
+		}
+	}
+
+	/**
+	 * Offers the ready chunks to the sink in order, unless another thread does,
+	 * until none is left or the sink has no room.
+	 *
+	 * @throws IOException
+	 *             if the sink takes no more chunks
+	 */
+	private void handOn() throws IOException {
+		while (true) {
+			synchronized (this) {
+				// A chunk which became ready while another thread handed on is checked for once it is done.
+				if (this.handingOn || this.sinkFull || this.readyChunks.isEmpty())
+					return;
+				this.handingOn = true;
+			}
+			try {
+				offerReadyChunks();
+			} finally {
+				synchronized (this) {
+					this.handingOn = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @throws IOException
+	 *             if the sink takes no more chunks
+	 */
+	private void offerReadyChunks() throws IOException {
+		while (true) {
+			Chunk chunk;
+			int sinkReadyCount;
+			synchronized (this) {
+				chunk = this.readyChunks.peekFirst();
+				if (chunk == null)
+					return;
+				sinkReadyCount = this.sinkReadyCount;
+			}
+			if (this.chunkSink.offer(chunk, this::sinkReady)) {
+				List<Runnable> listeners;
+				synchronized (this) {
+					this.readyChunks.removeFirst();
+					this.bytesHeld -= chunk.getSize_in_bytes();
+					notifyAll();
+					listeners = takeReadyListeners();
+				}
+				runAll(listeners);
+			} else {
+				synchronized (this) {
+					// Unless the sink called back already, and its room may be there again.
+					if (this.sinkReadyCount == sinkReadyCount) {
+						this.sinkFull = true;
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The sink has room again, called on the writer's thread. Offering never
+	 * waits, so the ready chunks are handed on right there.
+	 */
+	private void sinkReady() {
+		synchronized (this) {
+			this.sinkReadyCount++;
+			this.sinkFull = false;
+		}
+		try {
+			handOn();
+		} catch (IOException e) {
+			// The writer stopped, the download failed and the getters learn it from their next chunk.
+		}
+	}
+
+	/**
+	 * Moves the next offset past the end of a missing range, to the start of the
+	 * next one: the bytes between them are already in the file.
+	 */
+	private void skipDownloaded() {
+		while (this.missingRange < this.missingEnds.length && this.nextOffset > this.missingEnds[this.missingRange]) {
+			this.missingRange++;
+			if (this.missingRange < this.missingStarts.length)
+				this.nextOffset = Math.max(this.nextOffset, this.missingStarts[this.missingRange]);
+		}
+	}
+
+	/**
+	 * @return the listeners of the offers refused so far, to run once the lock
+	 *         is released
+	 */
+	private List<Runnable> takeReadyListeners() {
+		if (this.readyListeners.isEmpty())
+			return Collections.emptyList();
+		List<Runnable> listeners = this.readyListeners;
+		this.readyListeners = new ArrayList<Runnable>();
+		return listeners;
+	}
+
+	/**
+	 * @param listeners
+	 */
+	private static void runAll(List<Runnable> listeners) {
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+
+	private void wakeUp() {
+		List<Runnable> listeners;
+		synchronized (this) {
+			notifyAll();
+			listeners = takeReadyListeners();
+		}
+		runAll(listeners);
+	}
+
+	/**
+	 * The buffer is full of chunks ahead of a front which no getter downloads:
+	 * the getter gives its chunk back and leaves its range for the front's,
+	 * without counting a failure.
+	 */
+	@SuppressWarnings("serial")
+	static class FrontIdleException extends IOException {
+		/**
+		 * @param message
+		 */
+		FrontIdleException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * When and how long the connections and the writers of a download retry after
+ * a failure, and when they give up.
+ *
+ * A retry waits an exponential backoff with jitter: the n-th attempt in a row
+ * waits between half and all of min(maxDelay, delay * 2^(n-1)), so the
+ * connections which failed together don't retry together. A range (or a write)
+ * is retried up to attempts times in a row without progress, a retry which
+ * moved the range forward starts the count over. All the retries of the
+ * download together may not exceed its budget.
+ *
+ * A FatalException is never retried, nor is a failure once the attempts or the
+ * budget are used up: the download fails, every connection and writer stops,
+ * and the metadata is kept so that a later run resumes the download, unless the
+ * failure was fatal.
+ *
+ * Configured by -Didcdm.retry.delay and -Didcdm.retry.maxDelay (milliseconds,
+ * default 500 and 30000), -Didcdm.retry.attempts (default 8) and
+ * -Didcdm.retry.budget (default 1000).
+ */
+class RetryPolicy {
+	private static final long DEFAULT_DELAY = 500;
+	private static final long DEFAULT_MAX_DELAY = 30000;
+	private static final int DEFAULT_ATTEMPTS = 8;
+	private static final int DEFAULT_BUDGET = 1000;
+
+	private final long delay;
+	private final long maxDelay;
+	private final int attempts;
+	private final AtomicInteger budget;
+	private final List<Runnable> failureListeners = new CopyOnWriteArrayList<Runnable>();
+	private volatile IOException failure;
+
+	/**
+	 * @param delay
+	 *            milliseconds before the first retry
+	 * @param maxDelay
+	 *            the most milliseconds before a retry
+	 * @param attempts
+	 *            retries in a row without progress
+	 * @param budget
+	 *            retries of the whole download
+	 */
+	RetryPolicy(long delay, long maxDelay, int attempts, int budget) {
+		this.delay = Math.max(1, delay);
+		this.maxDelay = Math.max(this.delay, maxDelay);
+		this.attempts = attempts;
+		this.budget = new AtomicInteger(budget);
+	}
+
+	RetryPolicy() {
+		this(Long.getLong("idcdm.retry.delay", DEFAULT_DELAY), Long.getLong("idcdm.retry.maxDelay", DEFAULT_MAX_DELAY),
+				Integer.getInteger("idcdm.retry.attempts", DEFAULT_ATTEMPTS),
+				Integer.getInteger("idcdm.retry.budget", DEFAULT_BUDGET));
+	}
+
+	/**
+	 * Decides whether a failure is retried. If it is, waits before the retry,
+	 * otherwise fails the download.
+	 *
+	 * @param e
+	 *            the failure
+	 * @param attempt
+	 *            the number of failures in a row without progress, this one
+	 *            included
+	 * @return true to retry, false if the download failed
+	 * @throws InterruptedException
+	 */
+	boolean retry(IOException e, int attempt) throws InterruptedException {
+		long delay = getRetryDelay(e, attempt);
+		if (delay < 0)
+			return false;
+		awaitDelay(delay);
+		return !hasFailed();
+	}
+
+	/**
+	 * Decides whether a failure is retried, without waiting.
+	 *
+	 * @param e
+	 *            the failure
+	 * @param attempt
+	 *            the number of failures in a row without progress, this one
+	 *            included
+	 * @return milliseconds to wait before the retry, or -1 if the download failed
+	 */
+	long getRetryDelay(IOException e, int attempt) {
+		if (hasFailed())
+			return -1;
+		if (e instanceof FatalException) {
+			fail(e);
+			return -1;
+		}
+		if (attempt > this.attempts) {
+			fail(new IOException("Gave up after " + this.attempts + " retries in a row", e));
+			return -1;
+		}
+		if (this.budget.getAndDecrement() <= 0) {
+			fail(new IOException("The download used up its retries", e));
+			return -1;
+		}
+		return getBackoff(attempt);
+	}
+
+	/**
+	 * Waits for the delay, or until the download fails.
+	 *
+	 * @param delay
+	 *            milliseconds
+	 * @throws InterruptedException
+	 */
+	private synchronized void awaitDelay(long delay) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + delay;
+		long left = delay;
+		while (left > 0 && !hasFailed()) {
+			wait(left);
+			left = deadline - System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @param attempt
+	 *            1 for the first retry
+	 * @return milliseconds to wait before the retry
+	 */
+	private long getBackoff(int attempt) {
+		long backoff = this.delay;
+		for (int i = 1; i < attempt && backoff < this.maxDelay; i++) {
+			backoff *= 2;
+		}
+		backoff = Math.min(backoff, this.maxDelay);
+		return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+	}
+
+	/**
+	 * Fails the download. Only the first failure is kept, and the listeners are
+	 * told of it.
+	 *
+	 * @param e
+	 */
+	void fail(IOException e) {
+		synchronized (this) {
+			if (this.failure != null)
+				return;
+			this.failure = e;
+			notifyAll();
+		}
+		for (Runnable listener : this.failureListeners) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * @return true if the download failed
+	 */
+	boolean hasFailed() {
+		return this.failure != null;
+	}
+
+	/**
+	 * @return the failure of the download, or null
+	 */
+	IOException getFailure() {
+		return this.failure;
+	}
+
+	/**
+	 * @return true if the download failed for good, and starting it over is the
+	 *         only way on
+	 */
+	boolean isFatal() {
+		return this.failure instanceof FatalException;
+	}
+
+	/**
+	 * @param listener
+	 *            run when the download fails, e.g. to wake up a writer waiting
+	 *            for chunks which won't come. Run at once if it already failed,
+	 *            so a listener added meanwhile may run twice.
+	 */
+	void onFailure(Runnable listener) {
+		this.failureListeners.add(listener);
+		if (hasFailed())
+			listener.run();
+	}
+
+	/**
+	 * A failure no retry can fix: the file is gone (e.g. 404), its range can't be
+	 * served (416), or it changed on the server (size or ETag).
+	 */
+	@SuppressWarnings("serial")
+	static class FatalException extends IOException {
+		/**
+		 * @param message
+		 */
+		FatalException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Several FileWriters for one file, selected with -Didcdm.writers=N, for disks
+ * faster than a single writer thread.
+ *
+ * The file is cut into stripes of FileWriter.MAX_WRITE_SIZE bytes dealt to the
+ * writers in turn. Every writer has its own ChunkQueue (with its share of the
+ * budget) and its own file channel, and writes the chunks of its stripes
+ * there. A chunk goes to the writer of the stripe it starts in, so the chunks
+ * of a stripe still reach the disk in a few large writes.
+ *
+ * The writers keep the extents of the batch they wrote apart, and extend the
+ * ranges with all of them at once, so the metadata's lock is taken once per
+ * batch rather than per chunk. Then they add their bytes to the progress. Only
+ * one of them commits the progress at a time, and a writer which finds a
+ * commit in progress leaves its bytes to the next commit instead of waiting
+ * for it. Forcing any of the channels forces the whole file, so a commit also
+ * covers the data of the other writers' records.
+ */
+class StripedFileWriter implements ChunkSink, Runnable {
+	static final String WRITERS_PROPERTY = "idcdm.writers";
+	private static final long STRIPE_SIZE = FileWriter.MAX_WRITE_SIZE;
+
+	private final DownloadableMetadata downloadableMetadata;
+	private final boolean reportProgress;
+	private final ChunkQueue[] chunkQueues;
+	private final FileWriter[] fileWriters;
+	private final ReentrantLock commitLock = new ReentrantLock();
+	// Bytes written by the writers since the last commit.
+	private final AtomicLong uncommittedBytes = new AtomicLong();
+
+	/**
+	 * @param downloadableMetadata
+	 * @param numberOfWriters
+	 * @param chunkBufferPool
+	 * @param reportProgress
+	 *            false to leave out the percentage lines, e.g. in a batch of many
+	 *            files
+	 */
+	StripedFileWriter(DownloadableMetadata downloadableMetadata, int numberOfWriters,
+			ChunkBufferPool chunkBufferPool, boolean reportProgress) {
+		this.downloadableMetadata = downloadableMetadata;
+		this.reportProgress = reportProgress;
+		this.chunkQueues = new ChunkQueue[numberOfWriters];
+		this.fileWriters = new FileWriter[numberOfWriters];
+		long budget = Long.getLong(ChunkQueue.BUDGET_PROPERTY, ChunkQueue.DEFAULT_BUDGET);
+		for (int i = 0; i < numberOfWriters; i++) {
+			this.chunkQueues[i] = new ChunkQueue(budget / numberOfWriters);
+			this.fileWriters[i] = new FileWriter(downloadableMetadata, this.chunkQueues[i], chunkBufferPool, this);
+		}
+	}
+
+	/**
+	 * @return the number of writers per file, 1 unless -Didcdm.writers is set
+	 */
+	static int getNumberOfWriters() {
+		return Math.max(1, Integer.getInteger(WRITERS_PROPERTY, 1));
+	}
+
+	/**
+	 * Hands the chunk to the writer of its stripe.
+	 *
+	 * @param chunk
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Override
+	public void put(Chunk chunk) throws IOException, InterruptedException {
+		getChunkQueue(chunk).put(chunk);
+	}
+
+	/**
+	 * Offers the chunk to the writer of its stripe.
+	 *
+	 * @param chunk
+	 * @param whenReady
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public boolean offer(Chunk chunk, Runnable whenReady) throws IOException {
+		return getChunkQueue(chunk).offer(chunk, whenReady);
+	}
+
+	/**
+	 * @param chunk
+	 * @return the queue of the writer of the chunk's stripe
+	 */
+	private ChunkQueue getChunkQueue(Chunk chunk) {
+		return this.chunkQueues[(int) ((chunk.getOffset() / STRIPE_SIZE) % this.chunkQueues.length)];
+	}
+
+	/**
+	 * Adds the bytes a writer wrote (its ranges already extended) to the
+	 * progress, and commits it unless another writer is committing. Closes the
+	 * queues once the file is complete, so the other writers stop.
+	 *
+	 * @param fileChannel
+	 *            the writer's channel
+	 * @param bytesWritten
+	 * @throws IOException
+	 */
+	void commit(FileChannel fileChannel, long bytesWritten) throws IOException {
+		DownloadableMetadataObject downloadableMetadataObject = this.downloadableMetadata
+				.getDownloadableMetadataObject();
+		synchronized (downloadableMetadataObject) {
+			downloadableMetadataObject.setCurrentAlreadyDownloadedNumberOfBytes(downloadableMetadataObject
+					.getCurrentAlreadyDownloadedNumberOfBytes() + bytesWritten);
+		}
+		this.uncommittedBytes.addAndGet(bytesWritten);
+		if (this.downloadableMetadata.isCompleted()) {
+			for (ChunkQueue chunkQueue : this.chunkQueues) {
+				chunkQueue.close();
+			}
+		}
+		if (!this.commitLock.tryLock())
+			return;
+		try {
+			if (this.reportProgress)
+				this.fileWriters[0].progressPercent();
+			this.downloadableMetadata.commitProgress(() -> fileChannel.force(false),
+					this.uncommittedBytes.getAndSet(0));
+		} finally {
+			this.commitLock.unlock();
+		}
+	}
+
+	/**
+	 * Runs the writers, the first one on the calling thread, until the file is
+	 * complete.
+	 */
+	@Override
+	public void run() {
+		Thread[] threads = new Thread[this.fileWriters.length - 1];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(this.fileWriters[i + 1]);
+			threads[i].start();
+		}
+		this.fileWriters[0].run();
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
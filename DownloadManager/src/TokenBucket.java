@@ -1,5 +1,5 @@
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A Token Bucket (https://en.wikipedia.org/wiki/Token_bucket)
@@ -12,79 +12,201 @@ import java.util.concurrent.locks.ReentrantLock;
  * - terminate(): mark the bucket as terminated (used to communicate between threads)
  * - terminated(): return true if the bucket is terminated, false otherwise
  *
+ * The bucket refills itself lazily, there is no refill thread. Its whole state
+ * is a single timestamp, moved forward with a compare-and-set by every take, and
+ * the taker then sleeps exactly until its tokens are earned. Threads never wait
+ * on a lock and pacing is accurate to the nanosecond.
+ *
+ * A "soft" bucket is refilled continuously (as if add() was called all the
+ * time), and tokens not taken gather up to the burst. A "hard" bucket is set to
+ * burst tokens at the start of every period of burst / rate seconds (as if
+ * set() was called every period), and tokens not taken in a period are lost.
  */
 class TokenBucket {
 
-	private ReentrantLock lock;
-	private long availableTokens;
-	private boolean terminated;
-    
-    /**
-     * @param totalNumberOfTokens
-     * @param availableTokens
-     */
-    public TokenBucket(long totalNumberOfTokens, long availableTokens) {
-		this.availableTokens = availableTokens;
-		this.lock = new ReentrantLock();
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private final long tokensPerSecond;
+	private final long burstNanos;
+	private final boolean hard;
+	private final long origin;
+	// Soft: System.nanoTime() at which the bucket is empty, once full it stays burstNanos behind now.
+	// Hard: the time worth of tokens taken since origin, every period holds burstNanos of them.
+	private final AtomicLong state;
+	private volatile boolean terminated;
+
+	/**
+	 * @param tokensPerSecond
+	 *            refill rate
+	 * @param burst
+	 *            bucket capacity, the bucket starts full
+	 * @param hard
+	 *            true for "hard" limiting, false for "soft"
+	 */
+	public TokenBucket(long tokensPerSecond, long burst, boolean hard) {
+		this.tokensPerSecond = tokensPerSecond;
+		this.burstNanos = nanosFor(burst);
+		this.hard = hard;
+		this.origin = System.nanoTime();
+		this.state = new AtomicLong(hard ? 0 : this.origin - this.burstNanos);
 		this.terminated = false;
 	}
 
-    /**
-     * @param tokens
-     * @throws InterruptedException
-     */
-    void take(long tokens) throws InterruptedException {
-    	if(tokens<=0)
-    		return;
-    	try {
-    		lock.lock();
-        	while(tokens > this.availableTokens)
-        	{
-        		this.lock.newCondition().await(500, TimeUnit.MILLISECONDS);
-        	}
-        	this.availableTokens-=tokens;
-    	}
-    	finally {
-    		lock.unlock();	
+	/**
+	 * @param tokensPerSecond
+	 * @param burst
+	 */
+	public TokenBucket(long tokensPerSecond, long burst) {
+		this(tokensPerSecond, burst, false);
+	}
+
+	/**
+	 * @param tokens
+	 * @throws InterruptedException
+	 */
+	void take(long tokens) throws InterruptedException {
+		if (tokens <= 0)
+			return;
+		awaitNanoTime(reserve(tokens));
+	}
+
+	/**
+	 * Takes the tokens without waiting for them.
+	 *
+	 * @param tokens
+	 * @return the System.nanoTime() at which the tokens are earned
+	 */
+	long reserve(long tokens) {
+		long tokensNanos = nanosFor(tokens);
+		while (true) {
+			long now = System.nanoTime();
+			long currentState = this.state.get();
+			long newState;
+			long earnedAt;
+			if (this.hard) {
+				// Tokens of periods which already ended are lost.
+				newState = Math.max(currentState, periodStart(now)) + tokensNanos;
+			} else {
+				// A full bucket doesn't gather more than the burst.
+				newState = Math.max(currentState, now - this.burstNanos) + tokensNanos;
+			}
+			earnedAt = earnedAt(newState);
+			if (this.state.compareAndSet(currentState, newState))
+				return earnedAt;
 		}
-    }
-
-    /**
-     * 
-     */
-    void terminate() {
-        this.terminated=true;    }
-
-    /**
-     * @return
-     */
-    boolean terminated() {
-        return this.terminated;
-    }
-
-    /**
-     * @param tokens
-     */
-    void set(long tokens) {
-        try {
-        	lock.lock();
-        }
-        finally {
-			lock.unlock();
+	}
+
+	/**
+	 * Takes the tokens only if the bucket holds them now, or if it is full: a
+	 * take larger than the burst is earned back before the next one.
+	 *
+	 * @param tokens
+	 * @return 0 if the tokens were taken, or else the nanoseconds until the
+	 *         bucket may hold them
+	 */
+	long tryReserve(long tokens) {
+		long tokensNanos = nanosFor(tokens);
+		while (true) {
+			long now = System.nanoTime();
+			long currentState = this.state.get();
+			long full = this.hard ? periodStart(now) : now - this.burstNanos;
+			long newState = Math.max(currentState, full) + tokensNanos;
+			long earnedAt = earnedAt(newState);
+			if (earnedAt > now && currentState > full) {
+				long fullAt = this.hard
+						? this.origin + (currentState + this.burstNanos - 1) / this.burstNanos * this.burstNanos
+						: currentState + this.burstNanos;
+				return Math.max(1, Math.min(earnedAt, fullAt) - now);
+			}
+			if (this.state.compareAndSet(currentState, newState))
+				return 0;
 		}
-    }
+	}
 
 	/**
-	 * @param maxBytesPerSecond
+	 *
 	 */
-	public void add(Long maxBytesPerSecond) {
-		try {
-			lock.lock();
-			this.availableTokens = maxBytesPerSecond;
+	void terminate() {
+		this.terminated = true;
+	}
+
+	/**
+	 * @return
+	 */
+	boolean terminated() {
+		return this.terminated;
+	}
+
+	/**
+	 * @param tokens
+	 */
+	void set(long tokens) {
+		long now = System.nanoTime();
+		long tokensNanos = Math.min(nanosFor(tokens), this.burstNanos);
+		if (this.hard)
+			this.state.set(periodStart(now) + this.burstNanos - tokensNanos);
+		else
+			this.state.set(now - tokensNanos);
+	}
+
+	/**
+	 * @param tokens
+	 */
+	void add(long tokens) {
+		long tokensNanos = nanosFor(tokens);
+		while (true) {
+			long now = System.nanoTime();
+			long currentState = this.state.get();
+			long full = this.hard ? periodStart(now) : now - this.burstNanos;
+			if (this.state.compareAndSet(currentState, Math.max(currentState - tokensNanos, full)))
+				return;
 		}
-		finally {
-			lock.unlock();
+	}
+
+	/**
+	 * @return the refill rate of the bucket
+	 */
+	long getTokensPerSecond() {
+		return this.tokensPerSecond;
+	}
+
+	/**
+	 * @param newState
+	 *            the state once the tokens are taken
+	 * @return the System.nanoTime() at which the tokens are earned
+	 */
+	private long earnedAt(long newState) {
+		return this.hard ? this.origin + (newState - 1) / this.burstNanos * this.burstNanos : newState;
+	}
+
+	/**
+	 * @param now
+	 * @return the state of a hard bucket which is full at now
+	 */
+	private long periodStart(long now) {
+		return (now - this.origin) / this.burstNanos * this.burstNanos;
+	}
+
+	/**
+	 * @param tokens
+	 * @return the time it takes to earn the tokens
+	 */
+	private long nanosFor(long tokens) {
+		return (long) ((double) tokens * NANOS_PER_SECOND / this.tokensPerSecond);
+	}
+
+	/**
+	 * @param deadline
+	 *            a System.nanoTime() value
+	 * @throws InterruptedException
+	 */
+	static void awaitNanoTime(long deadline) throws InterruptedException {
+		long nanosLeft = deadline - System.nanoTime();
+		if (nanosLeft > 0)
+			DownloadMetrics.get().tokenWait(nanosLeft);
+		while ((nanosLeft = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(nanosLeft);
+			if (Thread.interrupted())
+				throw new InterruptedException();
 		}
-		
 	}
 }
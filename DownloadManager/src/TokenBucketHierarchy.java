@@ -0,0 +1,171 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Nested token buckets: global, per-host, per-download and per-connection.
+ *
+ * A take(n) draws n tokens from every level of the hierarchy (levels without a
+ * limit are left out) and returns once the slowest of them earned the tokens.
+ * Every level may have its own rate, burst and hard/soft mode, and a level may
+ * be shared: all the downloads share the global bucket, all the connections of
+ * a download share the download's bucket and so on.
+ *
+ * The host level is one bucket per server (HttpRangeConnection.getHostKey),
+ * shared by every hierarchy made from the one which added it. The mirrors of a
+ * download may be different servers, so a getter picks the host's bucket for
+ * every request, with forHost and the mirror's URL.
+ *
+ * The tokens are taken from the levels all or nothing: the levels are charged
+ * one after another, and if one of them doesn't hold the tokens yet, the levels
+ * charged before it get theirs back and the taker waits for it before trying
+ * again. So a connection held back by its own bucket, or by its server's,
+ * charges nothing to the shared levels while it waits, and their tokens go to
+ * the connections which can use them.
+ *
+ * Each level is configured by system properties, e.g. for the host level:
+ * idcdm.rate.host (bytes per second), idcdm.rate.host.burst (bytes, default
+ * one second's worth) and idcdm.rate.host.mode ("soft" by default, or "hard").
+ */
+class TokenBucketHierarchy {
+	static final String GLOBAL = "global";
+	static final String HOST = "host";
+	static final String DOWNLOAD = "download";
+	static final String CONNECTION = "connection";
+
+	private final TokenBucket[] levels;
+	// The host level's bucket of every host, guarded by itself. Null if the level is not limited.
+	private final Map<String, TokenBucket> hostLevels;
+
+	/**
+	 * @param levels
+	 *            the buckets to draw from, null levels are not limited
+	 */
+	TokenBucketHierarchy(TokenBucket... levels) {
+		this(levels, null);
+	}
+
+	/**
+	 * @param levels
+	 *            the buckets to draw from, null levels are not limited
+	 * @param hostLevels
+	 */
+	private TokenBucketHierarchy(TokenBucket[] levels, Map<String, TokenBucket> hostLevels) {
+		int numberOfLevels = 0;
+		TokenBucket[] limitedLevels = new TokenBucket[levels.length];
+		for (TokenBucket level : levels) {
+			if (level != null)
+				limitedLevels[numberOfLevels++] = level;
+		}
+		this.levels = Arrays.copyOf(limitedLevels, numberOfLevels);
+		this.hostLevels = hostLevels;
+	}
+
+	/**
+	 * @param level
+	 * @return a hierarchy with another level below the levels of this one
+	 */
+	TokenBucketHierarchy withLevel(TokenBucket level) {
+		TokenBucket[] nestedLevels = Arrays.copyOf(this.levels, this.levels.length + 1);
+		nestedLevels[this.levels.length] = level;
+		return new TokenBucketHierarchy(nestedLevels, this.hostLevels);
+	}
+
+	/**
+	 * @return a hierarchy with the host level below the levels of this one, its
+	 *         buckets made the first time a host is asked for
+	 */
+	TokenBucketHierarchy withHostLevels() {
+		if (level(HOST, null) == null)
+			return this;
+		return new TokenBucketHierarchy(this.levels, new HashMap<String, TokenBucket>());
+	}
+
+	/**
+	 * @param hostKey
+	 *            the server the tokens are taken for, see
+	 *            HttpRangeConnection.getHostKey
+	 * @return the levels of this hierarchy, with the host's bucket in the host
+	 *         level
+	 */
+	TokenBucketHierarchy forHost(String hostKey) {
+		if (this.hostLevels == null)
+			return this;
+		TokenBucket hostLevel;
+		synchronized (this.hostLevels) {
+			hostLevel = this.hostLevels.get(hostKey);
+			if (hostLevel == null) {
+				hostLevel = level(HOST, null);
+				this.hostLevels.put(hostKey, hostLevel);
+			}
+		}
+		return new TokenBucketHierarchy(this.withLevel(hostLevel).levels, null);
+	}
+
+	/**
+	 * @param tokens
+	 * @throws InterruptedException
+	 */
+	void take(long tokens) throws InterruptedException {
+		long delay;
+		while ((delay = tryReserve(tokens)) > 0) {
+			TokenBucket.awaitNanoTime(System.nanoTime() + delay);
+		}
+	}
+
+	/**
+	 * Takes the tokens from every level without waiting for them, if all of
+	 * them hold them.
+	 *
+	 * @param tokens
+	 * @return 0 if the tokens were taken, or else the nanoseconds until the
+	 *         level which refused them may hold them
+	 */
+	long tryReserve(long tokens) {
+		if (tokens <= 0)
+			return 0;
+		for (int level = 0; level < this.levels.length; level++) {
+			long delay = this.levels[level].tryReserve(tokens);
+			if (delay > 0) {
+				for (int chargedLevel = 0; chargedLevel < level; chargedLevel++) {
+					this.levels[chargedLevel].add(tokens);
+				}
+				return delay;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Marks every level as terminated.
+	 */
+	void terminate() {
+		for (TokenBucket level : this.levels) {
+			level.terminate();
+		}
+		if (this.hostLevels != null) {
+			synchronized (this.hostLevels) {
+				for (TokenBucket hostLevel : this.hostLevels.values()) {
+					hostLevel.terminate();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param level
+	 *            the name of the level in the system properties
+	 * @param tokensPerSecond
+	 *            the level's rate, or null to take it from the system properties
+	 * @return the level's bucket, or null if the level is not limited
+	 */
+	static TokenBucket level(String level, Long tokensPerSecond) {
+		if (tokensPerSecond == null)
+			tokensPerSecond = Long.getLong("idcdm.rate." + level);
+		if (tokensPerSecond == null)
+			return null;
+		long burst = Long.getLong("idcdm.rate." + level + ".burst", tokensPerSecond);
+		boolean hard = System.getProperty("idcdm.rate." + level + ".mode", "soft").equals("hard");
+		return new TokenBucket(tokensPerSecond, burst, hard);
+	}
+}